@@ -18,12 +18,23 @@
 
 package librec.data;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.*;
+import com.google.common.hash.Hashing;
 import librec.util.*;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -34,6 +45,9 @@ import java.util.concurrent.TimeUnit;
  */
 public class DataDAO {
 
+    // magic number and format version of data snapshots
+    private static final int SNAPSHOT_MAGIC = 0x4c524453, SNAPSHOT_VERSION = 2;
+
     // name of data file
     private String dataName;
     // directory of data file
@@ -60,7 +74,7 @@ public class DataDAO {
     // number of rates
     private int numRatings;
 
-    // user/item {raw id, inner id} map
+    // user/item {raw id, inner id} map, an {@code IdDictionary} unless given
     private BiMap<String, Integer> userIds, itemIds;
 
     // inverse views of userIds, itemIds, categoryIds
@@ -72,6 +86,9 @@ public class DataDAO {
     // minimum/maximum rating timestamp
     private long minTimestamp, maxTimestamp;
 
+    // whether to cache the parsed data as a binary snapshot
+    private boolean isSnapshot = false;
+
     /**
      * user context entries
      */
@@ -98,12 +115,12 @@ public class DataDAO {
         dataPath = path;
 
         if (userIds == null)
-            this.userIds = HashBiMap.create();
+            this.userIds = new IdDictionary();
         else
             this.userIds = userIds;
 
         if (itemIds == null)
-            this.itemIds = HashBiMap.create();
+            this.itemIds = new IdDictionary();
         else
             this.itemIds = itemIds;
 
@@ -159,6 +176,83 @@ public class DataDAO {
 
         Logs.info(String.format("Dataset: %s", Strings.last(dataPath, 38)));
 
+        // a snapshot of the same file and setup is used if available, unless ids are given; the file is the one read,
+        // possibly resolved from resources, and must exist on disk
+        File snapshot = null;
+        long snapshotKey = 0;
+        String resource = FileIO.getResource(dataPath);
+        File file = resource == null ? null : new File(resource).getAbsoluteFile();
+        if (isSnapshot && file != null && file.isFile() && userIds.isEmpty() && itemIds.isEmpty() && !isItemAsUser
+                && userIds instanceof IdDictionary && itemIds instanceof IdDictionary) {
+            snapshotKey = snapshotKey(file, cols, binThold);
+            snapshot = new File(file.getParentFile(), "." + getDataName() + "-" + Long.toHexString(snapshotKey)
+                    + ".snapshot");
+
+            if (snapshot.exists()) {
+                try {
+                    Stopwatch sw = Stopwatch.createStarted();
+                    readSnapshot(snapshot, snapshotKey);
+                    Logs.debug("Data are loaded from snapshot {} in {} ms", snapshot.getName(),
+                            sw.elapsed(TimeUnit.MILLISECONDS));
+
+                    printSpecs(cols);
+                    return new SparseMatrix[]{rateMatrix, timeMatrix};
+                } catch (Exception e) {
+                    Logs.debug("Snapshot {} is not used: {}", snapshot.getName(), e.getMessage());
+                    userIds.clear();
+                    itemIds.clear();
+                    scaleDist.clear();
+                    timeMatrix = null;
+                }
+            }
+        }
+
+        // parse the data file in parallel, unless users and items share ids or only some ratings have timestamps
+        if (isItemAsUser || !readByParser(cols, binThold))
+            readByTable(cols, binThold);
+
+        printSpecs(cols);
+
+        if (snapshot != null) {
+            try {
+                writeSnapshot(snapshot, snapshotKey);
+                Logs.debug("Data are cached to snapshot {}", snapshot.getPath());
+            } catch (Exception e) {
+                Logs.debug("Snapshot {} cannot be written: {}", snapshot.getPath(), e.getMessage());
+            }
+        }
+
+        return new SparseMatrix[]{rateMatrix, timeMatrix};
+    }
+
+    /**
+     * read data by a parallel parser, see {@code RatingParser}
+     *
+     * @return false if the data cannot be read by the parser
+     */
+    private boolean readByParser(int[] cols, double binThold) throws Exception {
+        File file = new File(FileIO.getResource(dataPath));
+        RatingParser parser = new RatingParser(file, cols, binThold, timeUnit, isHeadline, -1);
+        if (!parser.parse(userIds, itemIds))
+            return false;
+
+        setHeadline(false);
+
+        rateMatrix = parser.getRateMatrix();
+        timeMatrix = parser.getTimeMatrix();
+        scaleDist = parser.getScaleDist();
+        ratingScale = parser.getRatingScale();
+        numRatings = parser.getNumRatings();
+        minTimestamp = parser.getMinTimestamp();
+        maxTimestamp = parser.getMaxTimestamp();
+
+        return true;
+    }
+
+    /**
+     * read data line by line into tables, from which the matrices are built
+     */
+    private void readByTable(int[] cols, double binThold) throws Exception {
         // Table {row-id, col-id, rate}
         Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
         // Table {row-id, col-id, timestamp}
@@ -239,23 +333,13 @@ public class DataDAO {
                 double val = ratingScale.get(i);
                 ratingScale.set(i, val + epsilon);
             }
-            // update data table
-            for (int row = 0; row < numRows; row++) {
-                for (int col = 0; col < numCols; col++) {
-                    if (dataTable.contains(row, col))
-                        dataTable.put(row, col, dataTable.get(row, col) + epsilon);
-                }
+            // update data table, by a pass over its entries
+            for (Map<Integer, Double> rowMap : dataTable.rowMap().values()) {
+                for (Map.Entry<Integer, Double> en : rowMap.entrySet())
+                    en.setValue(en.getValue() + epsilon);
             }
         }
 
-        String dateRange = "";
-        if (cols.length >= 4)
-            dateRange = String.format(", Timestamps = {%s, %s}", Dates.toString(minTimestamp),
-                    Dates.toString(maxTimestamp));
-
-        Logs.debug("With Specs: {Users, {}} = {{}, {}, {}}, Scale = {{}}{}", (isItemAsUser ? "Users, Links"
-                : "Items, Ratings"), numRows, numCols, numRatings, Strings.toString(ratingScale), dateRange);
-
         // build rating matrix
         rateMatrix = new SparseMatrix(numRows, numCols, dataTable, colMap);
 
@@ -265,11 +349,185 @@ public class DataDAO {
         // release memory of data table
         dataTable = null;
         timeTable = null;
+    }
 
-        return new SparseMatrix[]{rateMatrix, timeMatrix};
+    /**
+     * print out the specifications of the data read
+     */
+    private void printSpecs(int[] cols) throws Exception {
+        String dateRange = "";
+        if (cols.length >= 4)
+            dateRange = String.format(", Timestamps = {%s, %s}", Dates.toString(minTimestamp),
+                    Dates.toString(maxTimestamp));
+
+        Logs.debug("With Specs: {Users, {}} = {{}, {}, {}}, Scale = {{}}{}", (isItemAsUser ? "Users, Links"
+                : "Items, Ratings"), numUsers(), numItems(), numRatings, Strings.toString(ratingScale), dateRange);
+    }
+
+    /**
+     * @return the key of a snapshot: a hash of the data file (path, size and modification time) and the reading setup
+     */
+    private long snapshotKey(File file, int[] cols, double binThold) throws IOException {
+        String key = SNAPSHOT_VERSION + "|" + file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified()
+                + "|" + Arrays.toString(cols) + "|" + binThold + "|" + timeUnit + "|" + isHeadline;
+
+        return Hashing.murmur3_128().hashString(key, Charsets.UTF_8).asLong() & Long.MAX_VALUE;
     }
 
- 
+    /**
+     * write the data read to a binary snapshot: a header, rating scales, the CRS and CCS structures of the rating (and
+     * timestamp) matrix, and user and item ids in the order of their inner ids
+     */
+    private void writeSnapshot(File snapshot, long key) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(key);
+            out.writeInt(numRatings);
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+
+            out.writeInt(ratingScale.size());
+            for (double scale : ratingScale)
+                out.writeDouble(scale);
+
+            Set<Double> rates = scaleDist.elementSet();
+            out.writeInt(rates.size());
+            for (double rate : rates) {
+                out.writeDouble(rate);
+                out.writeInt(scaleDist.count(rate));
+            }
+
+            writeMatrix(out, rateMatrix);
+            out.writeBoolean(timeMatrix != null);
+            if (timeMatrix != null)
+                writeMatrix(out, timeMatrix);
+
+            ((IdDictionary) userIds).write(out);
+            ((IdDictionary) itemIds).write(out);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(snapshot)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp.getName());
+        }
+    }
+
+    private static void writeMatrix(DataOutputStream out, SparseMatrix mat) throws IOException {
+        out.writeInt(mat.numRows);
+        out.writeInt(mat.numColumns);
+        out.writeInt(mat.rowData.length);
+
+        writeInts(out, mat.rowPtr);
+        writeInts(out, mat.colInd);
+        writeDoubles(out, mat.rowData);
+        writeInts(out, mat.colPtr);
+        writeInts(out, mat.rowInd);
+        writeDoubles(out, mat.colData);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] data) throws IOException {
+        for (int val : data)
+            out.writeInt(val);
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] data) throws IOException {
+        for (double val : data)
+            out.writeDouble(val);
+    }
+
+    /**
+     * read the data from a snapshot by memory mapping
+     */
+    private void readSnapshot(File snapshot, long key) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), 1 << 16));
+
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION || header.getLong() != key)
+                throw new IOException("the snapshot is out of date");
+
+            numRatings = header.getInt();
+            minTimestamp = header.getLong();
+            maxTimestamp = header.getLong();
+
+            long[] pos = {header.position()};
+            ByteBuffer buf = map(ch, pos, 4);
+            int numScales = buf.getInt();
+            buf = map(ch, pos, 8L * numScales + 4);
+            ratingScale = new ArrayList<>(numScales);
+            for (int i = 0; i < numScales; i++)
+                ratingScale.add(buf.getDouble());
+
+            int numRates = buf.getInt();
+            buf = map(ch, pos, 12L * numRates);
+            for (int i = 0; i < numRates; i++)
+                scaleDist.add(buf.getDouble(), buf.getInt());
+
+            rateMatrix = readMatrix(ch, pos);
+            boolean hasTime = map(ch, pos, 1).get() != 0;
+            timeMatrix = hasTime ? readMatrix(ch, pos) : null;
+
+            ((IdDictionary) userIds).read(ch, pos);
+            ((IdDictionary) itemIds).read(ch, pos);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return a mapped buffer of the next len bytes from position pos[0], which is advanced
+     */
+    private static ByteBuffer map(FileChannel ch, long[] pos, long len) throws IOException {
+        if (pos[0] + len > ch.size())
+            throw new IOException("the snapshot is truncated");
+
+        ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos[0], len);
+        pos[0] += len;
+
+        return buf;
+    }
+
+    private static SparseMatrix readMatrix(FileChannel ch, long[] pos) throws IOException {
+        ByteBuffer buf = map(ch, pos, 12);
+        int numRows = buf.getInt(), numCols = buf.getInt(), nnz = buf.getInt();
+
+        int[] rowPtr = readInts(ch, pos, numRows + 1);
+        int[] colInd = readInts(ch, pos, nnz);
+        double[] rowData = readDoubles(ch, pos, nnz);
+        int[] colPtr = readInts(ch, pos, numCols + 1);
+        int[] rowInd = readInts(ch, pos, nnz);
+        double[] colData = readDoubles(ch, pos, nnz);
+
+        return new SparseMatrix(numRows, numCols, rowPtr, colInd, rowData, colPtr, rowInd, colData);
+    }
+
+    private static int[] readInts(FileChannel ch, long[] pos, int n) throws IOException {
+        int[] data = new int[n];
+        map(ch, pos, 4L * n).asIntBuffer().get(data);
+
+        return data;
+    }
+
+    private static double[] readDoubles(FileChannel ch, long[] pos, int n) throws IOException {
+        double[] data = new double[n];
+        map(ch, pos, 8L * n).asDoubleBuffer().get(data);
+
+        return data;
+    }
+
+    /**
+     * set whether to cache the data read as a binary snapshot next to the data file, which is memory mapped by the
+     * following reads of the same file with the same setup
+     */
+    public void setSnapshot(boolean isSnapshot) {
+        this.isSnapshot = isSnapshot;
+    }
 
     /**
      * Read data from the data file. Note that we didn't take care of the duplicated lines.
@@ -281,7 +539,6 @@ public class DataDAO {
      *                 negative value
      * @return a sparse tensor storing all the relevant data
      */
-    @SuppressWarnings("unchecked")
     public SparseMatrix[] readTensor(int[] cols, double binThold) throws Exception {
 
         if (cols.length < 3)
@@ -291,9 +548,10 @@ public class DataDAO {
 
         int[] dims = null;
         int numDims = 0;
-        List<Integer>[] ndLists = null;
-        Set<Integer>[] ndSets = null;
-        List<Double> vals = new ArrayList<Double>();
+        // n-dimensional keys and values, in primitive arrays
+        int[][] ndKeys = null;
+        double[] vals = new double[1024];
+        int size = 0;
 
         BufferedReader br = FileIO.getReader(dataPath);
         String line = null;
@@ -309,12 +567,14 @@ public class DataDAO {
             if (dims == null) {
                 numDims = data.length - 1;
                 dims = new int[numDims];
-                ndLists = (List<Integer>[]) new List<?>[numDims];
-                ndSets = (Set<Integer>[]) new Set<?>[numDims];
-                for (int d = 0; d < numDims; d++) {
-                    ndLists[d] = new ArrayList<Integer>();
-                    ndSets[d] = new HashSet<Integer>();
-                }
+                ndKeys = new int[numDims][vals.length];
+            }
+
+            if (size == vals.length) {
+                int capacity = size + (size >> 1);
+                vals = Arrays.copyOf(vals, capacity);
+                for (int d = 0; d < numDims; d++)
+                    ndKeys[d] = Arrays.copyOf(ndKeys[d], capacity);
             }
 
             // set data
@@ -340,7 +600,7 @@ public class DataDAO {
                     if (binThold >= 0)
                         rate = rate > binThold ? 1.0 : 0.0;
 
-                    vals.add(rate);
+                    vals[size] = rate;
                     scaleDist.add(rate);
 
                     continue;
@@ -350,12 +610,16 @@ public class DataDAO {
                 }
 
                 int dim = d > cols[2] ? d - 1 : d;
-                ndLists[dim].add(feature);
-                ndSets[dim].add(feature);
+                ndKeys[dim][size] = feature;
             }
+            size++;
         }
         br.close();
 
+        vals = Arrays.copyOf(vals, size);
+        for (int d = 0; d < numDims; d++)
+            ndKeys[d] = Arrays.copyOf(ndKeys[d], size);
+
         numRatings = scaleDist.size();
         ratingScale = new ArrayList<>(scaleDist.elementSet());
         Collections.sort(ratingScale);
@@ -370,22 +634,28 @@ public class DataDAO {
                 ratingScale.set(i, val + epsilon);
             }
             // update rating values
-            for (int i = 0; i < vals.size(); i++) {
-                vals.set(i, vals.get(i) + epsilon);
+            for (int i = 0; i < size; i++) {
+                vals[i] += epsilon;
             }
         }
 
         // get dimensions
         int numRows = numUsers(), numCols = numItems();
         for (int d = 0; d < numDims; d++) {
-            dims[d] = ndSets[d].size();
+            // number of distinct keys
+            int[] keys = ndKeys[d].clone();
+            Arrays.sort(keys);
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || keys[i] != keys[i - 1])
+                    dims[d]++;
+            }
         }
 
         // debug info
         Logs.debug("With Specs: {Users, Items, Ratings, Features} = {{}, {}, {}, {}}, Scale = {{}}", numRows, numCols,
                 numRatings, (numDims - 2), Strings.toString(ratingScale));
 
-        rateTensor = new SparseTensor(dims, ndLists, vals);
+        rateTensor = new SparseTensor(dims, ndKeys, vals);
         rateTensor.setUserDimension(cols[0]);
         rateTensor.setItemDimension(cols[1]);
 
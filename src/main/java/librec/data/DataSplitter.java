@@ -19,24 +19,25 @@
 package librec.data;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import librec.util.Debug;
 import librec.util.FileIO;
-import librec.util.Lists;
 import librec.util.Logs;
 import librec.util.Randoms;
-import librec.util.Sortor;
 import librec.util.Systems;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
-
 /**
- * Class to split/sample rating matrix
+ * Class to split/sample rating matrix. <br>
+ *
+ * A split is represented by the part (training, test, etc.) of each rating, indexed by its position in the CRS
+ * structure of the rate matrix, which is shared rather than copied; the matrix of each part is then compacted in a
+ * single pass.
  *
  * @author guoguibing
  */
@@ -45,8 +46,14 @@ public class DataSplitter {
     // [row-id, col-id, rate]
     private SparseMatrix rateMatrix;
 
-    // [row-id, col-id, fold-id]
-    private SparseMatrix assignMatrix;
+    // parts of a split
+    private static final byte TRAIN = 0, TEST = 1;
+
+    // maximum number of folds, whose ids are kept in (unsigned) bytes
+    private static final int MAX_FOLDS = 256;
+
+    // (fold-id - 1) of each rating in the order of CRS
+    private byte[] folds;
 
     // number of folds
     private int numFold;
@@ -80,34 +87,185 @@ public class DataSplitter {
     private void splitFolds(int kfold) {
         assert kfold > 0;
 
-        assignMatrix = new SparseMatrix(rateMatrix);
-
         int numRates = rateMatrix.getData().length;
         numFold = kfold > numRates ? numRates : kfold;
 
+        if (numFold > MAX_FOLDS) {
+            Logs.error("The number of folds {} exceeds the maximum {}", numFold, MAX_FOLDS);
+            System.exit(-1);
+        }
+
         // divide rating data into kfold sample of equal size
-        double[] rdm = new double[numRates];
-        int[] fold = new int[numRates];
+        folds = new byte[numRates];
         double indvCount = (numRates + 0.0) / numFold;
 
-        for (int i = 0; i < numRates; i++) {
-            rdm[i] = Randoms.uniform(); // Math.random();
-            fold[i] = (int) (i / indvCount) + 1; // make sure that each fold has each size sample
+        for (int i = 0; i < numRates; i++)
+            folds[i] = (byte) (i / indvCount); // make sure that each fold has each size sample
+
+        // if randomly put an int 1-5 to entry (u, j), we cannot make sure equal size for each fold; instead shuffle
+        // the fold-ids by Fisher-Yates, seeded by Randoms
+        for (int i = numRates - 1; i > 0; i--) {
+            int j = Randoms.uniform(i + 1);
+            byte f = folds[i];
+            folds[i] = folds[j];
+            folds[j] = f;
         }
+    }
 
-        Sortor.quickSort(rdm, fold, 0, numRates - 1, true);
+    /**
+     * @return the position of entry (u, j) in the CRS structure of the rate matrix
+     */
+    private int index(int u, int j) {
+        return Arrays.binarySearch(rateMatrix.colInd, rateMatrix.rowPtr[u], rateMatrix.rowPtr[u + 1], j);
+    }
 
-        int[] row_ptr = rateMatrix.getRowPointers();
-        int[] col_idx = rateMatrix.getColumnIndices();
+    /**
+     * @return the time order of ratings, which is carried by the timestamp matrix if it has the same structure as the
+     *         rate matrix, and built from the timestamps of ratings otherwise
+     */
+    public TimeIndex getTimeIndex(SparseMatrix timestamps) {
+        if (timestamps.numColumns == rateMatrix.numColumns && Arrays.equals(timestamps.rowPtr, rateMatrix.rowPtr)
+                && Arrays.equals(timestamps.colInd, rateMatrix.colInd))
+            return timestamps.getTimeIndex();
+
+        int[] rowPtr = rateMatrix.rowPtr, colInd = rateMatrix.colInd;
+        long[] times = new long[colInd.length];
+        for (int u = 0, um = rateMatrix.numRows; u < um; u++) {
+            for (int idx = rowPtr[u]; idx < rowPtr[u + 1]; idx++)
+                times[idx] = (long) timestamps.get(u, colInd[idx]);
+        }
 
-        int f = 0;
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-            for (int idx = row_ptr[u], end = row_ptr[u + 1]; idx < end; idx++) {
-                int j = col_idx[idx];
-                // if randomly put an int 1-5 to entry (u, j), we cannot make sure equal size for each fold
-                assignMatrix.set(u, j, fold[f++]);
+        return new TimeIndex(rowPtr, colInd, rateMatrix.numColumns, times);
+    }
+
+    /**
+     * Preserve the most recent non-zero rating of each segment (e.g., row or column) of a time order as test
+     *
+     * @param ptr   pointers of segments
+     * @param order positions of ratings in time order
+     * @param parts the part of each rating in the order of CRS
+     */
+    private void lastByDate(int[] ptr, int[] order, byte[] parts) {
+        for (int s = 0; s < ptr.length - 1; s++) {
+            for (int k = ptr[s + 1] - 1; k >= ptr[s]; k--) {
+                int idx = order[k];
+                if (rateMatrix.rowData[idx] != 0) {
+                    parts[idx] = TEST;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Split the non-zero ratings of each segment (e.g., row or column) of a time order into training and test: the
+     * earliest ones of each segment are for training, and the rest for test
+     *
+     * @param ptr      pointers of segments
+     * @param order    positions of ratings in time order
+     * @param ratio    ratio of training ratings of each segment, used if numGiven is not positive
+     * @param numGiven number of training ratings of each segment
+     * @param parts    the part of each rating in the order of CRS
+     */
+    private void splitByDate(int[] ptr, int[] order, double ratio, int numGiven, byte[] parts) {
+        double[] rowData = rateMatrix.rowData;
+
+        for (int s = 0; s < ptr.length - 1; s++) {
+            int size = 0;
+            for (int k = ptr[s]; k < ptr[s + 1]; k++) {
+                if (rowData[order[k]] != 0)
+                    size++;
+            }
+
+            int trainSize = numGiven > 0 ? numGiven : (int) (size * ratio);
+            for (int k = ptr[s], i = 0; k < ptr[s + 1]; k++) {
+                int idx = order[k];
+                if (rowData[idx] != 0)
+                    parts[idx] = i++ < trainSize ? TRAIN : TEST;
+            }
+        }
+    }
+
+    /**
+     * Compact the non-zero ratings of each part into a matrix of the same size as the rate matrix
+     *
+     * @param parts    the part of each rating in the order of CRS
+     * @param numParts number of parts
+     * @return a matrix for each part
+     */
+    private SparseMatrix[] split(byte[] parts, int numParts) {
+        byte[] partOf = new byte[numParts];
+        for (int k = 0; k < numParts; k++)
+            partOf[k] = (byte) k;
+
+        return split(parts, partOf, numParts);
+    }
+
+    /**
+     * Compact the non-zero ratings of each part into a matrix of the same size as the rate matrix
+     *
+     * @param assign   the (unsigned) assignment of each rating in the order of CRS
+     * @param partOf   the part of each assignment
+     * @param numParts number of parts
+     * @return a matrix for each part
+     */
+    private SparseMatrix[] split(byte[] assign, byte[] partOf, int numParts) {
+        int rows = rateMatrix.numRows, cols = rateMatrix.numColumns;
+        int[] rowPtr = rateMatrix.rowPtr, colInd = rateMatrix.colInd;
+        double[] rowData = rateMatrix.rowData;
+
+        // number of ratings of each part and each column
+        int[][] colPtr = new int[numParts][cols + 1];
+        for (int idx = 0; idx < assign.length; idx++) {
+            if (rowData[idx] != 0)
+                colPtr[partOf[assign[idx] & 0xff]][colInd[idx] + 1]++;
+        }
+
+        int[][] rowPtrs = new int[numParts][rows + 1], colInds = new int[numParts][], rowInds = new int[numParts][];
+        double[][] rowDatas = new double[numParts][], colDatas = new double[numParts][];
+        // the next position of each part and each column in CCS
+        int[][] next = new int[numParts][];
+        for (int k = 0; k < numParts; k++) {
+            int[] ptr = colPtr[k];
+            for (int j = 0; j < cols; j++)
+                ptr[j + 1] += ptr[j];
+
+            int size = ptr[cols];
+            colInds[k] = new int[size];
+            rowDatas[k] = new double[size];
+            rowInds[k] = new int[size];
+            colDatas[k] = new double[size];
+            next[k] = Arrays.copyOf(ptr, cols);
+        }
+
+        // rows are visited in order, hence both CRS and CCS are sorted
+        int[] sizes = new int[numParts];
+        for (int u = 0; u < rows; u++) {
+            for (int idx = rowPtr[u], end = rowPtr[u + 1]; idx < end; idx++) {
+                double val = rowData[idx];
+                if (val == 0)
+                    continue;
+
+                int k = partOf[assign[idx] & 0xff], j = colInd[idx];
+                int n = sizes[k]++;
+                colInds[k][n] = j;
+                rowDatas[k][n] = val;
+
+                int c = next[k][j]++;
+                rowInds[k][c] = u;
+                colDatas[k][c] = val;
             }
+
+            for (int k = 0; k < numParts; k++)
+                rowPtrs[k][u + 1] = sizes[k];
         }
+
+        SparseMatrix[] res = new SparseMatrix[numParts];
+        for (int k = 0; k < numParts; k++)
+            res[k] = new SparseMatrix(rows, cols, rowPtrs[k], colInds[k], rowDatas[k], colPtr[k], rowInds[k],
+                    colDatas[k]);
+
+        return res;
     }
 
     /**
@@ -119,28 +277,20 @@ public class DataSplitter {
 
         assert (ratio > 0 && ratio < 1);
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
-            SparseVector uv = rateMatrix.row(u);
-            for (int j : uv.getIndex()) {
+        for (int idx = 0; idx < parts.length; idx++) {
+            if (rateMatrix.rowData[idx] == 0)
+                continue;
 
-                double rdm = Randoms.uniform();
-                if (rdm < ratio)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
-            }
+            double rdm = Randoms.uniform();
+            parts[idx] = rdm < ratio ? TRAIN : TEST;
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
@@ -153,45 +303,22 @@ public class DataSplitter {
 
         assert (ratio > 0 && ratio < 1);
 
-        // sort timestamps from smaller to larger
-        List<RatingContext> rcs = new ArrayList<>(timestamps.size());
-        int u, i, j;
-        long timestamp;
-        for (MatrixEntry me : rateMatrix) {
-            u = me.row();
-            i = me.column();
-            timestamp = (long) timestamps.get(u, i);
-            rcs.add(new RatingContext(u, i, timestamp));
-        }
-        Collections.sort(rcs);
-
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        int trainSize = (int) (rcs.size() * ratio);
-        for (i = 0; i < rcs.size(); i++) {
-            RatingContext rc = rcs.get(i);
-            u = rc.getUser();
-            j = rc.getItem();
+        // ratings from earlier to later
+        int[] order = getTimeIndex(timestamps).order();
 
-            if (i < trainSize)
-                testMatrix.set(u, j, 0.0);
-            else
-                trainMatrix.set(u, j, 0.0);
-        }
-
-        // release memory
-        rcs = null;
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        int trainSize = (int) (order.length * ratio);
+        for (int i = trainSize; i < order.length; i++)
+            parts[order[i]] = TEST;
 
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split the ratings of each user (by date) into two parts: (ratio) training, (1-ratio) test subsets
      *
@@ -202,41 +329,17 @@ public class DataSplitter {
 
         assert (ratio > 0 && ratio < 1);
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int user = 0, um = rateMatrix.numRows; user < um; user++) {
-            List<Integer> unsortedItems = rateMatrix.getColumns(user);
-
-            int size = unsortedItems.size();
-            List<RatingContext> rcs = new ArrayList<>(size);
-            for (int item : unsortedItems) {
-                rcs.add(new RatingContext(user, item, (long) timeMatrix.get(user, item)));
-            }
-            Collections.sort(rcs);
-
-            int trainSize = (int) (rcs.size() * ratio);
-            for (int i = 0; i < rcs.size(); i++) {
-                RatingContext rc = rcs.get(i);
-                int u = rc.getUser();
-                int j = rc.getItem();
-
-                if (i < trainSize)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
-            }
-        }
-
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        TimeIndex times = getTimeIndex(timeMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
+        splitByDate(times.rowPointers(), times.rowOrder(), ratio, -1, parts);
 
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split the ratings of each item (by date) into two parts: (ratio) training, (1-ratio) test subsets
      *
@@ -247,41 +350,17 @@ public class DataSplitter {
 
         assert (ratio > 0 && ratio < 1);
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int item = 0, im = rateMatrix.numColumns; item < im; item++) {
-            List<Integer> unsortedUsers = rateMatrix.getRows(item);
+        TimeIndex times = getTimeIndex(timestamps);
+        byte[] parts = new byte[rateMatrix.rowData.length];
+        splitByDate(times.columnPointers(), times.columnOrder(), ratio, -1, parts);
 
-            int size = unsortedUsers.size();
-            List<RatingContext> rcs = new ArrayList<>(size);
-            for (int user : unsortedUsers) {
-                rcs.add(new RatingContext(user, item, (long) timestamps.get(user, item)));
-            }
-            Collections.sort(rcs);
-
-            int trainSize = (int) (rcs.size() * ratio);
-            for (int i = 0; i < rcs.size(); i++) {
-                RatingContext rc = rcs.get(i);
-                int u = rc.getUser();
-                int j = rc.getItem();
-
-                if (i < trainSize)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
-            }
-        }
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split ratings into: (train-ratio) training, (validation-ratio) validation, and test three subsets.
      *
@@ -292,40 +371,25 @@ public class DataSplitter {
 
         assert (trainRatio > 0 && validRatio > 0 && (trainRatio + validRatio) < 1);
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix validMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        // parts of training, validation and test
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         double sum = trainRatio + validRatio;
 
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
+        for (int idx = 0; idx < parts.length; idx++) {
+            if (rateMatrix.rowData[idx] == 0)
+                continue;
 
-            SparseVector uv = rateMatrix.row(u);
-            for (int j : uv.getIndex()) {
-
-                double rdm = Randoms.random();
-                if (rdm < trainRatio) {
-                    // for training
-                    testMatrix.set(u, j, 0);
-                    validMatrix.set(u, j, 0);
-                } else if (rdm < sum) {
-                    // for validation
-                    trainMatrix.set(u, j, 0);
-                    testMatrix.set(u, j, 0);
-                } else {
-                    // for test
-                    trainMatrix.set(u, j, 0);
-                    validMatrix.set(u, j, 0);
-                }
-            }
+            double rdm = Randoms.random();
+            if (rdm < trainRatio)
+                parts[idx] = 0;
+            else if (rdm < sum)
+                parts[idx] = 1;
+            else
+                parts[idx] = 2;
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(validMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        return new SparseMatrix[]{trainMatrix, validMatrix, testMatrix};
+        return split(parts, 3);
     }
 
     /**
@@ -334,98 +398,58 @@ public class DataSplitter {
      */
     public SparseMatrix[] getLOOByUser(boolean isByDate, SparseMatrix timestamps) throws Exception {
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-
-        // for building test matrix
-        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-
-            List<Integer> items = rateMatrix.getColumns(u);
-            int i = -1;
-
-            if (!isByDate) {
+        if (!isByDate) {
+            for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
                 // by random
+                List<Integer> items = rateMatrix.getColumns(u);
                 int randIdx = (int) (items.size() * Math.random());
-                i = items.get(randIdx);
-            } else {
-                // by date
-                List<RatingContext> rcs = new ArrayList<>();
-                for (int j : items) {
-                    rcs.add(new RatingContext(u, j, (long) timestamps.get(u, j)));
-                }
-                Collections.sort(rcs);
 
-                i = rcs.get(rcs.size() - 1).getItem(); // most recent item
+                parts[index(u, items.get(randIdx))] = TEST; // remove from training
             }
-
-            trainMatrix.set(u, i, 0); // remove from training
-
-            dataTable.put(u, i, rateMatrix.get(u, i));
-            colMap.put(i, u);
+        } else {
+            // by date: the most recent item of each user
+            TimeIndex times = getTimeIndex(timestamps);
+            lastByDate(times.rowPointers(), times.rowOrder(), parts);
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-
-        // build test matrix
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix.numRows, rateMatrix.numColumns, dataTable, colMap);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split ratings into two parts where one rating per item is preserved as the test set and the remaining data as the
      * training set
      */
     public SparseMatrix[] getLOOByItem(boolean isByDate, SparseMatrix timestamps) throws Exception {
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-
-        // for building test matrix
-        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-        Multimap<Integer, Integer> colMap = HashMultimap.create();
-
-        for (int i = 0, im = rateMatrix.numColumns(); i < im; i++) {
-
-            List<Integer> users = rateMatrix.getRows(i);
-            int u = -1;
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
-            if (!isByDate) {
+        if (!isByDate) {
+            for (int i = 0, im = rateMatrix.numColumns(); i < im; i++) {
                 // by random
+                List<Integer> users = rateMatrix.getRows(i);
                 int randIdx = (int) (users.size() * Math.random());
-                u = users.get(randIdx);
-            } else {
-                // by date
-                List<RatingContext> rcs = new ArrayList<>();
-                for (int v : users) {
-                    rcs.add(new RatingContext(v, i, (long) timestamps.get(v, i)));
-                }
-                Collections.sort(rcs);
 
-                u = rcs.get(rcs.size() - 1).getUser(); // most recent rating user
+                parts[index(users.get(randIdx), i)] = TEST; // remove from training
             }
-
-            trainMatrix.set(u, i, 0); // remove from training
-
-            dataTable.put(u, i, rateMatrix.get(u, i));
-            colMap.put(i, u);
+        } else {
+            // by date: the most recent rating user of each item
+            TimeIndex times = getTimeIndex(timestamps);
+            lastByDate(times.columnPointers(), times.columnOrder(), parts);
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-
-        // build test matrix
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix.numRows, rateMatrix.numColumns, dataTable, colMap);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split ratings into two parts: the training set consisting of user-item ratings where {@code numGiven} ratings are
      * preserved for each user, and the rest are used as the testing data
@@ -434,8 +458,7 @@ public class DataSplitter {
 
         assert numGiven > 0;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
 
@@ -450,28 +473,21 @@ public class DataSplitter {
                 for (int i = 0, j = 0; j < numRated; j++) {
                     if (i < givenIndex.length && givenIndex[i] == j) {
                         // for training
-                        testMatrix.set(u, items.get(j), 0.0);
                         i++;
                     } else {
                         // for testing
-                        trainMatrix.set(u, items.get(j), 0.0);
+                        parts[index(u, items.get(j))] = TEST;
                     }
                 }
-            } else {
-                // all ratings are used for training
-                for (int j : items)
-                    testMatrix.set(u, j, 0.0);
             }
+            // otherwise, all ratings are used for training
 
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
@@ -482,40 +498,17 @@ public class DataSplitter {
 
         assert numGiven > 0;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
-
-            List<Integer> items = rateMatrix.getColumns(u);
-            int capacity = Lists.initSize(items.size());
-
-            List<RatingContext> rcs = new ArrayList<>(capacity);
-            for (int j : items) {
-                rcs.add(new RatingContext(u, j, (long) timestamps.get(u, j)));
-            }
-            Collections.sort(rcs);
-
-            for (int i = 0; i < rcs.size(); i++) {
-                RatingContext rc = rcs.get(i);
-                int j = rc.getItem();
-
-                if (i < numGiven)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
-            }
-        }
+        TimeIndex times = getTimeIndex(timestamps);
+        byte[] parts = new byte[rateMatrix.rowData.length];
+        splitByDate(times.rowPointers(), times.rowOrder(), 0, numGiven, parts);
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split ratings into two parts: the training set consisting of user-item ratings where {@code numGiven} earliest
      * ratings are preserved for each item, and the rest are used as the testing data
@@ -524,40 +517,17 @@ public class DataSplitter {
 
         assert numGiven > 0;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
-
-        for (int j = 0, jm = rateMatrix.numRows(); j < jm; j++) {
-
-            List<Integer> users = rateMatrix.getRows(j);
-            int capacity = Lists.initSize(users.size());
-
-            List<RatingContext> rcs = new ArrayList<>(capacity);
-            for (int u : users) {
-                rcs.add(new RatingContext(u, j, (long) timestamps.get(u, j)));
-            }
-            Collections.sort(rcs);
+        TimeIndex times = getTimeIndex(timestamps);
+        byte[] parts = new byte[rateMatrix.rowData.length];
+        splitByDate(times.columnPointers(), times.columnOrder(), 0, numGiven, parts);
 
-            for (int i = 0; i < rcs.size(); i++) {
-                RatingContext rc = rcs.get(i);
-                int u = rc.getUser();
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-                if (i < numGiven)
-                    testMatrix.set(u, j, 0.0);
-                else
-                    trainMatrix.set(u, j, 0.0);
-            }
-        }
-
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
+
     /**
      * Split ratings into two parts: the training set consisting of user-item ratings where {@code numGiven} ratings are
      * preserved for each item, and the rest are used as the testing data
@@ -566,8 +536,7 @@ public class DataSplitter {
 
         assert numGiven > 0;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         for (int j = 0, jm = rateMatrix.numColumns(); j < jm; j++) {
 
@@ -582,28 +551,21 @@ public class DataSplitter {
                 for (int i = 0, k = 0; k < numRated; k++) {
                     if (i < givenIndex.length && givenIndex[i] == k) {
                         // for training
-                        testMatrix.set(users.get(k), j, 0.0);
                         i++;
                     } else {
                         // for testing
-                        trainMatrix.set(users.get(k), j, 0.0);
+                        parts[index(users.get(k), j)] = TEST;
                     }
                 }
-            } else {
-                // all ratings are used for training
-                for (int u : users)
-                    testMatrix.set(u, j, 0.0);
             }
+            // otherwise, all ratings are used for training
 
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
@@ -614,8 +576,7 @@ public class DataSplitter {
 
         assert ratio > 0 && ratio < 1;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
 
@@ -623,21 +584,15 @@ public class DataSplitter {
 
             for (int j : items) {
                 double rand = Randoms.random();
-                if (rand < ratio)
-                    testMatrix.set(u, j, 0.0); // for training
-                else
-                    trainMatrix.set(u, j, 0.0); // for testing
+                parts[index(u, j)] = rand < ratio ? TRAIN : TEST;
             }
 
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        debugInfo(trainMatrix, testMatrix, -1);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
@@ -648,8 +603,7 @@ public class DataSplitter {
 
         assert ratio > 0 && ratio < 1;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         for (int i = 0, im = rateMatrix.numColumns(); i < im; i++) {
 
@@ -658,22 +612,15 @@ public class DataSplitter {
             for (int u : users) {
 
                 double rand = Randoms.random();
-                if (rand < ratio)
-                    // for training
-                    testMatrix.set(u, i, 0.0);
-                else
-                    // for testing
-                    trainMatrix.set(u, i, 0.0);
+                parts[index(u, i)] = rand < ratio ? TRAIN : TEST;
             }
 
         }
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
 
-        debugInfo(trainMatrix, testMatrix, -1);
+        SparseMatrix[] data = split(parts, 2);
+        debugInfo(data[0], data[1], -1);
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
@@ -716,32 +663,21 @@ public class DataSplitter {
     }
 
     public SparseMatrix[] getDataView(String view) {
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] parts = new byte[rateMatrix.rowData.length];
 
         switch (view.toLowerCase()) {
             case "cold-start":
                 for (int u = 0, um = rateMatrix.numRows; u < um; u++) {
                     SparseVector uv = rateMatrix.row(u);
-                    if (uv.getCount() < 5) {
-                        for (int i : uv.getIndex())
-                            trainMatrix.set(u, i, 0.0);
-
-                    } else {
-                        for (int i : uv.getIndex())
-                            testMatrix.set(u, i, 0.0);
-                    }
+                    if (uv.getCount() < 5)
+                        Arrays.fill(parts, rateMatrix.rowPtr[u], rateMatrix.rowPtr[u + 1], TEST);
                 }
                 break;
             default:
                 return null;
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
-
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return split(parts, 2);
     }
 
     /**
@@ -754,28 +690,179 @@ public class DataSplitter {
         if (k > numFold || k < 1)
             return null;
 
-        SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-        SparseMatrix testMatrix = new SparseMatrix(rateMatrix);
+        byte[] partOf = new byte[numFold];
+        partOf[k - 1] = TEST;
 
-        for (int u = 0, um = rateMatrix.numRows(); u < um; u++) {
+        SparseMatrix[] data = split(folds, partOf, 2);
+        debugInfo(data[0], data[1], k);
 
-            SparseVector items = rateMatrix.row(u);
+        return data;
+    }
+
+    /**
+     * Return all the folds at once, for callers holding them all rather than building each fold on demand by
+     * {@code getKthFold}. The ratings of each fold are counted by rows and columns in one pass, from which the
+     * pointers of all the training and test sets follow; then rows and columns are filled in one parallel pass, each
+     * rating being written to the test set of its fold and to the training sets of the other folds.
+     *
+     * @param numThreads number of threads, all processors if non-positive
+     * @return Rating matrices {k-th train data, k-th test data} of the k-th fold at index k-1, the same as
+     *         {@code getKthFold(k)}
+     */
+    public SparseMatrix[][] getFolds(int numThreads) throws Exception {
+        final int rows = rateMatrix.numRows, cols = rateMatrix.numColumns, k = numFold;
+        final int[] rowPtr = rateMatrix.rowPtr, colInd = rateMatrix.colInd;
+        final double[] rowData = rateMatrix.rowData;
+
+        // number of ratings of each row and column: in all, and in the test set of each fold
+        int[] allRows = new int[rows + 1], allCols = new int[cols + 1];
+        final int[][] testRowPtr = new int[k][rows + 1], testColPtr = new int[k][cols + 1];
+        for (int u = 0; u < rows; u++) {
+            for (int idx = rowPtr[u]; idx < rowPtr[u + 1]; idx++) {
+                if (rowData[idx] == 0)
+                    continue;
+
+                int f = folds[idx] & 0xff, j = colInd[idx];
+                allRows[u + 1]++;
+                allCols[j + 1]++;
+                testRowPtr[f][u + 1]++;
+                testColPtr[f][j + 1]++;
+            }
+        }
 
-            for (int j : items.getIndex()) {
-                if (assignMatrix.get(u, j) == k)
-                    trainMatrix.set(u, j, 0.0); // keep test data and remove train data
-                else
-                    testMatrix.set(u, j, 0.0); // keep train data and remove test data
+        // training sets of a fold are the rest of ratings
+        final int[][] trainRowPtr = new int[k][rows + 1], trainColPtr = new int[k][cols + 1];
+        for (int u = 0; u < rows; u++)
+            allRows[u + 1] += allRows[u];
+        for (int j = 0; j < cols; j++)
+            allCols[j + 1] += allCols[j];
+        for (int f = 0; f < k; f++) {
+            for (int u = 0; u < rows; u++) {
+                testRowPtr[f][u + 1] += testRowPtr[f][u];
+                trainRowPtr[f][u + 1] = allRows[u + 1] - testRowPtr[f][u + 1];
+            }
+            for (int j = 0; j < cols; j++) {
+                testColPtr[f][j + 1] += testColPtr[f][j];
+                trainColPtr[f][j + 1] = allCols[j + 1] - testColPtr[f][j + 1];
             }
         }
 
-        // remove zero entries
-        SparseMatrix.reshape(trainMatrix);
-        SparseMatrix.reshape(testMatrix);
+        final int[][] trainCols = new int[k][], testCols = new int[k][];
+        final int[][] trainRows = new int[k][], testRows = new int[k][];
+        final double[][] trainRowData = new double[k][], testRowData = new double[k][];
+        final double[][] trainColData = new double[k][], testColData = new double[k][];
+        for (int f = 0; f < k; f++) {
+            int numTest = testRowPtr[f][rows], numTrain = allRows[rows] - numTest;
+            trainCols[f] = new int[numTrain];
+            trainRowData[f] = new double[numTrain];
+            trainRows[f] = new int[numTrain];
+            trainColData[f] = new double[numTrain];
+            testCols[f] = new int[numTest];
+            testRowData[f] = new double[numTest];
+            testRows[f] = new int[numTest];
+            testColData[f] = new double[numTest];
+        }
 
-        debugInfo(trainMatrix, testMatrix, k);
+        // position in CRS of each rating in CCS, whose ratings of a column are sorted by rows
+        final int[] crsOf = new int[rowData.length];
+        int[] next = Arrays.copyOf(rateMatrix.colPtr, cols);
+        for (int idx = 0; idx < rowData.length; idx++)
+            crsOf[next[colInd[idx]]++] = idx;
+        final int[] colPtr = rateMatrix.colPtr, rowInd = rateMatrix.rowInd;
+
+        // rows [0, rows) and then columns [rows, rows + cols) in chunks
+        final int total = rows + cols, chunk = 256;
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        final Exception[] error = new Exception[1];
+        int cpus = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(1, Math.min(cpus, (total + chunk - 1) / chunk));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch latch = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        int[] train = new int[k], test = new int[k];
+                        int from;
+                        while ((from = nextChunk.getAndAdd(chunk)) < total && error[0] == null) {
+                            for (int s = from, to = Math.min(total, from + chunk); s < to; s++) {
+                                if (s < rows) {
+                                    int u = s;
+                                    for (int f = 0; f < k; f++) {
+                                        train[f] = trainRowPtr[f][u];
+                                        test[f] = testRowPtr[f][u];
+                                    }
+
+                                    for (int idx = rowPtr[u]; idx < rowPtr[u + 1]; idx++) {
+                                        double val = rowData[idx];
+                                        if (val == 0)
+                                            continue;
+
+                                        int f = folds[idx] & 0xff, j = colInd[idx];
+                                        testCols[f][test[f]] = j;
+                                        testRowData[f][test[f]++] = val;
+                                        for (int g = 0; g < k; g++) {
+                                            if (g != f) {
+                                                trainCols[g][train[g]] = j;
+                                                trainRowData[g][train[g]++] = val;
+                                            }
+                                        }
+                                    }
+                                } else {
+                                    int j = s - rows;
+                                    for (int f = 0; f < k; f++) {
+                                        train[f] = trainColPtr[f][j];
+                                        test[f] = testColPtr[f][j];
+                                    }
+
+                                    for (int c = colPtr[j]; c < colPtr[j + 1]; c++) {
+                                        int idx = crsOf[c];
+                                        double val = rowData[idx];
+                                        if (val == 0)
+                                            continue;
+
+                                        int f = folds[idx] & 0xff, u = rowInd[c];
+                                        testRows[f][test[f]] = u;
+                                        testColData[f][test[f]++] = val;
+                                        for (int g = 0; g < k; g++) {
+                                            if (g != f) {
+                                                trainRows[g][train[g]] = u;
+                                                trainColData[g][train[g]++] = val;
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+        executor.shutdown();
+
+        if (error[0] != null)
+            throw error[0];
+
+        SparseMatrix[][] data = new SparseMatrix[k][];
+        for (int f = 0; f < k; f++) {
+            data[f] = new SparseMatrix[] {
+                    new SparseMatrix(rows, cols, trainRowPtr[f], trainCols[f], trainRowData[f], trainColPtr[f],
+                            trainRows[f], trainColData[f]),
+                    new SparseMatrix(rows, cols, testRowPtr[f], testCols[f], testRowData[f], testColPtr[f],
+                            testRows[f], testColData[f]) };
+            debugInfo(data[f][0], data[f][1], f + 1);
+        }
 
-        return new SparseMatrix[]{trainMatrix, testMatrix};
+        return data;
     }
 
     /**
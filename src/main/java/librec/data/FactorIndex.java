@@ -0,0 +1,246 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import librec.util.LineConfiger;
+import librec.util.Logs;
+import librec.util.TopK;
+
+/**
+ * Top-N retrieval over the rows of an item-factor matrix, where the score of item j for a query vector q is the inner
+ * product {@code q * Q_j}. Implementations are built once per model snapshot and then queried concurrently.
+ *
+ * @author wubin
+ */
+public abstract class FactorIndex {
+
+	// item factors, rows are items
+	protected double[][] factors;
+	// number of items, factors
+	protected int numItems, numFactors;
+	// number of threads used to build the index
+	protected int numThreads;
+
+	protected FactorIndex(int numThreads) {
+		setNumThreads(numThreads);
+	}
+
+	/**
+	 * set the number of threads used to build the index; all available processors if non-positive
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Create an index according to the item ranking options, e.g., {@code -index norm}, or
+	 * {@code -index ivf -nlist 128 -nprobe 8}
+	 *
+	 * @param options
+	 *            item ranking options
+	 * @param numThreads
+	 *            number of threads used to build the index
+	 * @return a retrieval index, or null if no index is specified
+	 */
+	public static FactorIndex create(LineConfiger options, int numThreads) {
+		String type = options.getString("-index");
+		if (type == null)
+			return null;
+
+		switch (type.toLowerCase()) {
+		case "norm":
+			return new NormIndex(numThreads);
+		case "ivf":
+			return new IVFIndex(options.getInt("-nlist", 0), options.getInt("-nprobe", 8), options.getInt(
+					"-kmeans-iter", 10), numThreads);
+		case "exact":
+		case "none":
+			return null;
+		default:
+			Logs.error("Unknown retrieval index: {}", type);
+			System.exit(-1);
+		}
+		return null;
+	}
+
+	/**
+	 * Build the index from a snapshot of item factors
+	 *
+	 * @param Q
+	 *            item-factor matrix
+	 */
+	public void build(DenseMatrix Q) throws Exception {
+		factors = Q.data;
+		numItems = Q.numRows;
+		numFactors = Q.numColumns;
+
+		buildIndex();
+	}
+
+	/**
+	 * build index structures from {@code factors}
+	 */
+	protected abstract void buildIndex() throws Exception;
+
+	/**
+	 * Retrieve the top-N items for a query vector
+	 *
+	 * @param query
+	 *            query vector, e.g., a user's latent factors
+	 * @param n
+	 *            number of items to retrieve
+	 * @param excluded
+	 *            sorted ids of items that cannot be retrieved, e.g., training items of a user; can be null
+	 * @param items
+	 *            output item ids sorted by descending scores
+	 * @param scores
+	 *            output scores of items; can be null
+	 * @return the number of retrieved items
+	 */
+	public abstract int topN(double[] query, int n, int[] excluded, int[] items, double[] scores);
+
+	/**
+	 * @return a short description of the index settings
+	 */
+	public abstract String toString();
+
+	/**
+	 * Exact top-N retrieval by scanning all items
+	 */
+	public static int exactTopN(double[][] factors, double[] query, int n, int[] excluded, int[] items,
+			double[] scores) {
+		TopK heap = new TopK(n);
+		for (int j = 0; j < factors.length; j++) {
+			if (isExcluded(excluded, j))
+				continue;
+
+			heap.offer(j, inner(query, factors[j]));
+		}
+
+		return heap.drain(items, scores);
+	}
+
+	/**
+	 * @return the inner product of two vectors
+	 */
+	protected static double inner(double[] a, double[] b) {
+		double res = 0;
+		for (int f = 0; f < a.length; f++)
+			res += a[f] * b[f];
+
+		return res;
+	}
+
+	/**
+	 * @return whether item j is in the sorted array of excluded items
+	 */
+	protected static boolean isExcluded(int[] excluded, int j) {
+		return excluded != null && excluded.length > 0 && Arrays.binarySearch(excluded, j) >= 0;
+	}
+
+	/**
+	 * Compute the recall@N of this index against exact search, averaged over a set of query users
+	 *
+	 * @param P
+	 *            user-factor matrix
+	 * @param trainMatrix
+	 *            training data whose items are excluded from retrieval
+	 * @param users
+	 *            query users
+	 * @param n
+	 *            cutoff N
+	 * @return average recall@N of the top-N items
+	 */
+	public double recall(DenseMatrix P, SparseMatrix trainMatrix, int[] users, int n) {
+		int[] exact = new int[n], approx = new int[n];
+		double sum = 0;
+		int count = 0;
+
+		for (int u : users) {
+			int[] excluded = trainMatrix.row(u).getIndex();
+			int ne = exactTopN(factors, P.data[u], n, excluded, exact, null);
+			if (ne == 0)
+				continue;
+
+			int na = topN(P.data[u], n, excluded, approx, null);
+			Arrays.sort(exact, 0, ne);
+
+			int hits = 0;
+			for (int i = 0; i < na; i++)
+				if (Arrays.binarySearch(exact, 0, ne, approx[i]) >= 0)
+					hits++;
+
+			sum += (hits + 0.0) / ne;
+			count++;
+		}
+
+		return count > 0 ? sum / count : 1.0;
+	}
+
+	/**
+	 * A piece of work over a range [from, to) of items
+	 */
+	protected interface RangeTask {
+		void run(int from, int to, int block) throws Exception;
+	}
+
+	/**
+	 * Run a task over item blocks in parallel, one block per thread
+	 */
+	protected void parallel(int size, final RangeTask task) throws Exception {
+		int blocks = Math.max(1, Math.min(numThreads, size));
+		if (blocks == 1) {
+			task.run(0, size, 0);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(blocks);
+		final CountDownLatch latch = new CountDownLatch(blocks);
+		final Exception[] error = new Exception[1];
+		int step = (size + blocks - 1) / blocks;
+
+		for (int b = 0; b < blocks; b++) {
+			final int from = b * step, to = Math.min(size, from + step), block = b;
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						task.run(from, to, block);
+					} catch (Exception e) {
+						error[0] = e;
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+		executor.shutdown();
+
+		if (error[0] != null)
+			throw error[0];
+	}
+}
@@ -0,0 +1,269 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import librec.util.Stats;
+
+/**
+ * An immutable sparse matrix, see {@code SparseMatrix.freeze()}. <br>
+ *
+ * The matrix shares the compressed row and column storages of the matrix it is frozen from, and precomputes the
+ * statistics that are otherwise recomputed on every query: the number of non-zero entries, the non-zero sizes of rows
+ * and columns, the lists of non-empty rows and columns, and the sum of data. The set of values is not kept. <br>
+ *
+ * All mutators throw {@code UnsupportedOperationException}, so that the matrix can be shared by threads without
+ * defensive copies. Note that the storages are still exposed to code that reads them directly, which must not write
+ * them; and that the matrix it is frozen from must not be modified afterwards.
+ *
+ * @author wubin
+ */
+public class FrozenSparseMatrix extends SparseMatrix {
+
+	private static final long serialVersionUID = 3516072485941629340L;
+
+	// number of non-zero entries
+	private final int size;
+	// number of non-zero entries of each row and column
+	private final int[] rowSizes, colSizes;
+	// non-empty rows and columns, and all columns
+	private final List<Integer> rows, columns, allColumns;
+	// sum of matrix data
+	private final double sum;
+
+	FrozenSparseMatrix(SparseMatrix mat) {
+		numRows = mat.numRows;
+		numColumns = mat.numColumns;
+
+		rowData = mat.rowData;
+		rowPtr = mat.rowPtr;
+		colInd = mat.colInd;
+		colData = mat.colData;
+		colPtr = mat.colPtr;
+		rowInd = mat.rowInd;
+
+		int nnz = 0;
+		rowSizes = new int[numRows];
+		colSizes = new int[numColumns];
+		List<Integer> rs = new ArrayList<>();
+		for (int u = 0; u < numRows; u++) {
+			for (int idx = rowPtr[u]; idx < rowPtr[u + 1]; idx++) {
+				if (rowData[idx] != 0.0) {
+					rowSizes[u]++;
+					colSizes[colInd[idx]]++;
+				}
+			}
+			if (rowSizes[u] > 0)
+				rs.add(u);
+			nnz += rowSizes[u];
+		}
+
+		List<Integer> cs = new ArrayList<>(), all = new ArrayList<>(numColumns);
+		for (int j = 0; j < numColumns; j++) {
+			if (colSizes[j] > 0)
+				cs.add(j);
+			all.add(j);
+		}
+
+		size = nnz;
+		rows = Collections.unmodifiableList(rs);
+		columns = Collections.unmodifiableList(cs);
+		allColumns = Collections.unmodifiableList(all);
+		sum = Stats.sum(rowData);
+	}
+
+	@Override
+	public FrozenSparseMatrix freeze() {
+		return this;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int rowSize(int row) {
+		return rowSizes[row];
+	}
+
+	@Override
+	public int columnSize(int col) {
+		return colSizes[col];
+	}
+
+	/**
+	 * @return an unmodifiable list of rows which have at least one non-empty entry
+	 */
+	@Override
+	public List<Integer> rows() {
+		return rows;
+	}
+
+	/**
+	 * @return an unmodifiable list of columns which have at least one non-empty entry
+	 */
+	@Override
+	public List<Integer> columns() {
+		return columns;
+	}
+
+	/**
+	 * @return an unmodifiable list of all columns
+	 */
+	@Override
+	public List<Integer> allcolumns() {
+		return allColumns;
+	}
+
+	@Override
+	public double sum() {
+		return sum;
+	}
+
+	@Override
+	public void set(int row, int column, double val) {
+		throw new UnsupportedOperationException("A frozen matrix is immutable");
+	}
+
+	@Override
+	public void add(int row, int column, double val) {
+		throw new UnsupportedOperationException("A frozen matrix is immutable");
+	}
+
+	@Override
+	public void normalize(double min, double max) {
+		throw new UnsupportedOperationException("A frozen matrix is immutable");
+	}
+
+	@Override
+	public void standardize(boolean isByRow) {
+		throw new UnsupportedOperationException("A frozen matrix is immutable");
+	}
+
+	@Override
+	public Iterator<MatrixEntry> iterator() {
+		final Iterator<MatrixEntry> it = super.iterator();
+
+		return new UnmodifiableIterator<MatrixEntry>() {
+
+			private MatrixEntry me;
+
+			private final MatrixEntry entry = new MatrixEntry() {
+
+				@Override
+				public int row() {
+					return me.row();
+				}
+
+				@Override
+				public int column() {
+					return me.column();
+				}
+
+				@Override
+				public double get() {
+					return me.get();
+				}
+
+				@Override
+				public void set(double value) {
+					throw new UnsupportedOperationException("A frozen matrix is immutable");
+				}
+			};
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public MatrixEntry next() {
+				me = it.next();
+				return entry;
+			}
+		};
+	}
+
+	@Override
+	public Iterator<VectorEntry> colIterator(int row) {
+		return readOnly(super.colIterator(row));
+	}
+
+	@Override
+	public Iterator<VectorEntry> rowIterator(int col) {
+		return readOnly(super.rowIterator(col));
+	}
+
+	private static Iterator<VectorEntry> readOnly(final Iterator<VectorEntry> it) {
+		return new UnmodifiableIterator<VectorEntry>() {
+
+			private VectorEntry ve;
+
+			private final VectorEntry entry = new VectorEntry() {
+
+				@Override
+				public int index() {
+					return ve.index();
+				}
+
+				@Override
+				public double get() {
+					return ve.get();
+				}
+
+				@Override
+				public void set(double value) {
+					throw new UnsupportedOperationException("A frozen matrix is immutable");
+				}
+			};
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public VectorEntry next() {
+				ve = it.next();
+				return entry;
+			}
+		};
+	}
+
+	/**
+	 * @return the set of values, collected on demand as it is not kept
+	 */
+	@Override
+	public Set<Double> getValueSet() {
+		Set<Double> values = new TreeSet<>();
+		for (double val : rowData)
+			values.add(val);
+
+		return Collections.unmodifiableSet(values);
+	}
+}
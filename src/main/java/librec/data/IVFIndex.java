@@ -0,0 +1,223 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.Arrays;
+
+import librec.util.Randoms;
+import librec.util.TopK;
+
+/**
+ * Approximate maximum inner product search (MIPS) by an inverted file (IVF) index. <br>
+ *
+ * Item vectors are augmented with an extra dimension {@code sqrt(M^2 - ||q_j||^2)}, where M is the maximum item norm,
+ * so that the largest inner products coincide with the nearest Euclidean neighbors of the query augmented with 0
+ * (Bachrach et al., <strong>Speeding up the Xbox recommender system using a euclidean transformation for
+ * inner-product spaces</strong>, RecSys 2014). The augmented vectors are clustered by k-means into {@code nlist} lists,
+ * and a query only scans the items of its {@code nprobe} closest lists: a larger {@code nprobe} gives higher recall at
+ * the cost of latency.
+ *
+ * @author wubin
+ */
+public class IVFIndex extends FactorIndex {
+
+	// number of inverted lists, lists to probe, k-means iterations
+	private int numLists, numProbes, numIters;
+
+	// centroids of augmented item vectors: the last column is the augmented dimension
+	private double[][] centroids;
+	// squared norms of centroids
+	private double[] centroidNorms;
+	// item ids in each inverted list
+	private int[][] lists;
+
+	/**
+	 * @param numLists
+	 *            number of inverted lists; sqrt(#items) if non-positive
+	 * @param numProbes
+	 *            number of lists to scan per query
+	 * @param numIters
+	 *            number of k-means iterations
+	 */
+	public IVFIndex(int numLists, int numProbes, int numIters, int numThreads) {
+		super(numThreads);
+
+		this.numLists = numLists;
+		this.numProbes = numProbes;
+		this.numIters = numIters;
+	}
+
+	@Override
+	protected void buildIndex() throws Exception {
+		final int k = Math.min(numItems, numLists > 0 ? numLists : (int) Math.ceil(Math.sqrt(numItems)));
+		final int dim = numFactors + 1;
+
+		// augmented dimension
+		final double[] extra = new double[numItems];
+		double maxNorm = 0;
+		for (int j = 0; j < numItems; j++) {
+			extra[j] = inner(factors[j], factors[j]);
+			if (extra[j] > maxNorm)
+				maxNorm = extra[j];
+		}
+		for (int j = 0; j < numItems; j++)
+			extra[j] = Math.sqrt(Math.max(0, maxNorm - extra[j]));
+
+		// initial centroids from distinct random items
+		centroids = new double[k][dim];
+		int[] seeds = Randoms.nextIntArray(k, numItems);
+		for (int c = 0; c < k; c++) {
+			System.arraycopy(factors[seeds[c]], 0, centroids[c], 0, numFactors);
+			centroids[c][numFactors] = extra[seeds[c]];
+		}
+		centroidNorms = new double[k];
+
+		final int[] assign = new int[numItems];
+		final int blocks = Math.max(1, Math.min(numThreads, numItems));
+		final double[][][] sums = new double[blocks][k][dim];
+		final int[][] counts = new int[blocks][k];
+
+		for (int iter = 0; iter <= numIters; iter++) {
+			updateNorms();
+
+			// assignment step, in parallel over item blocks
+			final boolean last = iter == numIters;
+			parallel(numItems, new RangeTask() {
+
+				@Override
+				public void run(int from, int to, int block) {
+					double[][] sum = sums[block];
+					int[] count = counts[block];
+					for (int c = 0; c < k; c++) {
+						Arrays.fill(sum[c], 0);
+						count[c] = 0;
+					}
+
+					for (int j = from; j < to; j++) {
+						int c = nearest(factors[j], extra[j]);
+						assign[j] = c;
+
+						if (!last) {
+							double[] s = sum[c];
+							for (int f = 0; f < numFactors; f++)
+								s[f] += factors[j][f];
+							s[numFactors] += extra[j];
+							count[c]++;
+						}
+					}
+				}
+			});
+
+			if (last)
+				break;
+
+			// update step: merge partial sums of blocks; empty clusters keep their centroids
+			for (int c = 0; c < k; c++) {
+				int n = 0;
+				for (int b = 0; b < blocks; b++)
+					n += counts[b][c];
+				if (n == 0)
+					continue;
+
+				for (int f = 0; f < dim; f++) {
+					double s = 0;
+					for (int b = 0; b < blocks; b++)
+						s += sums[b][c][f];
+					centroids[c][f] = s / n;
+				}
+			}
+		}
+
+		// inverted lists
+		int[] sizes = new int[k];
+		for (int j = 0; j < numItems; j++)
+			sizes[assign[j]]++;
+
+		lists = new int[k][];
+		for (int c = 0; c < k; c++)
+			lists[c] = new int[sizes[c]];
+
+		int[] pos = new int[k];
+		for (int j = 0; j < numItems; j++) {
+			int c = assign[j];
+			lists[c][pos[c]++] = j;
+		}
+	}
+
+	private void updateNorms() {
+		for (int c = 0; c < centroids.length; c++) {
+			double[] cv = centroids[c];
+			double norm = 0;
+			for (double v : cv)
+				norm += v * v;
+			centroidNorms[c] = norm;
+		}
+	}
+
+	/**
+	 * @return the closest centroid of an augmented item vector
+	 */
+	private int nearest(double[] vec, double extra) {
+		int best = 0;
+		double bestDist = Double.MAX_VALUE;
+		for (int c = 0; c < centroids.length; c++) {
+			double[] cv = centroids[c];
+			double dot = inner(vec, cv) + extra * cv[numFactors];
+
+			// ||x - c||^2 without the constant ||x||^2
+			double dist = centroidNorms[c] - 2 * dot;
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = c;
+			}
+		}
+
+		return best;
+	}
+
+	@Override
+	public int topN(double[] query, int n, int[] excluded, int[] items, double[] scores) {
+
+		// rank lists by the distance of the augmented query {q, 0} to centroids, i.e., by 2 q * c - ||c||^2
+		int probes = Math.min(numProbes, lists.length);
+		TopK close = new TopK(probes);
+		for (int c = 0; c < centroids.length; c++)
+			close.offer(c, 2 * inner(query, centroids[c]) - centroidNorms[c]);
+
+		int[] probed = new int[probes];
+		close.drain(probed, null);
+
+		TopK heap = new TopK(n);
+		for (int c : probed) {
+			for (int j : lists[c]) {
+				if (isExcluded(excluded, j))
+					continue;
+
+				heap.offer(j, inner(query, factors[j]));
+			}
+		}
+
+		return heap.drain(items, scores);
+	}
+
+	@Override
+	public String toString() {
+		return "IVF [nlist = " + (lists == null ? numLists : lists.length) + ", nprobe = " + numProbes + "]";
+	}
+}
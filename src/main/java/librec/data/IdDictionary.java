@@ -0,0 +1,489 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.BiMap;
+
+/**
+ * A compact dictionary of raw ids (e.g., user and item ids) to inner ids 0, 1, 2, ... in the order of insertion. <br>
+ *
+ * Raw ids are stored as UTF-8 bytes in one arena with an offset array for the reverse lookup, and indexed by an
+ * open-addressed hash table of int ids, i.e., about 30 bytes per id in addition to the id bytes, rather than hundreds
+ * bytes of String objects and hash entries of a {@code HashBiMap}. Ids can be looked up and added by bytes without
+ * creating Strings. <br>
+ *
+ * The dictionary is a {@code BiMap} for existing callers, whose {@code put} only accepts the next inner id (or an
+ * existing mapping). It is not thread-safe for concurrent additions: parallel parsers build one dictionary per chunk,
+ * which are merged in order by {@code addAll}, so that inner ids are deterministic. Lookups are safe once built.
+ *
+ * @author wubin
+ */
+public class IdDictionary extends AbstractMap<String, Integer> implements BiMap<String, Integer> {
+
+	// bytes of raw ids
+	private byte[] arena;
+	// offsets of raw ids in the arena, size + 1
+	private int[] offsets;
+	// hashes of raw ids
+	private int[] hashes;
+	// hash table of (inner id + 1), 0 if empty
+	private int[] table;
+	// number of ids
+	private int size;
+
+	private BiMap<Integer, String> inverse;
+
+	public IdDictionary() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            expected number of ids
+	 */
+	public IdDictionary(int capacity) {
+		capacity = Math.max(4, capacity);
+		arena = new byte[capacity * 8];
+		offsets = new int[capacity + 1];
+		hashes = new int[capacity];
+		table = new int[tableSize(capacity)];
+	}
+
+	private static int tableSize(int capacity) {
+		// load factor of at most 0.5
+		int n = 8;
+		while (n < 2 * capacity)
+			n <<= 1;
+		return n;
+	}
+
+	private static int hash(byte[] b, int off, int len) {
+		// FNV-1a with a final mix
+		int h = 0x811c9dc5;
+		for (int i = off, end = off + len; i < end; i++) {
+			h ^= b[i];
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private boolean equals(int id, byte[] b, int off, int len) {
+		int from = offsets[id];
+		if (offsets[id + 1] - from != len)
+			return false;
+		for (int i = 0; i < len; i++) {
+			if (arena[from + i] != b[off + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the slot of the table with raw id b[off, off + len), or the empty slot to insert it
+	 */
+	private int slot(int h, byte[] b, int off, int len) {
+		int mask = table.length - 1;
+		for (int s = h & mask;; s = (s + 1) & mask) {
+			int e = table[s];
+			if (e == 0 || (hashes[e - 1] == h && equals(e - 1, b, off, len)))
+				return s;
+		}
+	}
+
+	/**
+	 * @return the inner id of raw id b[off, off + len) in UTF-8, or -1 if absent
+	 */
+	public int getId(byte[] b, int off, int len) {
+		int e = table[slot(hash(b, off, len), b, off, len)];
+		return e - 1;
+	}
+
+	/**
+	 * @return the inner id of a raw id, or -1 if absent
+	 */
+	public int getId(String rawId) {
+		byte[] b = rawId.getBytes(Charsets.UTF_8);
+		return getId(b, 0, b.length);
+	}
+
+	/**
+	 * @return the inner id of raw id b[off, off + len) in UTF-8, which is added as the next inner id if absent
+	 */
+	public int add(byte[] b, int off, int len) {
+		int h = hash(b, off, len);
+		int s = slot(h, b, off, len);
+		if (table[s] != 0)
+			return table[s] - 1;
+
+		int id = size;
+		if (id + 1 >= offsets.length) {
+			int capacity = offsets.length + (offsets.length >> 1);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+			hashes = Arrays.copyOf(hashes, capacity);
+		}
+		int from = offsets[id];
+		if (from + len > arena.length)
+			arena = Arrays.copyOf(arena, Math.max(from + len, arena.length + (arena.length >> 1)));
+		System.arraycopy(b, off, arena, from, len);
+		offsets[id + 1] = from + len;
+		hashes[id] = h;
+		size++;
+
+		if (2 * size > table.length)
+			rehash(table.length * 2);
+		else
+			table[s] = id + 1;
+
+		return id;
+	}
+
+	/**
+	 * @return the inner id of a raw id, which is added as the next inner id if absent
+	 */
+	public int add(String rawId) {
+		byte[] b = rawId.getBytes(Charsets.UTF_8);
+		return add(b, 0, b.length);
+	}
+
+	/**
+	 * add the ids of another dictionary in their order
+	 *
+	 * @return the inner ids in this dictionary of the ids of the other dictionary
+	 */
+	public int[] addAll(IdDictionary dict) {
+		int[] res = new int[dict.size];
+		for (int id = 0; id < dict.size; id++)
+			res[id] = add(dict.arena, dict.offsets[id], dict.offsets[id + 1] - dict.offsets[id]);
+		return res;
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int s = hashes[id] & mask;
+			while (table[s] != 0)
+				s = (s + 1) & mask;
+			table[s] = id + 1;
+		}
+	}
+
+	/**
+	 * @return the raw id of an inner id
+	 */
+	public String getRawId(int id) {
+		if (id < 0 || id >= size)
+			return null;
+		return new String(arena, offsets[id], offsets[id + 1] - offsets[id], Charsets.UTF_8);
+	}
+
+	/**
+	 * @return the bytes of all raw ids; the raw id of inner id k is in [offset(k), offset(k + 1))
+	 */
+	public byte[] arena() {
+		return arena;
+	}
+
+	public int offset(int id) {
+		return offsets[id];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && getId((String) key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return value instanceof Integer && (Integer) value >= 0 && (Integer) value < size;
+	}
+
+	@Override
+	public Integer get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int id = getId((String) key);
+		return id < 0 ? null : id;
+	}
+
+	/**
+	 * map a raw id to an inner id, which must be the next inner id unless the raw id already maps to it
+	 */
+	@Override
+	public Integer put(String key, Integer value) {
+		int id = getId(key);
+		if (id >= 0) {
+			if (id != value)
+				throw new UnsupportedOperationException("Inner ids of an id dictionary cannot be changed");
+			return id;
+		}
+		if (value != size)
+			throw new IllegalArgumentException("Inner id " + value + " is not the next id " + size);
+
+		add(key);
+		return null;
+	}
+
+	@Override
+	public Integer forcePut(String key, Integer value) {
+		return put(key, value);
+	}
+
+	@Override
+	public Integer remove(Object key) {
+		throw new UnsupportedOperationException("Ids cannot be removed from an id dictionary");
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		Arrays.fill(table, 0);
+	}
+
+	@Override
+	public Set<Integer> values() {
+		return new AbstractSet<Integer>() {
+
+			@Override
+			public boolean contains(Object o) {
+				return containsValue(o);
+			}
+
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Ids<Integer>() {
+					@Override
+					Integer get(int id) {
+						return id;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String, Integer>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Integer>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Integer>> iterator() {
+				return new Ids<Map.Entry<String, Integer>>() {
+					@Override
+					Map.Entry<String, Integer> get(int id) {
+						return new SimpleImmutableEntry<>(getRawId(id), id);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public BiMap<Integer, String> inverse() {
+		if (inverse == null)
+			inverse = new Inverse();
+		return inverse;
+	}
+
+	/**
+	 * An iterator over inner ids
+	 */
+	private abstract class Ids<T> implements Iterator<T> {
+		int next = 0;
+
+		abstract T get(int id);
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public T next() {
+			if (next >= size)
+				throw new NoSuchElementException();
+			return get(next++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * The inverse view: {inner id, raw id}
+	 */
+	private class Inverse extends AbstractMap<Integer, String> implements BiMap<Integer, String> {
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return IdDictionary.this.containsValue(key);
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			return IdDictionary.this.containsKey(value);
+		}
+
+		@Override
+		public String get(Object key) {
+			return key instanceof Integer ? getRawId((Integer) key) : null;
+		}
+
+		@Override
+		public String put(Integer key, String value) {
+			String old = get(key);
+			IdDictionary.this.put(value, key);
+			return old;
+		}
+
+		@Override
+		public String forcePut(Integer key, String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public void putAll(Map<? extends Integer, ? extends String> map) {
+			for (Map.Entry<? extends Integer, ? extends String> en : map.entrySet())
+				put(en.getKey(), en.getValue());
+		}
+
+		@Override
+		public Set<String> values() {
+			return IdDictionary.this.keySet();
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, String>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, String>>() {
+
+				@Override
+				public Iterator<Map.Entry<Integer, String>> iterator() {
+					return new Ids<Map.Entry<Integer, String>>() {
+						@Override
+						Map.Entry<Integer, String> get(int id) {
+							return new SimpleImmutableEntry<>(id, getRawId(id));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+		@Override
+		public BiMap<String, Integer> inverse() {
+			return IdDictionary.this;
+		}
+	}
+
+	/**
+	 * write the dictionary: size, table size, offsets, hashes, table and arena
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(table.length);
+		for (int id = 0; id <= size; id++)
+			out.writeInt(offsets[id]);
+		for (int id = 0; id < size; id++)
+			out.writeInt(hashes[id]);
+		for (int e : table)
+			out.writeInt(e);
+		out.write(arena, 0, offsets[size]);
+	}
+
+	/**
+	 * read the dictionary written by {@code write} by memory mapping, from position pos[0] of a file, which is
+	 * advanced; the hash table is read as is rather than rebuilt
+	 */
+	public void read(FileChannel ch, long[] pos) throws IOException {
+		ByteBuffer buf = map(ch, pos, 8);
+		int n = buf.getInt(), tableSize = buf.getInt();
+		if (n < 0 || tableSize < 2 * n || Integer.bitCount(tableSize) != 1)
+			throw new IOException("invalid id dictionary");
+
+		int[] offs = new int[n + 1];
+		map(ch, pos, 4L * (n + 1)).asIntBuffer().get(offs);
+		int[] hs = new int[n + 1];
+		map(ch, pos, 4L * n).asIntBuffer().get(hs, 0, n);
+		int[] tab = new int[tableSize];
+		map(ch, pos, 4L * tableSize).asIntBuffer().get(tab);
+		byte[] bytes = new byte[offs[n] + 1];
+		map(ch, pos, offs[n]).get(bytes, 0, offs[n]);
+
+		offsets = offs;
+		hashes = hs;
+		table = tab;
+		arena = bytes;
+		size = n;
+	}
+
+	private static ByteBuffer map(FileChannel ch, long[] pos, long len) throws IOException {
+		if (pos[0] + len > ch.size())
+			throw new IOException("unexpected end of file");
+
+		ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, pos[0], len);
+		pos[0] += len;
+		return buf;
+	}
+
+	@Override
+	public String toString() {
+		return "IdDictionary [size = " + size + ", bytes = " + offsets[size] + "]";
+	}
+}
@@ -0,0 +1,240 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+
+/**
+ * A read-only view of a sparse matrix that hides one entry (row, col), e.g., the held-out rating of leave-one-out
+ * evaluation. <br>
+ *
+ * The view shares the compressed row and column storages of the matrix without copying them, so that many views of a
+ * matrix are cheap. The hidden entry is excluded by the query methods (get, rows, columns, sizes, sums and iterators),
+ * but not by code that reads the compressed storages directly, e.g., {@code SimilarityBuilder}.
+ *
+ * @author wubin
+ */
+public class MaskedSparseMatrix extends SparseMatrix {
+
+	private static final long serialVersionUID = -2517438966417391270L;
+
+	// the underlying matrix
+	private SparseMatrix matrix;
+
+	// hidden entry, and its value in the underlying matrix
+	private int maskRow = -1, maskCol = -1;
+	private double maskVal;
+	// whether the hidden entry is in the matrix structure
+	private boolean isStored;
+
+	public MaskedSparseMatrix(SparseMatrix matrix, int row, int col) {
+		super(matrix.numRows, matrix.numColumns);
+
+		this.matrix = matrix;
+		rowData = matrix.rowData;
+		rowPtr = matrix.rowPtr;
+		colInd = matrix.colInd;
+		colData = matrix.colData;
+		colPtr = matrix.colPtr;
+		rowInd = matrix.rowInd;
+
+		mask(row, col);
+	}
+
+	/**
+	 * hide entry (row, col) instead of the current hidden entry
+	 */
+	public void mask(int row, int col) {
+		maskRow = row;
+		maskCol = col;
+		isStored = Arrays.binarySearch(colInd, rowPtr[row], rowPtr[row + 1], col) >= 0;
+		maskVal = isStored ? matrix.get(row, col) : 0;
+	}
+
+	public int getMaskRow() {
+		return maskRow;
+	}
+
+	public int getMaskColumn() {
+		return maskCol;
+	}
+
+	private boolean isMasked(int row, int col) {
+		return row == maskRow && col == maskCol;
+	}
+
+	/**
+	 * @return this view, which is already read-only, rather than a frozen copy of the underlying matrix with the
+	 *         hidden entry
+	 */
+	@Override
+	public SparseMatrix freeze() {
+		return this;
+	}
+
+	@Override
+	public void set(int row, int column, double val) {
+		throw new UnsupportedOperationException("A masked matrix is read-only");
+	}
+
+	@Override
+	public void add(int row, int column, double val) {
+		throw new UnsupportedOperationException("A masked matrix is read-only");
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return isMasked(row, column) ? 0 : super.get(row, column);
+	}
+
+	@Override
+	public SparseVector row(int row) {
+		return row == maskRow ? super.row(row, maskCol) : super.row(row);
+	}
+
+	@Override
+	public SparseVector row(int row, int except) {
+		if (row != maskRow)
+			return super.row(row, except);
+
+		SparseVector sv = new SparseVector(numColumns, rowPtr[row + 1] - rowPtr[row]);
+		for (int j = rowPtr[row]; j < rowPtr[row + 1]; j++) {
+			int col = colInd[j];
+			if (col != except && col != maskCol && rowData[j] != 0.0)
+				sv.append(col, rowData[j]);
+		}
+
+		return sv;
+	}
+
+	@Override
+	public int rowSize(int row) {
+		return super.rowSize(row) - (row == maskRow && maskVal != 0 ? 1 : 0);
+	}
+
+	@Override
+	public int rowSize(int row, boolean judge) {
+		if (judge)
+			return rowSize(row);
+
+		return super.rowSize(row, false) - (row == maskRow && isStored ? 1 : 0);
+	}
+
+	@Override
+	public List<Integer> getColumns(int row) {
+		List<Integer> res = super.getColumns(row);
+		if (row == maskRow)
+			res.remove((Integer) maskCol);
+
+		return res;
+	}
+
+	@Override
+	public Set<Integer> getColumnsSet(int row) {
+		Set<Integer> res = super.getColumnsSet(row);
+		if (row == maskRow)
+			res.remove(maskCol);
+
+		return res;
+	}
+
+	@Override
+	public SparseVector column(int col) {
+		if (col != maskCol)
+			return super.column(col);
+
+		SparseVector sv = new SparseVector(numRows, colPtr[col + 1] - colPtr[col]);
+		for (int i = colPtr[col]; i < colPtr[col + 1]; i++) {
+			int row = rowInd[i];
+			if (row != maskRow && colData[i] != 0.0)
+				sv.append(row, colData[i]);
+		}
+
+		return sv;
+	}
+
+	@Override
+	public int columnSize(int col) {
+		return super.columnSize(col) - (col == maskCol && maskVal != 0 ? 1 : 0);
+	}
+
+	@Override
+	public List<Integer> getRows(int col) {
+		List<Integer> res = super.getRows(col);
+		if (col == maskCol)
+			res.remove((Integer) maskRow);
+
+		return res;
+	}
+
+	@Override
+	public double sum() {
+		return super.sum() - maskVal;
+	}
+
+	@Override
+	public Iterator<MatrixEntry> iterator() {
+		return Iterators.filter(super.iterator(), new Predicate<MatrixEntry>() {
+
+			@Override
+			public boolean apply(MatrixEntry me) {
+				return !isMasked(me.row(), me.column());
+			}
+		});
+	}
+
+	@Override
+	public Iterator<VectorEntry> colIterator(final int row) {
+		return Iterators.filter(super.colIterator(row), new Predicate<VectorEntry>() {
+
+			@Override
+			public boolean apply(VectorEntry ve) {
+				return !isMasked(row, ve.index());
+			}
+		});
+	}
+
+	@Override
+	public Iterator<VectorEntry> rowIterator(final int col) {
+		return Iterators.filter(super.rowIterator(col), new Predicate<VectorEntry>() {
+
+			@Override
+			public boolean apply(VectorEntry ve) {
+				return !isMasked(ve.index(), col);
+			}
+		});
+	}
+
+	@Override
+	public Set<Double> getValueSet() {
+		return matrix.getValueSet();
+	}
+
+	@Override
+	public String toString() {
+		return "Masked (" + maskRow + ", " + maskCol + ") of " + matrix.numRows + " x " + matrix.numColumns
+				+ " matrix";
+	}
+}
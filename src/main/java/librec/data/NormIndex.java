@@ -0,0 +1,108 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import librec.util.TopK;
+
+/**
+ * Exact top-N retrieval pruned by norm bounds. <br>
+ *
+ * Items are scanned in descending order of their L2 norms. Since {@code p * q_j <= ||p|| * ||q_j||}, the scan stops as
+ * soon as the bound of the next item cannot beat the current N-th score, in the style of the threshold algorithm
+ * (Fagin et al., PODS 2001) and LEMP (Teflioudi et al., SIGMOD 2015). The results are identical to a full scan, while
+ * most items are never scored when item norms are skewed, e.g., popular items after BPR-like training.
+ *
+ * @author wubin
+ */
+public class NormIndex extends FactorIndex {
+
+	// item ids sorted by descending norms
+	private int[] order;
+	// item factors in the sorted order, for sequential access
+	private double[][] sorted;
+	// item norms in the sorted order
+	private double[] norms;
+
+	public NormIndex(int numThreads) {
+		super(numThreads);
+	}
+
+	@Override
+	protected void buildIndex() throws Exception {
+		final double[] itemNorms = new double[numItems];
+		parallel(numItems, new RangeTask() {
+
+			@Override
+			public void run(int from, int to, int block) {
+				for (int j = from; j < to; j++)
+					itemNorms[j] = Math.sqrt(inner(factors[j], factors[j]));
+			}
+		});
+
+		Integer[] ids = new Integer[numItems];
+		for (int j = 0; j < numItems; j++)
+			ids[j] = j;
+		Arrays.sort(ids, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(itemNorms[b], itemNorms[a]);
+				return cmp != 0 ? cmp : a.compareTo(b);
+			}
+		});
+
+		order = new int[numItems];
+		sorted = new double[numItems][];
+		norms = new double[numItems];
+		for (int i = 0; i < numItems; i++) {
+			int j = ids[i];
+			order[i] = j;
+			sorted[i] = factors[j];
+			norms[i] = itemNorms[j];
+		}
+	}
+
+	@Override
+	public int topN(double[] query, int n, int[] excluded, int[] items, double[] scores) {
+		double queryNorm = Math.sqrt(inner(query, query));
+
+		TopK heap = new TopK(n);
+		for (int i = 0; i < numItems; i++) {
+			// no remaining item can enter the heap
+			if (heap.isFull() && queryNorm * norms[i] <= heap.threshold())
+				break;
+
+			int j = order[i];
+			if (isExcluded(excluded, j))
+				continue;
+
+			heap.offer(j, inner(query, sorted[i]));
+		}
+
+		return heap.drain(items, scores);
+	}
+
+	@Override
+	public String toString() {
+		return "Norm-pruned exact index";
+	}
+}
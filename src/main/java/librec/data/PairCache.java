@@ -0,0 +1,281 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, thread-safe cache of values of unordered pairs (i, j), e.g., item-item correlations. <br>
+ *
+ * The cache is a set-associative, open-addressed table of primitive {@code long} keys and {@code float} values: a pair
+ * is hashed to a set of {@code WAYS} slots, and evicts a slot of its set chosen by the CLOCK algorithm when the set is
+ * full. Writers lock a stripe of sets; readers never lock, but validate the version of a set (a seqlock) and retry if it
+ * was changed by a concurrent writer.
+ *
+ * @author wubin
+ */
+public class PairCache implements Serializable {
+
+	private static final long serialVersionUID = 5312486279035612410L;
+
+	// number of slots per set
+	private static final int WAYS = 8;
+	// key of empty slots: valid keys are non-negative
+	private static final long EMPTY = -1L;
+
+	// number of sets (a power of two)
+	private int numSets;
+	// keys and float bits of values of slots
+	private AtomicLongArray keys;
+	private AtomicIntegerArray vals;
+	// CLOCK reference bits of slots, set by readers without locking
+	private byte[] refs;
+	// CLOCK hands of sets
+	private int[] hands;
+	// versions of sets: odd while a set is being written
+	private AtomicIntegerArray versions;
+
+	// locks of writers, each shared by a stripe of sets
+	private Stripe[] stripes;
+	// number of cached pairs
+	private AtomicInteger size;
+
+	private static class Stripe implements Serializable {
+		private static final long serialVersionUID = -3406127720946153815L;
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of cached pairs, rounded up to a power of two
+	 */
+	public PairCache(int capacity) {
+		numSets = 1;
+		while (numSets * WAYS < capacity && numSets < (1 << 27))
+			numSets <<= 1;
+
+		int numSlots = numSets * WAYS;
+		keys = new AtomicLongArray(numSlots);
+		for (int k = 0; k < numSlots; k++)
+			keys.set(k, EMPTY);
+		vals = new AtomicIntegerArray(numSlots);
+		refs = new byte[numSlots];
+		hands = new int[numSets];
+		versions = new AtomicIntegerArray(numSets);
+
+		int numStripes = Math.min(numSets, 64 * Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+		stripes = new Stripe[numStripes];
+		for (int s = 0; s < numStripes; s++)
+			stripes[s] = new Stripe();
+
+		size = new AtomicInteger(0);
+	}
+
+	/**
+	 * Construct a cache by deeply copying the data of a given cache
+	 */
+	public PairCache(PairCache cache) {
+		this(cache.capacity());
+
+		for (int k = 0, n = cache.keys.length(); k < n; k++) {
+			keys.set(k, cache.keys.get(k));
+			vals.set(k, cache.vals.get(k));
+		}
+		System.arraycopy(cache.refs, 0, refs, 0, refs.length);
+		System.arraycopy(cache.hands, 0, hands, 0, hands.length);
+		size.set(cache.size());
+	}
+
+	/**
+	 * @return the key of an unordered pair (i, j)
+	 */
+	public static long key(int i, int j) {
+		return i <= j ? ((long) i << 32) | j : ((long) j << 32) | i;
+	}
+
+	/**
+	 * @return the set of a key, by the 64-bit finalizer of MurmurHash3
+	 */
+	private int setOf(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return (int) h & (numSets - 1);
+	}
+
+	/**
+	 * @return the cached value of pair (i, j), or {@code missing} if not cached
+	 */
+	public float get(int i, int j, float missing) {
+		long key = key(i, j);
+		int set = setOf(key), base = set * WAYS;
+
+		while (true) {
+			int version = versions.get(set);
+			if ((version & 1) != 0) {
+				// being written
+				Thread.yield();
+				continue;
+			}
+
+			int slot = -1;
+			int bits = 0;
+			for (int w = 0; w < WAYS; w++) {
+				if (keys.get(base + w) == key) {
+					slot = base + w;
+					bits = vals.get(slot);
+					break;
+				}
+			}
+
+			if (versions.get(set) != version)
+				continue;
+
+			if (slot < 0)
+				return missing;
+
+			refs[slot] = 1;
+			return Float.intBitsToFloat(bits);
+		}
+	}
+
+	/**
+	 * @return whether pair (i, j) is cached
+	 */
+	public boolean contains(int i, int j) {
+		// NaN is a valid value: use a non-canonical NaN to mark missing pairs
+		float missing = Float.intBitsToFloat(0x7fc00001);
+		return Float.floatToRawIntBits(get(i, j, missing)) != 0x7fc00001;
+	}
+
+	/**
+	 * cache the value of pair (i, j), evicting another pair of its set if necessary
+	 */
+	public void put(int i, int j, float val) {
+		update(i, j, val, false);
+	}
+
+	/**
+	 * add a value to pair (i, j), where a pair not cached counts as 0
+	 */
+	public void add(int i, int j, float val) {
+		update(i, j, val, true);
+	}
+
+	private void update(int i, int j, float val, boolean isAdd) {
+		long key = key(i, j);
+		int set = setOf(key), base = set * WAYS;
+
+		synchronized (stripes[set & (stripes.length - 1)]) {
+			versions.incrementAndGet(set);
+			try {
+				int slot = -1, empty = -1;
+				for (int w = 0; w < WAYS; w++) {
+					long k = keys.get(base + w);
+					if (k == key) {
+						slot = base + w;
+						break;
+					} else if (k == EMPTY && empty < 0) {
+						empty = base + w;
+					}
+				}
+
+				if (slot >= 0) {
+					if (isAdd)
+						val += Float.intBitsToFloat(vals.get(slot));
+				} else {
+					if (empty >= 0) {
+						slot = empty;
+						size.incrementAndGet();
+					} else {
+						slot = evict(set);
+					}
+					keys.set(slot, key);
+				}
+
+				vals.set(slot, Float.floatToRawIntBits(val));
+				refs[slot] = 1;
+			} finally {
+				versions.incrementAndGet(set);
+			}
+		}
+	}
+
+	/**
+	 * @return a slot of a full set to be replaced, i.e., the first slot from the CLOCK hand that was not referenced
+	 *         since the last sweep
+	 */
+	private int evict(int set) {
+		int base = set * WAYS;
+		int hand = hands[set];
+		while (refs[base + hand] != 0) {
+			refs[base + hand] = 0;
+			hand = (hand + 1) % WAYS;
+		}
+		hands[set] = (hand + 1) % WAYS;
+
+		return base + hand;
+	}
+
+	/**
+	 * remove all cached pairs
+	 */
+	public void clear() {
+		for (int set = 0; set < numSets; set++) {
+			synchronized (stripes[set & (stripes.length - 1)]) {
+				versions.incrementAndGet(set);
+				for (int k = set * WAYS; k < (set + 1) * WAYS; k++) {
+					if (keys.get(k) != EMPTY) {
+						keys.set(k, EMPTY);
+						size.decrementAndGet();
+					}
+					refs[k] = 0;
+				}
+				hands[set] = 0;
+				versions.incrementAndGet(set);
+			}
+		}
+	}
+
+	/**
+	 * @return number of cached pairs
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return maximum number of cached pairs
+	 */
+	public int capacity() {
+		return numSets * WAYS;
+	}
+
+	@Override
+	public String toString() {
+		return "PairCache [size = " + size() + ", capacity = " + capacity() + "]";
+	}
+
+}
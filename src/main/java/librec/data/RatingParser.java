@@ -0,0 +1,840 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import librec.util.Gzips;
+
+/**
+ * A parallel parser of a ratings file of lines "user item [rating [timestamp]]" separated by spaces, tabs or commas,
+ * giving the same results as {@code DataDAO.readData}. <br>
+ *
+ * The file is split into byte ranges at line boundaries, which are tokenized in parallel without regular expressions
+ * into primitive coordinate (COO) arrays with chunk-local ids in {@code IdDictionary}s, without creating Strings of
+ * ASCII ids. The local ids are then mapped to inner ids in the order of their first occurrences in the file, and the CRS
+ * and CCS structures are built by counting sorts, where the last of duplicated ratings is kept. Finally, values are
+ * transformed (binarized and shifted) by a parallel pass over the value arrays. <br>
+ *
+ * A gzip-compressed file is decompressed by a stream (in parallel if it is blocked, see {@code Gzips}), whose chunks
+ * are parsed in parallel as they come.
+ *
+ * @author wubin
+ */
+public class RatingParser {
+
+	// bytes per chunk of parsing
+	private static final int CHUNK = 1 << 24;
+	// values per block of transforms
+	private static final int BLOCK = 1 << 20;
+	// end of chunks of a stream
+	private static final byte[] END = new byte[0];
+
+	// file to parse
+	private File file;
+	// columns of user, item, [rating, timestamp]
+	private int[] cols;
+	private double binThold;
+	private TimeUnit timeUnit;
+	private boolean isHeadline;
+	private int numThreads;
+	// charset of ids, as read by {@code FileIO.getReader}
+	private Charset charset = Charset.defaultCharset();
+
+	// results
+	private SparseMatrix rateMatrix, timeMatrix;
+	private Multiset<Double> scaleDist;
+	private List<Double> ratingScale;
+	private int numRatings;
+	private long minTimestamp = Long.MAX_VALUE, maxTimestamp = Long.MIN_VALUE;
+
+	/**
+	 * ratings of a chunk with chunk-local ids
+	 */
+	private static class Chunk {
+		// local ids in the order of first occurrences
+		IdDictionary users = new IdDictionary(1024), items = new IdDictionary(1024);
+
+		int size;
+		int[] rows = new int[1024], cols = new int[1024];
+		double[] rates = new double[1024];
+		long[] times;
+
+		// number of lines with and without timestamps
+		int numTimed, numUntimed;
+
+		// distinct rates and their counts, indexed by an open-addressed table of (index + 1)
+		double[] distinct = new double[8];
+		int[] counts = new int[8];
+		int[] slots = new int[16];
+		int numDistinct;
+
+		void add(int row, int col, double rate, boolean hasTime, long time) {
+			if (size == rows.length) {
+				int capacity = size + (size >> 1);
+				rows = Arrays.copyOf(rows, capacity);
+				cols = Arrays.copyOf(cols, capacity);
+				rates = Arrays.copyOf(rates, capacity);
+				if (times != null)
+					times = Arrays.copyOf(times, capacity);
+			}
+			if (hasTime) {
+				if (times == null)
+					times = new long[rows.length];
+				times[size] = time;
+				numTimed++;
+			} else {
+				numUntimed++;
+			}
+
+			rows[size] = row;
+			cols[size] = col;
+			rates[size] = rate;
+			size++;
+
+			count(rate);
+		}
+
+		void count(double rate) {
+			long bits = Double.doubleToLongBits(rate);
+			int mask = slots.length - 1;
+			int s = slot(bits, mask);
+			for (; slots[s] != 0; s = (s + 1) & mask) {
+				int k = slots[s] - 1;
+				if (Double.doubleToLongBits(distinct[k]) == bits) {
+					counts[k]++;
+					return;
+				}
+			}
+			if (numDistinct == distinct.length) {
+				distinct = Arrays.copyOf(distinct, numDistinct * 2);
+				counts = Arrays.copyOf(counts, numDistinct * 2);
+			}
+			distinct[numDistinct] = rate;
+			counts[numDistinct++] = 1;
+
+			if (2 * numDistinct > slots.length) {
+				slots = new int[slots.length * 2];
+				mask = slots.length - 1;
+				for (int k = 0; k < numDistinct; k++) {
+					for (s = slot(Double.doubleToLongBits(distinct[k]), mask); slots[s] != 0; s = (s + 1) & mask)
+						;
+					slots[s] = k + 1;
+				}
+			} else {
+				slots[s] = numDistinct;
+			}
+		}
+
+		static int slot(long bits, int mask) {
+			int h = (int) (bits ^ (bits >>> 32)) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            ratings file
+	 * @param cols
+	 *            columns of {user, item, [rating, timestamp]}
+	 * @param binThold
+	 *            threshold to binarize ratings, disabled if negative
+	 * @param timeUnit
+	 *            time unit of timestamps
+	 * @param isHeadline
+	 *            whether the first line is a headline
+	 * @param numThreads
+	 *            number of threads
+	 */
+	public RatingParser(File file, int[] cols, double binThold, TimeUnit timeUnit, boolean isHeadline, int numThreads) {
+		this.file = file;
+		this.cols = cols;
+		this.binThold = binThold;
+		this.timeUnit = timeUnit;
+		this.isHeadline = isHeadline;
+		this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Parse the file, where new users and items are added to the id maps
+	 *
+	 * @return false if only some lines have timestamps, which are not supported; the id maps are not changed then
+	 */
+	public boolean parse(BiMap<String, Integer> userIds, BiMap<String, Integer> itemIds) throws Exception {
+		Chunk[] chunks = Gzips.isGzip(file) ? parseStream() : parseRanges();
+
+		int numTimed = 0, numUntimed = 0;
+		for (Chunk c : chunks) {
+			numTimed += c.numTimed;
+			numUntimed += c.numUntimed;
+		}
+		if (numTimed > 0 && numUntimed > 0)
+			return false;
+
+		build(chunks, userIds, itemIds, numTimed > 0);
+
+		return true;
+	}
+
+	/**
+	 * parse the byte ranges of a file in parallel
+	 */
+	private Chunk[] parseRanges() throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel ch = raf.getChannel();
+			final long[] begins = split(ch);
+			final int numChunks = begins.length - 1;
+			final Chunk[] chunks = new Chunk[numChunks];
+
+			final AtomicInteger next = new AtomicInteger(0);
+			final Exception[] error = new Exception[1];
+			int threads = Math.max(1, Math.min(numThreads, numChunks));
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			final CountDownLatch latch = new CountDownLatch(threads);
+
+			for (int t = 0; t < threads; t++) {
+				executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							int k;
+							while ((k = next.getAndIncrement()) < numChunks && error[0] == null)
+								chunks[k] = parse(read(ch, begins[k], begins[k + 1]), k == 0 && isHeadline);
+						} catch (Exception e) {
+							error[0] = e;
+						} finally {
+							latch.countDown();
+						}
+					}
+				});
+			}
+
+			latch.await();
+			executor.shutdown();
+
+			if (error[0] != null)
+				throw error[0];
+
+			return chunks;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * parse a compressed file: chunks at line boundaries are decompressed by a stream, and passed to parsing threads
+	 * through a bounded queue, so that only a few chunks are in memory
+	 */
+	private Chunk[] parseStream() throws Exception {
+		int threads = Math.max(1, numThreads);
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(threads);
+		final List<Chunk> chunks = Collections.synchronizedList(new ArrayList<Chunk>());
+		final AtomicInteger next = new AtomicInteger(0);
+		final Exception[] error = new Exception[1];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						// chunks are numbered in the order taken, and consumed until the end even after errors
+						while (true) {
+							byte[] bytes;
+							int k;
+							synchronized (queue) {
+								bytes = queue.take();
+								k = next.getAndIncrement();
+							}
+							if (bytes == END)
+								break;
+							if (error[0] != null)
+								continue;
+
+							try {
+								Chunk c = parse(bytes, k == 0 && isHeadline);
+								synchronized (chunks) {
+									while (chunks.size() <= k)
+										chunks.add(null);
+									chunks.set(k, c);
+								}
+							} catch (Exception e) {
+								error[0] = e;
+							}
+						}
+					} catch (InterruptedException e) {
+						error[0] = e;
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		InputStream is = Gzips.open(file);
+		try {
+			byte[] buf = new byte[CHUNK];
+			int len = 0, n;
+			while (error[0] == null) {
+				if (len == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				n = is.read(buf, len, buf.length - len);
+				if (n < 0)
+					break;
+				len += n;
+				if (len < buf.length)
+					continue;
+
+				// a chunk ends after the last line terminator, if any
+				int end = len;
+				while (end > 0 && buf[end - 1] != '\n' && buf[end - 1] != '\r')
+					end--;
+				if (end == 0)
+					continue;
+
+				queue.put(Arrays.copyOf(buf, end));
+				System.arraycopy(buf, end, buf, 0, len - end);
+				len -= end;
+			}
+			if (len > 0 && error[0] == null)
+				queue.put(Arrays.copyOf(buf, len));
+		} catch (Exception e) {
+			error[0] = e;
+		} finally {
+			is.close();
+			for (int t = 0; t < threads; t++)
+				queue.put(END);
+		}
+
+		latch.await();
+		executor.shutdown();
+
+		if (error[0] != null)
+			throw error[0];
+
+		return chunks.toArray(new Chunk[chunks.size()]);
+	}
+
+	/**
+	 * @return the beginnings of chunks at line boundaries, followed by the file size
+	 */
+	private long[] split(FileChannel ch) throws IOException {
+		long size = ch.size();
+		int numChunks = (int) Math.max(1, (size + CHUNK - 1) / CHUNK);
+		long[] begins = new long[numChunks + 1];
+		begins[numChunks] = size;
+
+		ByteBuffer buf = ByteBuffer.allocate(1 << 12);
+		for (int k = 1; k < numChunks; k++) {
+			// a chunk begins after the first line terminator from its nominal beginning
+			long pos = Math.max((long) k * CHUNK - 1, begins[k - 1]);
+			long begin = size;
+			search: while (pos < size) {
+				buf.clear();
+				int n = ch.read(buf, pos);
+				if (n <= 0)
+					break;
+				for (int i = 0; i < n; i++) {
+					byte b = buf.get(i);
+					if (b == '\n' || b == '\r') {
+						begin = pos + i + 1;
+						break search;
+					}
+				}
+				pos += n;
+			}
+			begins[k] = Math.max(begin, begins[k - 1]);
+		}
+
+		return begins;
+	}
+
+	private static boolean isDelim(byte b) {
+		return b == ' ' || b == '\t' || b == ',';
+	}
+
+	/**
+	 * @return the bytes of a byte range
+	 */
+	private byte[] read(FileChannel ch, long begin, long end) throws IOException {
+		byte[] bytes = new byte[(int) (end - begin)];
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, begin + buf.position()) < 0)
+				throw new IOException("Unexpected end of file " + file);
+		}
+		return bytes;
+	}
+
+	/**
+	 * parse the lines of bytes
+	 */
+	private Chunk parse(byte[] bytes, boolean skipFirst) throws Exception {
+		Chunk chunk = new Chunk();
+		int maxCol = 0;
+		for (int col : cols)
+			maxCol = Math.max(maxCol, col);
+		int[] starts = new int[maxCol + 1], ends = new int[maxCol + 1];
+
+		int p = 0, n = bytes.length;
+		if (skipFirst) {
+			while (p < n && bytes[p] != '\n' && bytes[p] != '\r')
+				p++;
+		}
+
+		while (p < n) {
+			// a line [s, e)
+			int s = p;
+			while (p < n && bytes[p] != '\n' && bytes[p] != '\r')
+				p++;
+			int e = p;
+			p++;
+
+			// trim as String.trim
+			while (s < e && (bytes[s] & 0xff) <= ' ')
+				s++;
+			while (e > s && (bytes[e - 1] & 0xff) <= ' ')
+				e--;
+			if (s == e)
+				continue;
+
+			// tokens split by "[ \t,]+", with an empty first token if the line starts with a separator
+			int numTokens = 0, q = s;
+			if (isDelim(bytes[q])) {
+				starts[0] = ends[0] = q;
+				numTokens++;
+			}
+			while (q < e) {
+				while (q < e && isDelim(bytes[q]))
+					q++;
+				if (q >= e)
+					break;
+				int t = q;
+				while (q < e && !isDelim(bytes[q]))
+					q++;
+				if (numTokens <= maxCol) {
+					starts[numTokens] = t;
+					ends[numTokens] = q;
+				}
+				numTokens++;
+			}
+
+			if (cols[0] >= numTokens || cols[1] >= numTokens
+					|| (cols.length >= 3 && numTokens >= 3 && cols[2] >= numTokens)
+					|| (cols.length >= 4 && numTokens >= 4 && cols[3] >= numTokens))
+				throw new Exception("Too few columns in line: " + new String(bytes, s, e - s, charset));
+
+			int user = localId(chunk.users, bytes, starts[cols[0]], ends[cols[0]]);
+			int item = localId(chunk.items, bytes, starts[cols[1]], ends[cols[1]]);
+
+			double rate = 1.0;
+			if (cols.length >= 3 && numTokens >= 3)
+				rate = parseDouble(bytes, starts[cols[2]], ends[cols[2]]);
+
+			boolean hasTime = cols.length >= 4 && numTokens >= 4;
+			long timestamp = hasTime ? timeUnit.toMillis(parseLong(bytes, starts[cols[3]], ends[cols[3]])) : 0L;
+
+			chunk.add(user, item, rate, hasTime, timestamp);
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * @return the same value as {@code Double.valueOf} of a token: plain decimals of at most 15 digits with small
+	 *         exponents are converted exactly, others by {@code Double.parseDouble}
+	 */
+	private static double parseDouble(byte[] bytes, int s, int e) {
+		int p = s;
+		boolean isNegative = false;
+		if (p < e && (bytes[p] == '-' || bytes[p] == '+'))
+			isNegative = bytes[p++] == '-';
+
+		long mantissa = 0;
+		int numDigits = 0, scale = 0;
+		boolean isDigit = false;
+		while (p < e && bytes[p] >= '0' && bytes[p] <= '9') {
+			mantissa = mantissa * 10 + (bytes[p++] - '0');
+			numDigits++;
+			isDigit = true;
+		}
+		if (p < e && bytes[p] == '.') {
+			p++;
+			while (p < e && bytes[p] >= '0' && bytes[p] <= '9') {
+				mantissa = mantissa * 10 + (bytes[p++] - '0');
+				numDigits++;
+				scale--;
+				isDigit = true;
+			}
+		}
+		if (isDigit && p < e && (bytes[p] == 'e' || bytes[p] == 'E')) {
+			p++;
+			boolean isNegExp = false;
+			if (p < e && (bytes[p] == '-' || bytes[p] == '+'))
+				isNegExp = bytes[p++] == '-';
+			int exp = 0, numExpDigits = 0;
+			while (p < e && bytes[p] >= '0' && bytes[p] <= '9' && numExpDigits < 4) {
+				exp = exp * 10 + (bytes[p++] - '0');
+				numExpDigits++;
+			}
+			if (numExpDigits == 0)
+				p = -1;
+			scale += isNegExp ? -exp : exp;
+		}
+
+		// exact: both the mantissa and the power of ten are exactly representable
+		if (p == e && isDigit && numDigits <= 15 && scale >= -22 && scale <= 22) {
+			double val = mantissa;
+			if (scale < 0)
+				val /= POW10[-scale];
+			else if (scale > 0)
+				val *= POW10[scale];
+			return isNegative ? -val : val;
+		}
+
+		return Double.parseDouble(new String(bytes, s, e - s, Charset.forName("ISO-8859-1")));
+	}
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	/**
+	 * @return the same value as {@code Long.parseLong} of a token, or of {@code Double.parseDouble} if not an integer
+	 */
+	private static long parseLong(byte[] bytes, int s, int e) {
+		int p = s;
+		boolean isNegative = false;
+		if (p < e && (bytes[p] == '-' || bytes[p] == '+'))
+			isNegative = bytes[p++] == '-';
+
+		if (p < e && e - p <= 18) {
+			long val = 0;
+			for (; p < e; p++) {
+				if (bytes[p] < '0' || bytes[p] > '9')
+					break;
+				val = val * 10 + (bytes[p] - '0');
+			}
+			if (p == e)
+				return isNegative ? -val : val;
+		}
+
+		String str = new String(bytes, s, e - s, Charset.forName("ISO-8859-1"));
+		try {
+			return Long.parseLong(str);
+		} catch (NumberFormatException ex) {
+			return (long) Double.parseDouble(str);
+		}
+	}
+
+	/**
+	 * map local ids to inner ids, and build the CRS and CCS structures by counting sorts
+	 */
+	private void build(Chunk[] chunks, BiMap<String, Integer> userIds, BiMap<String, Integer> itemIds,
+			boolean hasTime) throws Exception {
+
+		// inner ids in the order of first occurrences
+		int[][] userMaps = new int[chunks.length][], itemMaps = new int[chunks.length][];
+		for (int k = 0; k < chunks.length; k++) {
+			userMaps[k] = innerIds(chunks[k].users, userIds);
+			itemMaps[k] = innerIds(chunks[k].items, itemIds);
+		}
+		int numRows = userIds.size(), numCols = itemIds.size();
+
+		// coordinates in the file order
+		int size = 0;
+		for (Chunk c : chunks)
+			size += c.size;
+
+		int[] rows = new int[size], cols = new int[size];
+		double[] rates = new double[size];
+		long[] times = hasTime ? new long[size] : null;
+		scaleDist = HashMultiset.create();
+
+		int n = 0;
+		for (int k = 0; k < chunks.length; k++) {
+			Chunk c = chunks[k];
+			for (int i = 0; i < c.size; i++, n++) {
+				rows[n] = userMaps[k][c.rows[i]];
+				cols[n] = itemMaps[k][c.cols[i]];
+				rates[n] = c.rates[i];
+				if (hasTime) {
+					long time = c.times[i];
+					times[n] = time;
+					if (minTimestamp > time)
+						minTimestamp = time;
+					if (maxTimestamp < time)
+						maxTimestamp = time;
+				}
+			}
+			for (int d = 0; d < c.numDistinct; d++)
+				scaleDist.add(binarize(c.distinct[d]), c.counts[d]);
+			chunks[k] = null;
+		}
+
+		numRatings = scaleDist.size();
+		ratingScale = new ArrayList<>(scaleDist.elementSet());
+		Collections.sort(ratingScale);
+
+		// if min-rate = 0.0, shift upper a scale
+		double minRate = ratingScale.get(0).doubleValue();
+		double epsilon = minRate == 0.0 ? ratingScale.get(1).doubleValue() - minRate : 0;
+		if (epsilon > 0) {
+			for (int i = 0, im = ratingScale.size(); i < im; i++)
+				ratingScale.set(i, ratingScale.get(i) + epsilon);
+		}
+
+		// stable sorts by columns and then by rows: entries are ordered by (row, column, line)
+		int[] byCol = new int[size];
+		int[] ptr = new int[numCols + 1];
+		for (int i = 0; i < size; i++)
+			ptr[cols[i] + 1]++;
+		for (int j = 0; j < numCols; j++)
+			ptr[j + 1] += ptr[j];
+		for (int i = 0; i < size; i++)
+			byCol[ptr[cols[i]]++] = i;
+
+		int[] order = new int[size];
+		int[] rowPtr = new int[numRows + 1];
+		for (int i = 0; i < size; i++)
+			rowPtr[rows[i] + 1]++;
+		for (int u = 0; u < numRows; u++)
+			rowPtr[u + 1] += rowPtr[u];
+		int[] pos = Arrays.copyOf(rowPtr, numRows);
+		for (int k = 0; k < size; k++) {
+			int i = byCol[k];
+			order[pos[rows[i]]++] = i;
+		}
+		byCol = null;
+
+		// CRS: the last line of duplicated entries is kept
+		int nnz = 0;
+		for (int k = 0; k < size; k++) {
+			int i = order[k];
+			if (k + 1 < size && rows[order[k + 1]] == rows[i] && cols[order[k + 1]] == cols[i])
+				continue;
+			order[nnz++] = i;
+		}
+
+		int[] colInd = new int[nnz];
+		double[] rowData = new double[nnz];
+		double[] timeRowData = hasTime ? new double[nnz] : null;
+		Arrays.fill(rowPtr, 0);
+		for (int k = 0; k < nnz; k++) {
+			int i = order[k];
+			rowPtr[rows[i] + 1]++;
+			colInd[k] = cols[i];
+			rowData[k] = rates[i];
+			if (hasTime)
+				timeRowData[k] = times[i];
+		}
+		for (int u = 0; u < numRows; u++)
+			rowPtr[u + 1] += rowPtr[u];
+		order = null;
+		rows = cols = null;
+		rates = null;
+		times = null;
+
+		// CCS by a stable sort of CRS entries by columns
+		int[] colPtr = new int[numCols + 1];
+		for (int k = 0; k < nnz; k++)
+			colPtr[colInd[k] + 1]++;
+		for (int j = 0; j < numCols; j++)
+			colPtr[j + 1] += colPtr[j];
+
+		int[] rowInd = new int[nnz];
+		double[] colData = new double[nnz];
+		double[] timeColData = hasTime ? new double[nnz] : null;
+		pos = Arrays.copyOf(colPtr, numCols);
+		for (int u = 0; u < numRows; u++) {
+			for (int k = rowPtr[u]; k < rowPtr[u + 1]; k++) {
+				int q = pos[colInd[k]]++;
+				rowInd[q] = u;
+				colData[q] = rowData[k];
+				if (hasTime)
+					timeColData[q] = timeRowData[k];
+			}
+		}
+
+		// value transforms of the built matrix
+		transform(new double[][] { rowData, colData }, epsilon);
+
+		rateMatrix = new SparseMatrix(numRows, numCols, rowPtr, colInd, rowData, colPtr, rowInd, colData);
+		if (hasTime)
+			timeMatrix = new SparseMatrix(numRows, numCols, rowPtr.clone(), colInd.clone(), timeRowData,
+					colPtr.clone(), rowInd.clone(), timeColData);
+	}
+
+	/**
+	 * binarize a rating for item recommendation task, if a threshold is given
+	 */
+	private double binarize(double rate) {
+		if (binThold >= 0)
+			return rate > binThold ? 1.0 : 0.0;
+		return rate;
+	}
+
+	/**
+	 * transform the values of rating arrays in parallel blocks: binarization by the threshold, and the shift of the
+	 * rating scale by epsilon if the minimum rating is 0; the cost is linear in the number of ratings
+	 */
+	private void transform(final double[][] data, final double epsilon) throws Exception {
+		if (binThold < 0 && epsilon == 0)
+			return;
+
+		// blocks of all arrays
+		final List<int[]> blocks = new ArrayList<>();
+		for (int a = 0; a < data.length; a++) {
+			for (int from = 0; from < data[a].length; from += BLOCK)
+				blocks.add(new int[] { a, from, Math.min(from + BLOCK, data[a].length) });
+		}
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final Exception[] error = new Exception[1];
+		int threads = Math.max(1, Math.min(numThreads, blocks.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						int b;
+						while ((b = next.getAndIncrement()) < blocks.size()) {
+							int[] block = blocks.get(b);
+							double[] vals = data[block[0]];
+							if (binThold >= 0) {
+								for (int i = block[1]; i < block[2]; i++)
+									vals[i] = (vals[i] > binThold ? 1.0 : 0.0) + epsilon;
+							} else {
+								for (int i = block[1]; i < block[2]; i++)
+									vals[i] += epsilon;
+							}
+						}
+					} catch (Exception e) {
+						error[0] = e;
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+		executor.shutdown();
+
+		if (error[0] != null)
+			throw error[0];
+	}
+
+	/**
+	 * @return local id of raw id bytes[s, e); ASCII ids are added by bytes, which equal their UTF-8 encoding
+	 */
+	private int localId(IdDictionary locals, byte[] bytes, int s, int e) {
+		for (int i = s; i < e; i++) {
+			if (bytes[i] < 0)
+				return locals.add(new String(bytes, s, e - s, charset));
+		}
+		return locals.add(bytes, s, e - s);
+	}
+
+	/**
+	 * @return inner ids of local ids, adding new ids to the map
+	 */
+	private static int[] innerIds(IdDictionary locals, BiMap<String, Integer> ids) {
+		if (ids instanceof IdDictionary)
+			return ((IdDictionary) ids).addAll(locals);
+
+		int[] res = new int[locals.size()];
+		for (int l = 0; l < res.length; l++) {
+			String raw = locals.getRawId(l);
+			Integer id = ids.get(raw);
+			if (id == null) {
+				id = ids.size();
+				ids.put(raw, id);
+			}
+			res[l] = id;
+		}
+		return res;
+	}
+
+	public SparseMatrix getRateMatrix() {
+		return rateMatrix;
+	}
+
+	/**
+	 * @return the timestamp matrix, or null if there are no timestamps
+	 */
+	public SparseMatrix getTimeMatrix() {
+		return timeMatrix;
+	}
+
+	public Multiset<Double> getScaleDist() {
+		return scaleDist;
+	}
+
+	/**
+	 * @return sorted rating scales, shifted upper a scale if the minimum rating is 0
+	 */
+	public List<Double> getRatingScale() {
+		return ratingScale;
+	}
+
+	public int getNumRatings() {
+		return numRatings;
+	}
+
+	public long getMinTimestamp() {
+		return minTimestamp;
+	}
+
+	public long getMaxTimestamp() {
+		return maxTimestamp;
+	}
+}
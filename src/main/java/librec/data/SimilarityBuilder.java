@@ -0,0 +1,365 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import librec.util.Sims;
+import librec.util.TopK;
+
+/**
+ * Build user-user or item-item similarities from the inverted lists of a sparse matrix, i.e., a sparse product
+ * {@code A * A'}: only pairs of vectors sharing at least one entry are visited. For each vector, the moments of its
+ * co-rated values with all other vectors are accumulated in dense per-thread arrays by walking the inverted list of each
+ * of its entries, and then turned into similarities by {@code Sims.similarity}; for PCC, the moments are centered by a
+ * second pass over the co-rated entries instead. Vectors are processed in parallel in small chunks.
+ *
+ * @author wubin
+ */
+public class SimilarityBuilder {
+
+	// number of vectors per chunk of work
+	private static final int CHUNK = 64;
+
+	// vectors: rows of users or columns of items
+	private int[] ptr, idx;
+	private double[] vals;
+	// inverted lists of vectors
+	private int[] invPtr, invIdx;
+	private double[] invVals;
+	// number of vectors
+	private int count;
+
+	// squared norms and sizes of vectors
+	private double[] norms;
+	private int[] sizes;
+
+	// similarity method, shrinkage, number of threads
+	private int method, shrinkage, numThreads;
+	// median rating for CPC
+	private double median;
+
+	// top-k neighbors and similarities of each vector
+	private int[][] neighbors;
+	private float[][] neighborSims;
+
+	/**
+	 * @param data
+	 *            rating matrix
+	 * @param isUser
+	 *            whether to build user-user (rows) or item-item (columns) similarities
+	 * @param method
+	 *            similarity method, see {@code Sims.method}
+	 * @param shrinkage
+	 *            shrink similarities by n / (n + shrinkage) with n co-rated entries; disabled if non-positive
+	 * @param numThreads
+	 *            number of threads
+	 */
+	public SimilarityBuilder(SparseMatrix data, boolean isUser, String method, int shrinkage, int numThreads) {
+		if (isUser) {
+			ptr = data.rowPtr;
+			idx = data.colInd;
+			vals = data.rowData;
+			invPtr = data.colPtr;
+			invIdx = data.rowInd;
+			invVals = data.colData;
+			count = data.numRows;
+		} else {
+			ptr = data.colPtr;
+			idx = data.rowInd;
+			vals = data.colData;
+			invPtr = data.rowPtr;
+			invIdx = data.colInd;
+			invVals = data.rowData;
+			count = data.numColumns;
+		}
+
+		this.method = Sims.method(method);
+		this.shrinkage = shrinkage;
+		this.numThreads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+
+		norms = new double[count];
+		sizes = new int[count];
+		for (int i = 0; i < count; i++) {
+			for (int k = ptr[i]; k < ptr[i + 1]; k++) {
+				double v = vals[k];
+				if (v != 0) {
+					norms[i] += v * v;
+					sizes[i]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * set the median rating used by the CPC method
+	 */
+	public SimilarityBuilder setMedian(double median) {
+		this.median = median;
+		return this;
+	}
+
+	/**
+	 * @return a symmetric matrix with the (computable) similarities of all co-rated pairs
+	 */
+	public SymmMatrix build() throws Exception {
+		final int[][] cols = new int[count][];
+		final double[][] sims = new double[count][];
+
+		run(new Visitor() {
+
+			@Override
+			public void visit(int i, int[] js, double[] vs, int n) {
+				cols[i] = new int[n];
+				sims[i] = new double[n];
+				System.arraycopy(js, 0, cols[i], 0, n);
+				System.arraycopy(vs, 0, sims[i], 0, n);
+			}
+		}, true);
+
+		SymmMatrix res = new SymmMatrix(count);
+		for (int i = 0; i < count; i++) {
+			if (cols[i] == null)
+				continue;
+			for (int k = 0; k < cols[i].length; k++)
+				res.set(i, cols[i][k], sims[i][k]);
+		}
+
+		return res;
+	}
+
+	/**
+	 * @return a symmetric matrix stored as a packed upper triangle, with the (computable) similarities of all co-rated
+	 *         pairs
+	 */
+	public SymmMatrix buildPacked() throws Exception {
+		final SymmMatrix res = SymmMatrix.packed(count);
+
+		run(new Visitor() {
+
+			@Override
+			public void visit(int i, int[] js, double[] vs, int n) {
+				// pairs (i, j > i) of different threads are disjoint
+				for (int k = 0; k < n; k++)
+					res.set(i, js[k], vs[k]);
+			}
+		}, true);
+
+		return res;
+	}
+
+	/**
+	 * Build the k most similar neighbors of each vector, available from {@code getNeighbors} and
+	 * {@code getNeighborSims}
+	 */
+	public void buildTopK(final int k) throws Exception {
+		neighbors = new int[count][];
+		neighborSims = new float[count][];
+
+		run(new Visitor() {
+
+			// one heap per thread
+			ThreadLocal<TopK> heaps = new ThreadLocal<TopK>() {
+				@Override
+				protected TopK initialValue() {
+					return new TopK(k);
+				}
+			};
+
+			@Override
+			public void visit(int i, int[] js, double[] vs, int n) {
+				TopK heap = heaps.get();
+				heap.clear();
+				for (int t = 0; t < n; t++)
+					heap.offer(js[t], vs[t]);
+
+				int size = heap.size();
+				int[] nns = new int[size];
+				double[] scores = new double[size];
+				heap.drain(nns, scores);
+
+				float[] nnSims = new float[size];
+				for (int t = 0; t < size; t++)
+					nnSims[t] = (float) scores[t];
+
+				neighbors[i] = nns;
+				neighborSims[i] = nnSims;
+			}
+		}, false);
+	}
+
+	/**
+	 * @return the top-k neighbors of each vector, sorted by descending similarities
+	 */
+	public int[][] getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * @return the similarities of the top-k neighbors of each vector
+	 */
+	public float[][] getNeighborSims() {
+		return neighborSims;
+	}
+
+	/**
+	 * A receiver of the similarities of vector i to n other vectors js, called by one thread per vector
+	 */
+	private interface Visitor {
+		void visit(int i, int[] js, double[] vs, int n);
+	}
+
+	/**
+	 * Replace the raw moments of vector i with the touched vectors by centered ones, in a second pass over the co-rated
+	 * entries: the sums of products sxy and of squares sxx, syy of the deviations from the means of co-rated values.
+	 * Values are visited in the same order as by the pairwise {@code Sims.similarity}, so that both give the same PCC.
+	 */
+	private void center(int i, boolean isUpper, int[] ns, int[] touched, int numTouched, double[] sx, double[] sy,
+			double[] sxx, double[] syy, double[] sxy) {
+		for (int m = 0; m < numTouched; m++) {
+			int j = touched[m];
+			sx[j] /= ns[j];
+			sy[j] /= ns[j];
+			sxx[j] = syy[j] = sxy[j] = 0;
+		}
+
+		for (int k = ptr[i]; k < ptr[i + 1]; k++) {
+			double x = vals[k];
+			if (x == 0)
+				continue;
+
+			int e = idx[k];
+			for (int l = invPtr[e]; l < invPtr[e + 1]; l++) {
+				int j = invIdx[l];
+				double y = invVals[l];
+				if (j == i || (isUpper && j < i) || y == 0)
+					continue;
+
+				double dx = x - sx[j], dy = y - sy[j];
+				sxy[j] += dx * dy;
+				sxx[j] += dx * dx;
+				syy[j] += dy * dy;
+			}
+		}
+	}
+
+	/**
+	 * compute similarities of all vectors in parallel
+	 *
+	 * @param isUpper
+	 *            whether only pairs (i, j) with j > i are needed
+	 */
+	private void run(final Visitor visitor, final boolean isUpper) throws Exception {
+		final AtomicInteger next = new AtomicInteger(0);
+		final Exception[] error = new Exception[1];
+
+		int threads = Math.max(1, Math.min(numThreads, (count + CHUNK - 1) / CHUNK));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						// dense accumulators of moments, and the list of touched vectors
+						int[] ns = new int[count];
+						double[] sx = new double[count], sy = new double[count];
+						double[] sxx = new double[count], syy = new double[count], sxy = new double[count];
+						double[] sdd = new double[count];
+						int[] touched = new int[count];
+						double[] sims = new double[count];
+
+						int from;
+						while ((from = next.getAndAdd(CHUNK)) < count) {
+							for (int i = from, to = Math.min(count, from + CHUNK); i < to; i++) {
+								int numTouched = 0;
+
+								for (int k = ptr[i]; k < ptr[i + 1]; k++) {
+									double x = vals[k];
+									if (x == 0)
+										continue;
+
+									// other vectors sharing entry idx[k]
+									int e = idx[k];
+									for (int l = invPtr[e]; l < invPtr[e + 1]; l++) {
+										int j = invIdx[l];
+										double y = invVals[l];
+										if (j == i || (isUpper && j < i) || y == 0)
+											continue;
+
+										if (ns[j] == 0)
+											touched[numTouched++] = j;
+										ns[j]++;
+										sx[j] += x;
+										sy[j] += y;
+										sxx[j] += x * x;
+										syy[j] += y * y;
+										sxy[j] += x * y;
+										sdd[j] += (x - y) * (x - y);
+									}
+								}
+
+								if (method == Sims.PCC)
+									center(i, isUpper, ns, touched, numTouched, sx, sy, sxx, syy, sxy);
+
+								int n = 0;
+								for (int m = 0; m < numTouched; m++) {
+									int j = touched[m];
+									double sim;
+									if (method == Sims.PCC)
+										sim = ns[j] < 2 ? Double.NaN : sxy[j] / (Math.sqrt(sxx[j]) * Math.sqrt(syy[j]));
+									else
+										sim = Sims.similarity(method, ns[j], sx[j], sy[j], sxx[j], syy[j], sxy[j],
+												sdd[j], norms[i], norms[j], sizes[i], sizes[j], median);
+
+									if (!Double.isNaN(sim)) {
+										if (shrinkage > 0)
+											sim *= ns[j] / (ns[j] + shrinkage + 0.0);
+										touched[n] = j;
+										sims[n++] = sim;
+									}
+
+									ns[j] = 0;
+									sx[j] = sy[j] = sxx[j] = syy[j] = sxy[j] = sdd[j] = 0;
+								}
+
+								visitor.visit(i, touched, sims, n);
+							}
+						}
+					} catch (Exception e) {
+						error[0] = e;
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+		executor.shutdown();
+
+		if (error[0] != null)
+			throw error[0];
+	}
+}
@@ -26,6 +26,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
 import com.google.common.collect.Table.Cell;
+import librec.util.Sims;
 import librec.util.Stats;
 
 import java.io.Serializable;
@@ -63,6 +64,9 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 	public int[] shuffleRow;
 	public int[] shuffleCursor;
 
+	// time order of entries whose values are timestamps, built on demand
+	private transient TimeIndex timeIndex;
+
 	/**
 	 * Construct a sparse matrix with only CRS structures
 	 */
@@ -70,6 +74,13 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		this(rows, cols, dataTable, null);
 	}
 
+	/**
+	 * Define a sparse matrix without data or a set of values, only used by subclasses sharing the structures of
+	 * another matrix
+	 */
+	SparseMatrix() {
+	}
+
 	/**
 	 * Define a sparse matrix without data, only use for {@code transpose} method
 	 */
@@ -105,6 +116,26 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		copyCCS(mat.colData, mat.colPtr, mat.rowInd);
 	}
 
+	/**
+	 * Construct a sparse matrix from its CRS and CCS structures, which are used without copying
+	 */
+	public SparseMatrix(int rows, int cols, int[] rowPtr, int[] colInd, double[] rowData, int[] colPtr, int[] rowInd,
+			double[] colData) {
+		numRows = rows;
+		numColumns = cols;
+		valueSet = new TreeSet<>();
+
+		this.rowPtr = rowPtr;
+		this.colInd = colInd;
+		this.rowData = rowData;
+		this.colPtr = colPtr;
+		this.rowInd = rowInd;
+		this.colData = colData;
+
+		for (double val : rowData)
+			valueSet.add(val);
+	}
+
 	public SparseMatrix(SparseStringMatrix mat) {
 		numRows = mat.numRows;
 		numColumns = mat.numColumns;
@@ -174,6 +205,16 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return tr;
 	}
 
+	/**
+	 * Freeze current matrix for read-only use, e.g., as training data shared by threads. Current matrix must not be
+	 * modified afterwards, as their structures are shared.
+	 *
+	 * @return an immutable matrix with cached statistics, see {@code FrozenSparseMatrix}
+	 */
+	public SparseMatrix freeze() {
+		return new FrozenSparseMatrix(this);
+	}
+
 	/**
 	 * @return the row pointers of CRS structure
 	 */
@@ -297,6 +338,17 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return rowData;
 	}
 
+	/**
+	 * @return the time order of entries regarding their values as timestamps, which is built once on the first call,
+	 *         hence the matrix should not be modified afterwards
+	 */
+	public synchronized TimeIndex getTimeIndex() {
+		if (timeIndex == null)
+			timeIndex = new TimeIndex(this);
+
+		return timeIndex;
+	}
+
 	/**
 	 * Set a value to entry [row, column]
 	 *
@@ -541,6 +593,21 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return size;
 	}
 
+	/**
+	 * compute the similarity of two rows in place, without copying them into sparse vectors
+	 *
+	 * @param row1      row id
+	 * @param row2      row id
+	 * @param method    similarity method, see {@code Sims.method}
+	 * @param shrinkage shrinkage of similarity; disabled if non-positive
+	 * @param median    median rating, used by CPC
+	 * @return the similarity of two rows; NaN if not computable
+	 */
+	public double rowSimilarity(int row1, int row2, int method, int shrinkage, double median) {
+		return Sims.similarity(method, shrinkage, median, colInd, rowData, rowPtr[row1], rowPtr[row1 + 1], colInd,
+				rowData, rowPtr[row2], rowPtr[row2 + 1]);
+	}
+
 	/**
 	 * query the size of a specific row
 	 *
@@ -594,6 +661,24 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return sv;
 	}
 
+	/**
+	 * compute the similarity of two columns in place, without copying them into sparse vectors
+	 *
+	 * @param col1      column id
+	 * @param col2      column id
+	 * @param method    similarity method, see {@code Sims.method}
+	 * @param shrinkage shrinkage of similarity; disabled if non-positive
+	 * @param median    median rating, used by CPC
+	 * @return the similarity of two columns; NaN if not computable
+	 */
+	public double columnSimilarity(int col1, int col2, int method, int shrinkage, double median) {
+		// columns that do not exist in the matrix are empty
+		int from1 = col1 < numColumns ? colPtr[col1] : 0, to1 = col1 < numColumns ? colPtr[col1 + 1] : 0;
+		int from2 = col2 < numColumns ? colPtr[col2] : 0, to2 = col2 < numColumns ? colPtr[col2 + 1] : 0;
+
+		return Sims.similarity(method, shrinkage, median, rowInd, colData, from1, to1, rowInd, colData, from2, to2);
+	}
+
 	/**
 	 * query the size of a specific col
 	 *
@@ -735,6 +820,8 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 	 * remove zero entries of the given matrix
 	 */
 	public static void reshape(SparseMatrix mat) {
+		if (mat instanceof FrozenSparseMatrix)
+			throw new UnsupportedOperationException("A frozen matrix is immutable");
 
 		SparseMatrix res = new SparseMatrix(mat.numRows, mat.numColumns);
 		int nnz = mat.size();
@@ -19,29 +19,42 @@ package librec.data;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import librec.util.Randoms;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
+
+import com.google.common.primitives.Ints;
 
 /**
- * 
+ *
  * Data Structure: Sparse Tensor <br>
- * 
+ *
  * <p>
  * For easy documentation, here we use {@code (keys, value)} to indicate each entry of a tensor, and {@code index} is
- * used to indicate the position in which the entry is stored in the lists.
+ * used to indicate the position in which the entry is stored in the arrays.
  * </p>
- * 
+ *
+ * <p>
+ * Entries are stored in coordinate (COO) format by primitive arrays, i.e., an array of keys per dimension and an array
+ * of values. An entry is found by its keys through a hash table of indices, and the entries of a key in an indexed
+ * dimension through a compressed index of the dimension (the first level of a CSF tree) built by a counting sort.
+ * Both are rebuilt lazily after entries are added, removed or shuffled.
+ * </p>
+ *
  * <p>
  * <Strong>Reference:</strong> Kolda and Bader, <strong>Tensor Decompositions and Applications</strong>, SIAM REVIEW,
  * Vol. 51, No. 3, pp. 455–500
  * </p>
- * 
+ *
  * @author Guo Guibing
  *
  */
@@ -49,6 +62,9 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 	private static final long serialVersionUID = 2487513413901432943L;
 
+	// entries per block of parallel operations
+	private static final int BLOCK = 1 << 14;
+
 	private class TensorIterator implements Iterator<TensorEntry> {
 
 		private int index = 0;
@@ -56,17 +72,21 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		@Override
 		public boolean hasNext() {
-			return index < values.size();
+			return index < size;
 		}
 
 		@Override
 		public TensorEntry next() {
+			if (index >= size)
+				throw new NoSuchElementException();
 			return entry.update(index++);
 		}
 
 		@Override
 		public void remove() {
 			entry.remove();
+			// the next entry is moved to the current index
+			index--;
 		}
 
 	}
@@ -82,32 +102,24 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		@Override
 		public int key(int d) {
-			return ndKeys[d].get(index);
+			return ndKeys[d][index];
 		}
 
 		@Override
 		public double get() {
-			return values.get(index);
+			return values[index];
 		}
 
 		@Override
 		public void set(double value) {
-			values.set(index, value);
+			values[index] = value;
 		}
 
 		/**
 		 * remove the current entry
 		 */
 		public void remove() {
-			for (int d = 0; d < numDimensions; d++) {
-
-				// update indices if necessary
-				if (isIndexed(d))
-					keyIndices[d].remove(key(d), index);
-
-				ndKeys[d].remove(index);
-			}
-			values.remove(index);
+			removeAt(index);
 		}
 
 		public String toString() {
@@ -122,12 +134,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		@Override
 		public int[] keys() {
-			int[] res = new int[numDimensions];
-			for (int d = 0; d < numDimensions; d++) {
-				res[d] = key(d);
-			}
-
-			return res;
+			return SparseTensor.this.keys(index);
 		}
 
 	}
@@ -137,10 +144,15 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 */
 	private int numDimensions;
 	private int[] dimensions;
-	private List<Integer>[] ndKeys; // n-dimensional array
-	private List<Double> values; // values
+	private int[][] ndKeys; // n-dimensional keys, an array per dimension
+	private double[] values; // values
+	private int size; // number of entries
+
+	// hash table of (index + 1) by entry keys, 0 if empty; null if not built
+	private transient int[] table;
 
-	private Multimap<Integer, Integer>[] keyIndices; // each multimap = {key, {pos1, pos2, ...}}
+	// compressed indices of dimensions: entry indices sorted by keys, and pointers of keys to them; null if not built
+	private int[][] keyPtrs, keyIndices;
 	private List<Integer> indexedDimensions; // indexed dimensions
 
 	// dimensions of users and items
@@ -148,17 +160,17 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 	/**
 	 * Construct an empty sparse tensor
-	 * 
+	 *
 	 * @param dims
 	 *            dimensions of a tensor
 	 */
 	public SparseTensor(int... dims) {
-		this(dims, null, null);
+		this(dims, (int[][]) null, null);
 	}
 
 	/**
 	 * Construct a sparse tensor with indices and values
-	 * 
+	 *
 	 * @param dims
 	 *            dimensions of a tensor
 	 * @param nds
@@ -166,42 +178,63 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 * @param vals
 	 *            entry values
 	 */
-	@SuppressWarnings("unchecked")
 	public SparseTensor(int[] dims, List<Integer>[] nds, List<Double> vals) {
+		this(dims, nds == null ? null : toArrays(nds), vals == null ? null : toArray(vals));
+	}
+
+	/**
+	 * Construct a sparse tensor with indices and values, where the arrays are used without copying
+	 *
+	 * @param dims
+	 *            dimensions of a tensor
+	 * @param nds
+	 *            n-dimensional keys, an array per dimension
+	 * @param vals
+	 *            entry values
+	 */
+	public SparseTensor(int[] dims, int[][] nds, double[] vals) {
 		if (dims.length < 3)
 			throw new Error("The dimension of a tensor cannot be smaller than 3!");
 
 		numDimensions = dims.length;
-		dimensions = new int[numDimensions];
+		dimensions = dims.clone();
 
-		ndKeys = (List<Integer>[]) new List<?>[numDimensions];
-		keyIndices = (Multimap<Integer, Integer>[]) new Multimap<?, ?>[numDimensions];
-
-		for (int d = 0; d < numDimensions; d++) {
-			dimensions[d] = dims[d];
-			ndKeys[d] = nds == null ? new ArrayList<Integer>() : new ArrayList<Integer>(nds[d]);
-			keyIndices[d] = HashMultimap.create();
-			//System.out.println(keyIndices[d]);
-		}
+		size = vals == null ? 0 : vals.length;
+		values = vals == null ? new double[16] : vals;
+		ndKeys = new int[numDimensions][];
+		for (int d = 0; d < numDimensions; d++)
+			ndKeys[d] = nds == null ? new int[values.length] : nds[d];
 
-		values = vals == null ? new ArrayList<Double>() : new ArrayList<>(vals);
+		keyPtrs = new int[numDimensions][];
+		keyIndices = new int[numDimensions][];
 		indexedDimensions = new ArrayList<>(numDimensions);
-			
+	}
+
+	private static int[][] toArrays(List<Integer>[] nds) {
+		int[][] res = new int[nds.length][];
+		for (int d = 0; d < nds.length; d++)
+			res[d] = Ints.toArray(nds[d]);
+
+		return res;
+	}
+
+	private static double[] toArray(List<Double> vals) {
+		double[] res = new double[vals.size()];
+		for (int i = 0; i < res.length; i++)
+			res[i] = vals.get(i);
+
+		return res;
 	}
 
 	/**
 	 * make a deep clone
 	 */
 	public SparseTensor clone() {
-		SparseTensor res = new SparseTensor(dimensions);
-
-		// copy indices and values
-		for (int d = 0; d < numDimensions; d++) {
-			res.ndKeys[d].addAll(this.ndKeys[d]);
-			res.keyIndices[d].putAll(this.keyIndices[d]);
-		}
+		int[][] nds = new int[numDimensions][];
+		for (int d = 0; d < numDimensions; d++)
+			nds[d] = Arrays.copyOf(ndKeys[d], size);
 
-		res.values.addAll(this.values);
+		SparseTensor res = new SparseTensor(dimensions, nds, Arrays.copyOf(values, size));
 
 		// copy indexed array
 		res.indexedDimensions.addAll(this.indexedDimensions);
@@ -215,7 +248,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 	/**
 	 * Add a value to a given i-entry
-	 * 
+	 *
 	 * @param val
 	 *            value to add
 	 * @param keys
@@ -227,16 +260,16 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		if (index >= 0) {
 			// if keys exist: update value
-			values.set(index, values.get(index) + val);
+			values[index] += val;
 		} else {
 			// if keys do not exist: add a new entry
-			set(val, keys);
+			append(val, keys);
 		}
 	}
 
 	/**
 	 * Set a value to a specific i-entry
-	 * 
+	 *
 	 * @param val
 	 *            value to set
 	 * @param keys
@@ -247,23 +280,52 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		// if i-entry exists, set it a new value
 		if (index >= 0) {
-			values.set(index, val);
+			values[index] = val;
 			return;
 		}
 
 		// otherwise insert a new entry
-		for (int d = 0; d < numDimensions; d++) {
-			ndKeys[d].add(keys[d]);
+		append(val, keys);
+	}
 
-			// update indices if necessary
-			if (isIndexed(d)) {
-				keyIndices[d].put(keys[d], ndKeys[d].size() - 1);
+	/**
+	 * append a new entry
+	 */
+	private void append(double val, int... keys) {
+		if (size == values.length) {
+			int capacity = Math.max(16, size + (size >> 1));
+			values = Arrays.copyOf(values, capacity);
+			for (int d = 0; d < numDimensions; d++)
+				ndKeys[d] = Arrays.copyOf(ndKeys[d], capacity);
+		}
 
-				// other keys' indices do not change
-			}
+		for (int d = 0; d < numDimensions; d++)
+			ndKeys[d][size] = keys[d];
+		values[size] = val;
+		size++;
+
+		// the hash table is updated, and indices of dimensions are rebuilt when used
+		if (table != null) {
+			if (2 * size > table.length)
+				table = null;
+			else
+				insert(size - 1);
 		}
-		values.add(val);
+		invalidateIndices();
+	}
 
+	/**
+	 * remove the entry in a given index
+	 */
+	private void removeAt(int index) {
+		int len = size - index - 1;
+		for (int d = 0; d < numDimensions; d++)
+			System.arraycopy(ndKeys[d], index + 1, ndKeys[d], index, len);
+		System.arraycopy(values, index + 1, values, index, len);
+		size--;
+
+		table = null;
+		invalidateIndices();
 	}
 
 	/**
@@ -276,15 +338,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (index < 0)
 			return false;
 
-		for (int d = 0; d < numDimensions; d++) {
-			ndKeys[d].remove(index);
-
-			// update indices if necessary
-			if (isIndexed(d)) {
-				buildIndex(d); // re-build indices
-			}
-		}
-		values.remove(index);
+		removeAt(index);
 
 		return true;
 	}
@@ -304,50 +358,54 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 		return res;
 	}
-	
-	
+
+
 	/**
 	 * @return all entries for a numDimensions-1 dimension subKey
-	 * @throws Exception 
+	 * @throws Exception
 	 */
 	public List<Integer> getTargetKeyFromSubKey(Integer[] subKey) throws Exception {
 		List<Integer> res = new ArrayList<>();
 		if (subKey.length != numDimensions-1)
 			throw new Exception("The given input does not match with the subKey dimension!");
 		// if no data exists
-		if (values.size() == 0)
+		if (size == 0)
 			return null;
 
 		// if no indexed dimension exists
 		if (indexedDimensions.size() == 0)
 			buildIndex(0);
 
-		// retrieve from the first indexed dimension
+		// retrieve from the first indexed dimension of the subKey
 		int d = indexedDimensions.get(0);
+		if (d == numDimensions - 1)
+			d = 0;
 
 		// all relevant positions
-		Collection<Integer> indices = keyIndices[d].get(subKey[d]);
-		if (indices == null || indices.size() == 0)
+		int[] ptr = keyPtrs(d), indices = keyIndices[d];
+		int key = subKey[d];
+		if (key < 0 || key + 1 >= ptr.length || ptr[key] == ptr[key + 1])
 			return null;
 
 		// for each possible position
-		for (int index : indices) {
+		for (int k = ptr[key]; k < ptr[key + 1]; k++) {
+			int index = indices[k];
 			boolean found = true;
 			for (int dd = 0; dd < numDimensions-1; dd++) {
-				if (subKey[dd] != key(dd, index)) {
+				if (subKey[dd] != ndKeys[dd][index]) {
 					found = false;
 					break;
 				}
 			}
 			if (found)
-				res.add(ndKeys[numDimensions-1].get(index));
+				res.add(ndKeys[numDimensions-1][index]);
 		}
 
 		return res;
 	}
-	
-	
-	
+
+
+
 	/**
 	 * find the inner index of a given keys
 	 */
@@ -357,31 +415,16 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 			throw new Exception("The given input does not match with the tensor dimension!");
 
 		// if no data exists
-		if (values.size() == 0)
+		if (size == 0)
 			return -1;
 
-		// if no indexed dimension exists
-		if (indexedDimensions.size() == 0)
-			buildIndex(0);
-
-		// retrieve from the first indexed dimension
-		int d = indexedDimensions.get(0);
-
-		// all relevant positions
-		Collection<Integer> indices = keyIndices[d].get(keys[d]);
-		if (indices == null || indices.size() == 0)
-			return -1;
+		if (table == null)
+			buildTable();
 
-		// for each possible position
-		for (int index : indices) {
-			boolean found = true;
-			for (int dd = 0; dd < numDimensions; dd++) {
-				if (keys[dd] != key(dd, index)) {
-					found = false;
-					break;
-				}
-			}
-			if (found)
+		int mask = table.length - 1;
+		for (int s = hash(keys) & mask; table[s] != 0; s = (s + 1) & mask) {
+			int index = table[s] - 1;
+			if (equals(index, keys))
 				return index;
 		}
 
@@ -390,10 +433,106 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 	}
 
+	private static int hash(int[] keys) {
+		int h = 1;
+		for (int key : keys)
+			h = 31 * h + key;
+
+		return mix(h);
+	}
+
+	private int hash(int index) {
+		int h = 1;
+		for (int d = 0; d < numDimensions; d++)
+			h = 31 * h + ndKeys[d][index];
+
+		return mix(h);
+	}
+
+	private static int mix(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private boolean equals(int index, int[] keys) {
+		for (int d = 0; d < numDimensions; d++) {
+			if (ndKeys[d][index] != keys[d])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * build the hash table of entries, where the first of duplicated entries is found
+	 */
+	private void buildTable() {
+		int capacity = 16;
+		while (capacity < 2 * size + 2)
+			capacity <<= 1;
+
+		table = new int[capacity];
+		for (int index = 0; index < size; index++)
+			insert(index);
+	}
+
+	/**
+	 * insert an entry to the hash table, unless its keys are there
+	 */
+	private void insert(int index) {
+		int mask = table.length - 1;
+		int s = hash(index) & mask;
+		for (; table[s] != 0; s = (s + 1) & mask) {
+			int other = table[s] - 1;
+			boolean same = true;
+			for (int d = 0; d < numDimensions && same; d++)
+				same = ndKeys[d][other] == ndKeys[d][index];
+			if (same)
+				return;
+		}
+		table[s] = index + 1;
+	}
+
+	private void invalidateIndices() {
+		for (int d = 0; d < numDimensions; d++) {
+			keyPtrs[d] = null;
+			keyIndices[d] = null;
+		}
+	}
+
+	/**
+	 * @return pointers of keys of dimension d to its sorted entry indices, which are (re)built if necessary
+	 */
+	private int[] keyPtrs(int d) {
+		if (keyPtrs[d] == null) {
+			int[] keys = ndKeys[d];
+			int range = dimensions[d];
+			for (int index = 0; index < size; index++)
+				range = Math.max(range, keys[index] + 1);
+
+			// counting sort of entries by keys, stable in indices
+			int[] ptr = new int[range + 1];
+			for (int index = 0; index < size; index++)
+				ptr[keys[index] + 1]++;
+			for (int k = 0; k < range; k++)
+				ptr[k + 1] += ptr[k];
+
+			int[] indices = new int[size];
+			int[] pos = Arrays.copyOf(ptr, range);
+			for (int index = 0; index < size; index++)
+				indices[pos[keys[index]]++] = index;
+
+			keyIndices[d] = indices;
+			keyPtrs[d] = ptr;
+		}
+
+		return keyPtrs[d];
+	}
+
 	/**
 	 * A fiber is defined by fixing every index but one. For example, a matrix column is a mode-1 fiber and a matrix row
 	 * is a mode-2 fiber.
-	 * 
+	 *
 	 * @param dim
 	 *            the dimension where values can vary
 	 * @param keys
@@ -421,25 +560,27 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		SparseVector res = new SparseVector(dimensions[dim]);
 
 		// all relevant positions
-		Collection<Integer> indices = keyIndices[d].get(keys[d < dim ? d : d - 1]);
-		if (indices == null || indices.size() == 0)
+		int[] ptr = keyPtrs(d), indices = keyIndices[d];
+		int key = keys[d < dim ? d : d - 1];
+		if (key < 0 || key + 1 >= ptr.length)
 			return res;
 
 		// for each possible position
-		for (int index : indices) {
+		for (int k = ptr[key]; k < ptr[key + 1]; k++) {
+			int index = indices[k];
 			boolean found = true;
 			for (int dd = 0, ndi = 0; dd < numDimensions; dd++) {
 
 				if (dd == dim)
 					continue;
 
-				if (keys[ndi++] != key(dd, index)) {
+				if (keys[ndi++] != ndKeys[dd][index]) {
 					found = false;
 					break;
 				}
 			}
 			if (found) {
-				res.set(key(dim, index), value(index));
+				res.set(ndKeys[dim][index], values[index]);
 			}
 		}
 
@@ -448,7 +589,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 
 	/**
 	 * Check if a given keys exists
-	 * 
+	 *
 	 * @param keys
 	 *            keys to check
 	 * @return true if found, and false otherwise
@@ -481,13 +622,11 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 * @return whether a tensor is diagonal
 	 */
 	public boolean isDiagonal() {
-		for (TensorEntry te : this) {
-			double val = te.get();
-			if (val != 0) {
-				int i = te.key(0);
+		for (int index = 0; index < size; index++) {
+			if (values[index] != 0) {
+				int i = ndKeys[0][index];
 				for (int d = 0; d < numDimensions; d++) {
-					int j = te.key(d);
-					if (i != j)
+					if (i != ndKeys[d][index])
 						return false;
 				}
 			}
@@ -503,7 +642,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		assert keys.length == this.numDimensions;
 
 		int index = findIndex(keys);
-		return index < 0 ? 0 : values.get(index);
+		return index < 0 ? 0 : values[index];
 	}
 
 	/**
@@ -516,43 +655,34 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 			int j = i + Randoms.uniform(len - i);
 
 			// swap values
-			double temp = values.get(i);
-			values.set(i, values.get(j));
-			values.set(j, temp);
+			double temp = values[i];
+			values[i] = values[j];
+			values[j] = temp;
 
 			// swap keys
 			for (int d = 0; d < numDimensions; d++) {
-				int ikey = key(d, i);
-				int jkey = key(d, j);
-				ndKeys[d].set(i, jkey);
-				ndKeys[d].set(j, ikey);
-
-				// update indices
-				if (isIndexed(d)) {
-					keyIndices[d].remove(jkey, j);
-					keyIndices[d].put(jkey, i);
-
-					keyIndices[d].remove(ikey, i);
-					keyIndices[d].put(ikey, j);
-				}
-
+				int[] keys = ndKeys[d];
+				int ikey = keys[i];
+				keys[i] = keys[j];
+				keys[j] = ikey;
 			}
-
 		}
+
+		// indices are rebuilt when used
+		table = null;
+		invalidateIndices();
 	}
 
 	/**
 	 * build index at dimensions nd
-	 * 
+	 *
 	 * @param dims
 	 *            dimensions to be indexed
 	 */
 	public void buildIndex(int... dims) {
 		for (int d : dims) {
-			keyIndices[d].clear();
-			for (int index = 0; index < ndKeys[d].size(); index++) {
-				keyIndices[d].put(key(d, index), index);
-			}
+			keyPtrs[d] = null;
+			keyPtrs(d);
 
 			if (!indexedDimensions.contains(d))
 				indexedDimensions.add(d);
@@ -575,7 +705,11 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (!isIndexed(d))
 			buildIndex(d);
 
-		return keyIndices[d].get(key);
+		int[] ptr = keyPtrs(d);
+		if (key < 0 || key + 1 >= ptr.length)
+			return Collections.emptyList();
+
+		return Ints.asList(keyIndices[d]).subList(ptr[key], ptr[key + 1]);
 	}
 
 	/**
@@ -584,7 +718,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	public int[] keys(int index) {
 		int[] res = new int[numDimensions];
 		for (int d = 0; d < numDimensions; d++) {
-			res[d] = key(d, index);
+			res[d] = ndKeys[d][index];
 		}
 
 		return res;
@@ -594,14 +728,14 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 * @return key in the position {@code index} of dimension {@code d}
 	 */
 	public int key(int d, int index) {
-		return ndKeys[d].get(index);
+		return ndKeys[d][index];
 	}
 
 	/**
 	 * @return value in a given index
 	 */
 	public double value(int index) {
-		return values.get(index);
+		return values[index];
 	}
 
 	/**
@@ -611,7 +745,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 *            key in the source dimension
 	 * @param td
 	 *            target dimension
-	 * 
+	 *
 	 * @return keys in a target dimension {@code td} related with a key in dimension {@code sd}
 	 */
 	public List<Integer> getRelevantKeys(int sd, int key, int td) {
@@ -620,7 +754,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (indices != null) {
 			res = new ArrayList<>();
 			for (int index : indices) {
-				res.add(key(td, index));
+				res.add(ndKeys[td][index]);
 			}
 		}
 
@@ -631,19 +765,19 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	 * @return number of entries of the tensor
 	 */
 	public int size() {
-		return values.size();
+		return size;
 	}
 
 	/**
 	 * Slice is a two-dimensional sub-array of a tensor, defined by fixing all but two indices.
-	 * 
+	 *
 	 * @param rowDim
 	 *            row dimension
 	 * @param colDim
 	 *            column dimension
 	 * @param otherKeys
 	 *            keys of other dimensions
-	 * 
+	 *
 	 * @return a sparse matrix
 	 */
 	public SparseMatrix slice(int rowDim, int colDim, int... otherKeys) {
@@ -651,7 +785,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (otherKeys.length != numDimensions - 2)
 			throw new Error("The input dimensions do not match the tensor specification!");
 
-		// find an indexed array to search 
+		// find an indexed array to search
 		int d = -1;
 		boolean cond1 = indexedDimensions.size() == 0;
 		boolean cond2 = (indexedDimensions.contains(rowDim) || indexedDimensions.contains(colDim))
@@ -687,47 +821,47 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		}
 
 		// all relevant positions
-		Collection<Integer> indices = keyIndices[d].get(key);
-		if (indices == null || indices.size() == 0)
+		int[] ptr = keyPtrs(d), indices = keyIndices[d];
+		if (key < 0 || key + 1 >= ptr.length || ptr[key] == ptr[key + 1])
 			return null;
 
-		Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-		Multimap<Integer, Integer> colMap = HashMultimap.create();
+		int n = ptr[key + 1] - ptr[key];
+		int[] rows = new int[n], cols = new int[n];
+		double[] vals = new double[n];
+		int m = 0;
 
 		// for each possible position
-		for (int index : indices) {
+		for (int k = ptr[key]; k < ptr[key + 1]; k++) {
+			int index = indices[k];
 			boolean found = true;
 			for (int dd = 0, j = 0; dd < numDimensions; dd++) {
 
 				if (dd == rowDim || dd == colDim)
 					continue;
 
-				if (otherKeys[j++] != key(dd, index)) {
+				if (otherKeys[j++] != ndKeys[dd][index]) {
 					found = false;
 					break;
 				}
 			}
 			if (found) {
-				int row = ndKeys[rowDim].get(index);
-				int col = ndKeys[colDim].get(index);
-				double val = values.get(index);
-
-				dataTable.put(row, col, val);
-				colMap.put(col, row);
+				rows[m] = ndKeys[rowDim][index];
+				cols[m] = ndKeys[colDim][index];
+				vals[m++] = values[index];
 			}
 		}
 
-		return new SparseMatrix(dimensions[rowDim], dimensions[colDim], dataTable, colMap);
+		return toMatrix(dimensions[rowDim], dimensions[colDim], rows, cols, vals, m);
 	}
 
 	/**
 	 * Re-ordering entries of a tensor into a matrix
-	 * 
+	 *
 	 * @param n
 	 *            mode or dimension
 	 * @return an unfolded or flatten matrix
 	 */
-	public SparseMatrix matricization(int n) {
+	public SparseMatrix matricization(final int n) {
 		int numRows = dimensions[n];
 		int numCols = 1;
 		for (int d = 0; d < numDimensions; d++) {
@@ -735,38 +869,37 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 				numCols *= dimensions[d];
 		}
 
-		Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-		Multimap<Integer, Integer> colMap = HashMultimap.create();
-		for (TensorEntry te : this) {
-			int[] keys = te.keys();
-
-			int i = keys[n];
-			int j = 0;
-			for (int k = 0; k < numDimensions; k++) {
-				if (k == n)
-					continue;
+		// strides of the other dimensions in a column index
+		final int[] strides = new int[numDimensions];
+		for (int k = 0, stride = 1; k < numDimensions; k++) {
+			if (k == n)
+				continue;
+			strides[k] = stride;
+			stride *= dimensions[k];
+		}
 
-				int ik = keys[k];
-				int jk = 1;
-				for (int m = 0; m < k; m++) {
-					if (m == n)
-						continue;
-					jk *= dimensions[m];
+		final int[] cols = new int[size];
+		parallel(size, new Block() {
+
+			@Override
+			public void run(int from, int to) {
+				for (int index = from; index < to; index++) {
+					int j = 0;
+					for (int k = 0; k < numDimensions; k++) {
+						if (k != n)
+							j += ndKeys[k][index] * strides[k];
+					}
+					cols[index] = j;
 				}
-
-				j += ik * jk;
 			}
+		});
 
-			dataTable.put(i, j, te.get());
-			colMap.put(j, i);
-		}
-
-		return new SparseMatrix(numRows, numCols, dataTable, colMap);
+		return toMatrix(numRows, numCols, ndKeys[n], cols, values, size);
 	}
 
 	/**
 	 * n-mode product of a tensor A (I1 x I2 x ... x IN) with a matrix B (J x In), denoted by A Xn B
-	 * 
+	 *
 	 * @param mat
 	 *            mat to be multiplied
 	 * @param dim
@@ -778,34 +911,12 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (dimensions[dim] != mat.numColumns)
 			throw new Exception("Dimensions of a tensor and a matrix do not match for n-mode product!");
 
-		int[] dims = new int[numDimensions];
-		for (int i = 0; i < dims.length; i++) {
-			dims[i] = i == dim ? mat.numRows : dimensions[i];
-		}
-
-		SparseTensor res = new SparseTensor(dims);
-
-		for (TensorEntry te : this) {
-			double val = te.get();
-			int[] keys = te.keys();
-
-			int i = keys[dim];
-			for (int j = 0; j < mat.numRows; j++) {
-
-				int[] ks = new int[numDimensions];
-				for (int k = 0; k < ks.length; k++)
-					ks[k] = k == dim ? j : keys[k];
-
-				res.add(val * mat.get(j, i), ks);
-			}
-		}
-
-		return res;
+		return modeProduct(dim, mat, null);
 	}
 
 	/**
 	 * n-mode product of a tensor A (I1 x I2 x ... x IN) with a vector B (1 x In), denoted by A Xn B
-	 * 
+	 *
 	 * @param vec
 	 *            vector to be multiplied
 	 * @param dim
@@ -817,29 +928,222 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 		if (dimensions[dim] != vec.size)
 			throw new Exception("Dimensions of a tensor and a vector do not match for n-mode product!");
 
+		return modeProduct(dim, null, vec);
+	}
+
+	/**
+	 * n-mode product with either a matrix or a vector (whose products have key 1 in dimension dim). Entries are grouped
+	 * into the fibers of dimension dim, which are ordered by their first entries and multiplied in parallel.
+	 */
+	private SparseTensor modeProduct(final int dim, final DenseMatrix mat, final DenseVector vec) throws Exception {
+		final int numRows = mat != null ? mat.numRows : 1;
+
 		int[] dims = new int[numDimensions];
 		for (int i = 0; i < dims.length; i++) {
-			dims[i] = i == dim ? 1 : dimensions[i];
+			dims[i] = i == dim ? numRows : dimensions[i];
 		}
 
-		SparseTensor res = new SparseTensor(dims);
-
-		for (TensorEntry te : this) {
-			double val = te.get();
-			int[] keys = te.keys();
+		// entries sorted by the keys of the other dimensions, stable in indices
+		int[] order = new int[size];
+		for (int index = 0; index < size; index++)
+			order[index] = index;
+		for (int d = numDimensions - 1; d >= 0; d--) {
+			if (d != dim)
+				order = sortBy(ndKeys[d], order);
+		}
 
-			int i = keys[dim];
+		// fibers are ranges [fiberPtr[f], fiberPtr[f + 1]) of sorted entries
+		int numFibers = 0;
+		int[] fiberPtr = new int[size + 1];
+		for (int k = 0; k < size; k++) {
+			if (k == 0 || !isSameFiber(order[k - 1], order[k], dim))
+				fiberPtr[numFibers++] = k;
+		}
+		fiberPtr[numFibers] = size;
+
+		// fibers in the order of their first entries
+		long[] firsts = new long[numFibers];
+		for (int f = 0; f < numFibers; f++)
+			firsts[f] = (long) order[fiberPtr[f]] << 32 | f;
+		Arrays.sort(firsts);
+
+		final int[] sorted = order, ptr = fiberPtr;
+		final int[] fibers = new int[numFibers];
+		for (int f = 0; f < numFibers; f++)
+			fibers[f] = (int) firsts[f];
+
+		int n = numFibers * numRows;
+		final int[][] nds = new int[numDimensions][n];
+		final double[] vals = new double[n];
+		parallel(numFibers, new Block() {
+
+			@Override
+			public void run(int from, int to) {
+				for (int f = from; f < to; f++) {
+					int fiber = fibers[f];
+					int first = sorted[ptr[fiber]];
+					for (int j = 0; j < numRows; j++) {
+						int index = f * numRows + j;
+
+						// sum in the order of entries
+						double sum = 0;
+						for (int k = ptr[fiber]; k < ptr[fiber + 1]; k++) {
+							int e = sorted[k];
+							int i = ndKeys[dim][e];
+							double val = values[e] * (mat != null ? mat.get(j, i) : vec.get(i));
+							sum = k == ptr[fiber] ? val : sum + val;
+						}
+
+						vals[index] = sum;
+						for (int d = 0; d < numDimensions; d++)
+							nds[d][index] = d == dim ? (mat != null ? j : 1) : ndKeys[d][first];
+					}
+				}
+			}
+		});
 
-			int[] ks = new int[numDimensions];
-			for (int k = 0; k < ks.length; k++)
-				ks[k] = k == dim ? 1 : keys[k];
+		return new SparseTensor(dims, nds, vals);
+	}
 
-			res.add(val * vec.get(i), ks);
+	/**
+	 * @return whether two entries are in the same fiber of dimension dim
+	 */
+	private boolean isSameFiber(int a, int b, int dim) {
+		for (int d = 0; d < numDimensions; d++) {
+			if (d != dim && ndKeys[d][a] != ndKeys[d][b])
+				return false;
 		}
 
+		return true;
+	}
+
+	/**
+	 * @return indices stably sorted by their keys, by a counting sort
+	 */
+	private static int[] sortBy(int[] keys, int[] indices) {
+		int range = 0;
+		for (int index : indices)
+			range = Math.max(range, keys[index] + 1);
+
+		int[] ptr = new int[range + 1];
+		for (int index : indices)
+			ptr[keys[index] + 1]++;
+		for (int k = 0; k < range; k++)
+			ptr[k + 1] += ptr[k];
+
+		int[] res = new int[indices.length];
+		for (int index : indices)
+			res[ptr[keys[index]]++] = index;
+
 		return res;
 	}
 
+	/**
+	 * @return a sparse matrix of the first n coordinates, where the last of duplicated entries is kept
+	 */
+	private static SparseMatrix toMatrix(int numRows, int numCols, int[] rows, int[] cols, double[] vals, int n) {
+		// stable sorts by columns and then by rows
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		order = sortBy(cols, order);
+		order = sortBy(rows, order);
+
+		// CRS
+		int nnz = 0;
+		for (int k = 0; k < n; k++) {
+			int i = order[k];
+			if (k + 1 < n && rows[order[k + 1]] == rows[i] && cols[order[k + 1]] == cols[i])
+				continue;
+			order[nnz++] = i;
+		}
+
+		int[] rowPtr = new int[numRows + 1];
+		int[] colInd = new int[nnz];
+		double[] rowData = new double[nnz];
+		for (int k = 0; k < nnz; k++) {
+			int i = order[k];
+			rowPtr[rows[i] + 1]++;
+			colInd[k] = cols[i];
+			rowData[k] = vals[i];
+		}
+		for (int u = 0; u < numRows; u++)
+			rowPtr[u + 1] += rowPtr[u];
+
+		// CCS
+		int[] colPtr = new int[numCols + 1];
+		for (int k = 0; k < nnz; k++)
+			colPtr[colInd[k] + 1]++;
+		for (int j = 0; j < numCols; j++)
+			colPtr[j + 1] += colPtr[j];
+
+		int[] rowInd = new int[nnz];
+		double[] colData = new double[nnz];
+		int[] pos = Arrays.copyOf(colPtr, numCols);
+		for (int u = 0; u < numRows; u++) {
+			for (int k = rowPtr[u]; k < rowPtr[u + 1]; k++) {
+				int q = pos[colInd[k]]++;
+				rowInd[q] = u;
+				colData[q] = rowData[k];
+			}
+		}
+
+		return new SparseMatrix(numRows, numCols, rowPtr, colInd, rowData, colPtr, rowInd, colData);
+	}
+
+	/**
+	 * A block [from, to) of a parallel operation
+	 */
+	private interface Block {
+		void run(int from, int to);
+	}
+
+	/**
+	 * run the blocks of [0, n) in parallel
+	 */
+	private static void parallel(final int n, final Block block) {
+		final int numBlocks = (n + BLOCK - 1) / BLOCK;
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), numBlocks);
+		if (threads <= 1) {
+			block.run(0, n);
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final RuntimeException[] error = new RuntimeException[1];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						int b;
+						while ((b = next.getAndIncrement()) < numBlocks && error[0] == null)
+							block.run(b * BLOCK, Math.min(n, (b + 1) * BLOCK));
+					} catch (RuntimeException e) {
+						error[0] = e;
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdown();
+		}
+
+		if (error[0] != null)
+			throw error[0];
+	}
+
     /**
      * retrieve a rating matrix from the tensor. Warning: it assumes there is at most one entry for each (user, item)
      * pair.
@@ -847,19 +1151,8 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
      * @return a sparse rating matrix
      */
 	public SparseMatrix rateMatrix() {
-
-		Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-		Multimap<Integer, Integer> colMap = HashMultimap.create();
-
-		for (TensorEntry te : this) {
-			int u = te.key(userDimension);
-			int i = te.key(itemDimension);
-
-			dataTable.put(u, i, te.get());
-			colMap.put(i, u);
-		}
-
-		return new SparseMatrix(dimensions[userDimension], dimensions[itemDimension], dataTable, colMap);
+		return toMatrix(dimensions[userDimension], dimensions[itemDimension], ndKeys[userDimension],
+				ndKeys[itemDimension], values, size);
 	}
 
 	@Override
@@ -873,8 +1166,8 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	public double norm() {
 		double res = 0;
 
-		for (double val : values) {
-			res += val * val;
+		for (int index = 0; index < size; index++) {
+			res += values[index] * values[index];
 		}
 
 		return Math.sqrt(res);
@@ -888,9 +1181,9 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 			throw new Exception("The dimensions of two sparse tensors do not match!");
 
 		double res = 0;
-		for (TensorEntry te : this) {
-			double v1 = te.get();
-			double v2 = st.get(te.keys());
+		for (int index = 0; index < size; index++) {
+			double v1 = values[index];
+			double v2 = st.get(keys(index));
 
 			res += v1 * v2;
 		}
@@ -947,7 +1240,7 @@ public class SparseTensor implements Iterable<TensorEntry>, Serializable {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("N-Dimension: ").append(numDimensions).append(", Size: ").append(size()).append("\n");
-		for (int index = 0; index < values.size(); index++) {
+		for (int index = 0; index < size; index++) {
 			for (int d = 0; d < numDimensions; d++) {
 				sb.append(key(d, index)).append("\t");
 			}
@@ -19,6 +19,7 @@
 package librec.data;
 
 
+import librec.util.Sims;
 import librec.util.Stats;
 
 import java.io.Serializable;
@@ -325,6 +326,19 @@ public class SparseVector implements Iterable<VectorEntry>, Serializable {
 		return res;
 	}
 
+	/**
+	 * @param method
+	 *            similarity method, see {@code Sims.method}
+	 * @param shrinkage
+	 *            shrink the similarity by n / (n + shrinkage) with n co-rated entries; disabled if non-positive
+	 * @param median
+	 *            median rating, used by CPC
+	 * @return similarity with a given sparse vector, computed by a merge join of both vectors; NaN if not computable
+	 */
+	public double similarity(SparseVector vec, int method, int shrinkage, double median) {
+		return Sims.similarity(method, shrinkage, median, index, data, 0, count, vec.index, vec.data, 0, vec.count);
+	}
+
 	/**
 	 * @return inner product with a given dense vector
 	 */
@@ -18,40 +18,154 @@
 
 package librec.data;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map.Entry;
 
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
+import com.google.common.collect.Table.Cell;
 
 /**
- * Data Structure, Lower Symmetric Matrix
+ * Data Structure, Lower Symmetric Matrix. <br>
+ * 
+ * Besides the default hash table, the data can be stored as (1) a bounded concurrent cache; (2) a packed array of
+ * floats of the upper triangle, for dense similarities of small dimensions; or (3) the top-k neighbors of each row, for
+ * sparse similarities of large dimensions. All storages share the same API, and are serialized in a compact binary
+ * form.
  * 
  * @author guoguibing
  * 
  */
 public class SymmMatrix implements Serializable {
 
-	private static final long serialVersionUID = -6138247653152029007L;
+	private static final long serialVersionUID = -6138247653152029008L;
+
+	// storages of matrix data
+	private static final int TABLE = 0, CACHE = 1, PACKED = 2, TOPK = 3;
 
 	// matrix dimension
 	protected int dim;
+	// storage of matrix data
+	private int storage;
+
 	// matrix data
-	Table<Integer, Integer, Double> data;
+	transient Table<Integer, Integer, Double> data;
+	// bounded concurrent cache of matrix data
+	transient PairCache cache;
+	// packed upper triangle (including the diagonal) in row-major order
+	transient float[] packed;
+	// top-k neighbors of each row: ids, values and numbers of neighbors
+	transient int[][] nnIds;
+	transient float[][] nnVals;
+	transient int[] nnCounts;
 
 	/**
 	 * Construct a symmetric matrix
 	 */
 	public SymmMatrix(int dim) {
 		this.dim = dim;
+		storage = TABLE;
 		data = HashBasedTable.create(); // do not specify the size here as a sparse matrix
 	}
 
+	/**
+	 * Construct a symmetric matrix as a thread-safe cache of at most {@code capacity} entries: entries may be evicted,
+	 * and are then read as 0.
+	 */
+	public SymmMatrix(int dim, int capacity) {
+		this.dim = dim;
+		storage = CACHE;
+		cache = new PairCache(capacity);
+	}
+
+	private SymmMatrix() {
+	}
+
 	/**
 	 * Construct a symmetric matrix by deeply copying data from a given matrix
 	 */
 	public SymmMatrix(SymmMatrix mat) {
 		dim = mat.dim;
-		data = HashBasedTable.create(mat.data);
+		storage = mat.storage;
+
+		switch (storage) {
+		case CACHE:
+			cache = new PairCache(mat.cache);
+			break;
+		case PACKED:
+			packed = mat.packed.clone();
+			break;
+		case TOPK:
+			nnIds = new int[dim][];
+			nnVals = new float[dim][];
+			for (int i = 0; i < dim; i++) {
+				nnIds[i] = mat.nnIds[i].clone();
+				nnVals[i] = mat.nnVals[i].clone();
+			}
+			nnCounts = mat.nnCounts.clone();
+			break;
+		case TABLE:
+		default:
+			data = HashBasedTable.create(mat.data);
+			break;
+		}
+	}
+
+	/**
+	 * @return a symmetric matrix stored as a packed array of floats of the upper triangle, taking 2 * dim * (dim + 1)
+	 *         bytes
+	 */
+	public static SymmMatrix packed(int dim) {
+		long size = dim * (dim + 1L) / 2;
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Dimension " + dim + " is too large for a packed symmetric matrix");
+
+		SymmMatrix mat = new SymmMatrix();
+		mat.dim = dim;
+		mat.storage = PACKED;
+		mat.packed = new float[(int) size];
+
+		return mat;
+	}
+
+	/**
+	 * @return a symmetric matrix that keeps at most k entries with the largest values in each row: {@code set(i, j)}
+	 *         offers the value to both rows i and j, and {@code get(i, j)} looks up both rows
+	 */
+	public static SymmMatrix topK(int dim, int k) {
+		SymmMatrix mat = new SymmMatrix();
+		mat.dim = dim;
+		mat.storage = TOPK;
+		mat.nnIds = new int[dim][k];
+		mat.nnVals = new float[dim][k];
+		mat.nnCounts = new int[dim];
+
+		return mat;
+	}
+
+	/**
+	 * @return a top-k symmetric matrix of given neighbors and their values of each row, e.g., from
+	 *         {@code SimilarityBuilder.buildTopK}
+	 */
+	public static SymmMatrix topK(int[][] neighbors, float[][] values) {
+		int dim = neighbors.length;
+		SymmMatrix mat = new SymmMatrix();
+		mat.dim = dim;
+		mat.storage = TOPK;
+		mat.nnIds = new int[dim][];
+		mat.nnVals = new float[dim][];
+		mat.nnCounts = new int[dim];
+		for (int i = 0; i < dim; i++) {
+			mat.nnIds[i] = neighbors[i] == null ? new int[0] : neighbors[i].clone();
+			mat.nnVals[i] = values[i] == null ? new float[0] : values[i].clone();
+			mat.nnCounts[i] = mat.nnIds[i].length;
+		}
+
+		return mat;
 	}
 
 	/**
@@ -61,56 +175,266 @@ public class SymmMatrix implements Serializable {
 		return new SymmMatrix(this);
 	}
 
+	/**
+	 * @return position of entry (row, col) in the packed upper triangle
+	 */
+	private int packedIndex(int row, int col) {
+		if (row > col) {
+			int t = row;
+			row = col;
+			col = t;
+		}
+
+		return (int) (row * (2L * dim - row + 1) / 2 + (col - row));
+	}
+
+	/**
+	 * @return position of a neighbor in the top-k list of a row, or -1 if not found
+	 */
+	private int nnIndex(int row, int col) {
+		int[] ids = nnIds[row];
+		for (int k = 0, n = nnCounts[row]; k < n; k++) {
+			if (ids[k] == col)
+				return k;
+		}
+
+		return -1;
+	}
+
 	/**
 	 * Get a value at entry (row, col)
 	 */
 	public double get(int row, int col) {
+		switch (storage) {
+		case CACHE:
+			return cache.get(row, col, 0);
+		case PACKED:
+			return packed[packedIndex(row, col)];
+		case TOPK:
+			int k = nnIndex(row, col);
+			if (k >= 0)
+				return nnVals[row][k];
+			k = nnIndex(col, row);
+			return k >= 0 ? nnVals[col][k] : 0.0;
+		case TABLE:
+		default:
+			if (data.contains(row, col))
+				return data.get(row, col);
+			else if (data.contains(col, row))
+				return data.get(col, row);
 
-		if (data.contains(row, col))
-			return data.get(row, col);
-		else if (data.contains(col, row))
-			return data.get(col, row);
-
-		return 0.0;
+			return 0.0;
+		}
 	}
 
 	/**
 	 * set a value to entry (row, col)
 	 */
 	public void set(int row, int col, double val) {
-		if (row >= col)
-			data.put(row, col, val);
-		else
-			data.put(col, row, val);
+		switch (storage) {
+		case CACHE:
+			cache.put(row, col, (float) val);
+			break;
+		case PACKED:
+			packed[packedIndex(row, col)] = (float) val;
+			break;
+		case TOPK:
+			offer(row, col, (float) val);
+			if (row != col)
+				offer(col, row, (float) val);
+			break;
+		case TABLE:
+		default:
+			if (row >= col)
+				data.put(row, col, val);
+			else
+				data.put(col, row, val);
+			break;
+		}
+	}
+
+	/**
+	 * offer a value to the top-k list of a row: it replaces the existing value of the column, or the smallest value
+	 * if the list is full
+	 */
+	private void offer(int row, int col, float val) {
+		int[] ids = nnIds[row];
+		float[] vals = nnVals[row];
+		int n = nnCounts[row];
+
+		int k = nnIndex(row, col);
+		if (k < 0) {
+			if (n < ids.length) {
+				k = n;
+				nnCounts[row]++;
+			} else {
+				if (n == 0)
+					return;
+				k = 0;
+				for (int l = 1; l < n; l++) {
+					if (vals[l] < vals[k])
+						k = l;
+				}
+				if (vals[k] >= val)
+					return;
+			}
+		}
+
+		ids[k] = col;
+		vals[k] = val;
 	}
 
 	/**
 	 * add a value to entry (row, col)
 	 */
 	public void add(int row, int col, double val) {
-		if (row >= col)
-			data.put(row, col, val + get(row, col));
-		else
-			data.put(col, row, val + get(col, row));
+		switch (storage) {
+		case CACHE:
+			cache.add(row, col, (float) val);
+			break;
+		case TABLE:
+			if (row >= col)
+				data.put(row, col, val + get(row, col));
+			else
+				data.put(col, row, val + get(col, row));
+			break;
+		default:
+			set(row, col, val + get(row, col));
+			break;
+		}
 	}
 
 	/**
-	 * Retrieve a complete row of similar items
+	 * Retrieve a complete row of similar items; for the top-k storage, the top-k neighbors of the row
 	 */
 	public SparseVector row(int row) {
 		SparseVector res = new SparseVector(dim);
-		for (int col = 0; col < dim; col++) {
-			double val = get(row, col);
-			if (val != 0)
-				res.set(col, val);
+
+		switch (storage) {
+		case TABLE:
+			for (Entry<Integer, Double> en : data.row(row).entrySet())
+				if (en.getValue() != 0)
+					res.set(en.getKey(), en.getValue());
+			for (Entry<Integer, Double> en : data.column(row).entrySet())
+				if (en.getValue() != 0)
+					res.set(en.getKey(), en.getValue());
+			break;
+		case TOPK:
+			int n = nnCounts[row];
+			int[] ids = Arrays.copyOf(nnIds[row], n);
+			Arrays.sort(ids);
+			for (int id : ids) {
+				double val = nnVals[row][nnIndex(row, id)];
+				if (val != 0)
+					res.set(id, val);
+			}
+			break;
+		default:
+			for (int col = 0; col < dim; col++) {
+				double val = get(row, col);
+				if (val != 0)
+					res.set(col, val);
+			}
+			break;
 		}
 
 		return res;
 	}
 
+	/**
+	 * Write the matrix data in a compact binary form: (row, col, value) triples of the table, the packed floats, or
+	 * the top-k lists of rows
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+
+		switch (storage) {
+		case CACHE:
+			out.writeObject(cache);
+			break;
+		case PACKED:
+			out.writeInt(packed.length);
+			for (float val : packed)
+				out.writeFloat(val);
+			break;
+		case TOPK:
+			for (int i = 0; i < dim; i++) {
+				int n = nnCounts[i];
+				out.writeInt(nnIds[i].length);
+				out.writeInt(n);
+				for (int k = 0; k < n; k++) {
+					out.writeInt(nnIds[i][k]);
+					out.writeFloat(nnVals[i][k]);
+				}
+			}
+			break;
+		case TABLE:
+		default:
+			out.writeInt(data.size());
+			for (Cell<Integer, Integer, Double> cell : data.cellSet()) {
+				out.writeInt(cell.getRowKey());
+				out.writeInt(cell.getColumnKey());
+				out.writeDouble(cell.getValue());
+			}
+			break;
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		switch (storage) {
+		case CACHE:
+			cache = (PairCache) in.readObject();
+			break;
+		case PACKED:
+			packed = new float[in.readInt()];
+			for (int k = 0; k < packed.length; k++)
+				packed[k] = in.readFloat();
+			break;
+		case TOPK:
+			nnIds = new int[dim][];
+			nnVals = new float[dim][];
+			nnCounts = new int[dim];
+			for (int i = 0; i < dim; i++) {
+				int capacity = in.readInt(), n = in.readInt();
+				nnIds[i] = new int[capacity];
+				nnVals[i] = new float[capacity];
+				nnCounts[i] = n;
+				for (int k = 0; k < n; k++) {
+					nnIds[i][k] = in.readInt();
+					nnVals[i][k] = in.readFloat();
+				}
+			}
+			break;
+		case TABLE:
+		default:
+			data = HashBasedTable.create();
+			for (int k = 0, size = in.readInt(); k < size; k++) {
+				int row = in.readInt(), col = in.readInt();
+				data.put(row, col, in.readDouble());
+			}
+			break;
+		}
+	}
+
 	@Override
 	public String toString() {
-		return "Dimension: " + dim + " x " + dim + "\n" + data.toString();
+		String info = "Dimension: " + dim + " x " + dim + "\n";
+		switch (storage) {
+		case CACHE:
+			return info + cache.toString();
+		case PACKED:
+			return info + "Packed: " + packed.length + " entries";
+		case TOPK:
+			int size = 0;
+			for (int n : nnCounts)
+				size += n;
+			return info + "Top-k: " + size + " entries";
+		case TABLE:
+		default:
+			return info + data.toString();
+		}
 	}
 
 }
@@ -0,0 +1,162 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+import java.util.Arrays;
+
+import librec.util.Sortor;
+
+/**
+ * Time order of the entries of a sparse matrix, given by their positions in the CRS structure: the global order, the
+ * order within each row, and the order within each column. Entries are ordered by their (long) timestamps, and entries
+ * of the same timestamp by their positions, i.e., the order of a stable sort over the rows. <br>
+ *
+ * The global order is built by one parallel sort of primitive keys, from which the row and column orders are derived
+ * in linear time.
+ *
+ * @author wubin
+ */
+public class TimeIndex {
+
+	// positions of all entries in time order
+	private int[] order;
+
+	// positions of entries of each row in time order, delimited by the row pointers
+	private int[] rowPtr, rowOrder;
+
+	// positions of entries of each column in time order, delimited by the column pointers
+	private int[] colPtr, colOrder;
+
+	/**
+	 * Construct the time order of a matrix whose values are timestamps
+	 */
+	public TimeIndex(SparseMatrix timeMatrix) {
+		this(timeMatrix.rowPtr, timeMatrix.colInd, timeMatrix.numColumns, times(timeMatrix.rowData));
+	}
+
+	/**
+	 * Construct the time order of entries of a CRS structure
+	 *
+	 * @param rowPtr
+	 *            row pointers
+	 * @param colInd
+	 *            column indices
+	 * @param numColumns
+	 *            number of columns
+	 * @param times
+	 *            timestamp of each entry in the order of CRS
+	 */
+	public TimeIndex(int[] rowPtr, int[] colInd, int numColumns, long[] times) {
+		int n = times.length;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		// keys of (timestamp, position), where timestamps are replaced by their ranks if their range exceeds 31 bits
+		long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+		for (long t : times) {
+			min = Math.min(min, t);
+			max = Math.max(max, t);
+		}
+
+		long[] keys = new long[n];
+		if (n == 0 || max - min <= Integer.MAX_VALUE) {
+			for (int p = 0; p < n; p++)
+				keys[p] = (times[p] - min) << 32 | p;
+		} else {
+			long[] distinct = times.clone();
+			Sortor.parallelSort(distinct, threads);
+			int m = 0;
+			for (int k = 0; k < n; k++) {
+				if (m == 0 || distinct[k] != distinct[m - 1])
+					distinct[m++] = distinct[k];
+			}
+
+			for (int p = 0; p < n; p++)
+				keys[p] = (long) Arrays.binarySearch(distinct, 0, m, times[p]) << 32 | p;
+		}
+		Sortor.parallelSort(keys, threads);
+
+		order = new int[n];
+		for (int k = 0; k < n; k++)
+			order[k] = (int) keys[k];
+		keys = null;
+
+		// row of each position
+		int numRows = rowPtr.length - 1;
+		int[] rowOf = new int[n];
+		for (int u = 0; u < numRows; u++)
+			Arrays.fill(rowOf, rowPtr[u], rowPtr[u + 1], u);
+
+		// stable distribution of the global order into rows and columns
+		this.rowPtr = rowPtr;
+		rowOrder = new int[n];
+		int[] next = Arrays.copyOf(rowPtr, numRows);
+		for (int p : order)
+			rowOrder[next[rowOf[p]]++] = p;
+
+		colPtr = new int[numColumns + 1];
+		for (int p = 0; p < n; p++)
+			colPtr[colInd[p] + 1]++;
+		for (int j = 0; j < numColumns; j++)
+			colPtr[j + 1] += colPtr[j];
+
+		colOrder = new int[n];
+		next = Arrays.copyOf(colPtr, numColumns);
+		for (int p : order)
+			colOrder[next[colInd[p]]++] = p;
+	}
+
+	private static long[] times(double[] data) {
+		long[] times = new long[data.length];
+		for (int p = 0; p < times.length; p++)
+			times[p] = (long) data[p];
+
+		return times;
+	}
+
+	/**
+	 * @return positions of all entries in time order
+	 */
+	public int[] order() {
+		return order;
+	}
+
+	/**
+	 * @return positions of entries of each row in time order, where those of row u are in [rowPointers()[u],
+	 *         rowPointers()[u + 1])
+	 */
+	public int[] rowOrder() {
+		return rowOrder;
+	}
+
+	public int[] rowPointers() {
+		return rowPtr;
+	}
+
+	/**
+	 * @return positions of entries of each column in time order, where those of column j are in
+	 *         [columnPointers()[j], columnPointers()[j + 1])
+	 */
+	public int[] columnOrder() {
+		return colOrder;
+	}
+
+	public int[] columnPointers() {
+		return colPtr;
+	}
+}
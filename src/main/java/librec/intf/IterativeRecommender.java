@@ -21,11 +21,15 @@ package librec.intf;
 import librec.data.Configuration;
 import librec.data.DenseMatrix;
 import librec.data.DenseVector;
+import librec.data.FactorIndex;
 import librec.data.SparseMatrix;
+import librec.data.SparseVector;
 import librec.util.FileIO;
 import librec.util.LineConfiger;
 import librec.util.Logs;
+import librec.util.Randoms;
 import librec.util.Strings;
+import librec.util.TopK;
 
 /**
  * Recommenders using iterative learning techniques
@@ -37,26 +41,33 @@ import librec.util.Strings;
 public abstract class IterativeRecommender extends Recommender {
 
 	/************************************ Static parameters for all recommenders ***********************************/
-	// init, maximum learning rate, momentum
-	protected static float initLRate, maxLRate, momentum;
 	// line configer for regularization parameters
 	protected static LineConfiger regOptions;
+
+	// whether leave-one-out folds in users by option "--fold-in" of evaluation setup, and the confidence of their rated
+	// items
+	protected static boolean isFoldIn;
+	protected static double foldInAlpha;
+
+	// indicator of static field initialization
+	public static boolean resetStatics = true;
+
+	/************************************ Recommender-specific parameters ****************************************/
+	// learning parameters are read per recommender, so that recommenders with different parameters can run at once
+	// init, maximum learning rate, momentum
+	protected float initLRate, maxLRate, momentum;
 	// user, item and bias regularization
-	protected static float regU, regI, regB, reg;
+	protected float regU, regI, regB, reg;
 	// number of factors
-	protected static int numFactors;
+	protected int numFactors;
 	// number of iterations
-	protected static int numIters;
+	protected int numIters;
 
 	// whether to adjust learning rate automatically
-	protected static boolean isBoldDriver;
+	protected boolean isBoldDriver;
 	// decay of learning rate
-	protected static float decay;
-
-	// indicator of static field initialization
-	public static boolean resetStatics = true;
+	protected float decay;
 
-	/************************************ Recommender-specific parameters ****************************************/
 	// factorized user-factor matrix
 	protected DenseMatrix P;
 
@@ -78,37 +89,64 @@ public abstract class IterativeRecommender extends Recommender {
 	// initial models using normal distribution
 	protected boolean initByNorm;
 
+	// retrieval index over item factors for top-N recommendation, null if all items are scored
+	protected FactorIndex itemIndex;
+
+	// Gram matrix of item factors for fold-in, computed on demand
+	private double[][] gram;
+
 	public IterativeRecommender(SparseMatrix trainMatrix, SparseMatrix testMatrix, int fold) {
 		super(trainMatrix, testMatrix, fold);
 
-		// initialization 
-		if (resetStatics) {
-			resetStatics = false;
+		// initialization
+		LineConfiger lc = cf.getParamOptions("learn.rate");
+		if (lc != null) {
+			initLRate = Float.parseFloat(lc.getMainParam());
+			maxLRate = lc.getFloat("-max", -1);
+			isBoldDriver = lc.contains("-bold-driver");
+			decay = lc.getFloat("-decay", -1);
+			momentum = lc.getFloat("-momentum", 50);
+		}
 
-			LineConfiger lc = cf.getParamOptions("learn.rate");
-			if (lc != null) {
-				initLRate = Float.parseFloat(lc.getMainParam());
-				maxLRate = lc.getFloat("-max", -1);
-				isBoldDriver = lc.contains("-bold-driver");
-				decay = lc.getFloat("-decay", -1);
-				momentum = lc.getFloat("-momentum", 50);
-			}
+		regOptions = cf.getParamOptions("reg.lambda");
+		if (regOptions != null) {
+			reg = Float.parseFloat(regOptions.getMainParam());
+			regU = regOptions.getFloat("-u", reg);
+			regI = regOptions.getFloat("-i", reg);
+			regB = regOptions.getFloat("-b", reg);
+		}
 
-			regOptions = cf.getParamOptions("reg.lambda");
-			if (regOptions != null) {
-				reg = Float.parseFloat(regOptions.getMainParam());
-				regU = regOptions.getFloat("-u", reg);
-				regI = regOptions.getFloat("-i", reg);
-				regB = regOptions.getFloat("-b", reg);
-			}
+		numFactors = cf.getInt("num.factors", 10);
+		numIters = cf.getInt("num.max.iter", 100);
 
-			numFactors = cf.getInt("num.factors", 10);
-			numIters = cf.getInt("num.max.iter", 100);
+		if (resetStatics) {
+			resetStatics = false;
+
+			LineConfiger evalOptions = cf.getParamOptions("evaluation.setup");
+			isFoldIn = evalOptions != null && evalOptions.contains("--fold-in");
+			foldInAlpha = evalOptions != null ? evalOptions.getDouble("-alpha", 1.0) : 1.0;
 		}
 
 		// method-specific settings
 		lRate = initLRate;
 		initByNorm = true;
+
+		if (rankOptions != null)
+			itemIndex = FactorIndex.create(rankOptions, numThreads);
+	}
+
+	@Override
+	public void setNumThreads(int numThreads) {
+		super.setNumThreads(numThreads);
+
+		if (itemIndex != null)
+			itemIndex.setNumThreads(this.numThreads);
+	}
+
+	@Override
+	public long estimateMemory() {
+		// user and item factors, biases
+		return super.estimateMemory() + 8L * (numUsers + numItems) * (numFactors + 1);
 	}
 
 	/**
@@ -241,6 +279,157 @@ public abstract class IterativeRecommender extends Recommender {
 
 	}
 
+	/**
+	 * Build the retrieval index (if any) from the current item factors, and report its recall@N against exact search
+	 * on a sample of users. The index assumes ranking scores of inner products {@code P_u * Q_j}, and should not be
+	 * used by recommenders overriding the default {@code predict} method.
+	 */
+	@Override
+	protected void prepareRankings() throws Exception {
+		if (itemIndex == null)
+			return;
+
+		itemIndex.build(Q);
+
+		int numSamples = Math.min(numUsers, rankOptions.getInt("-index-recall", 500));
+		if (numSamples > 0) {
+			int[] users = Randoms.nextIntArray(numSamples, numUsers);
+			int n = numRecs <= 0 ? 10 : numRecs;
+			double recall = itemIndex.recall(P, trainMatrix, users, n);
+
+			Logs.debug("{}{} built {}, recall@{} = {}", algoName, foldInfo, itemIndex, n, (float) recall);
+		}
+	}
+
+	@Override
+	protected int retrieve(int u, int n, int[] items, double[] scores) throws Exception {
+		if (itemIndex == null)
+			return -1;
+
+		return itemIndex.topN(P.row(u, false).getData(), n, trainMatrix.row(u).getIndex(), items, scores);
+	}
+
+	/**
+	 * Fold-in is only used if enabled by option "--fold-in" of evaluation setup, as it is optimistically biased: the
+	 * model is trained once with all ratings, so that the item factors have seen the held-out ones; and the user
+	 * factors come from the ridge regression of {@code foldIn} rather than the recommender's own objective. Results
+	 * are thus not comparable to leave-one-out with re-training. Fold-in works with the default {@code predict}
+	 * method, and should be disabled by recommenders overriding it.
+	 */
+	@Override
+	public boolean isFoldInSupported() {
+		return isFoldIn;
+	}
+
+	/**
+	 * Fold in user u by the weighted ridge regression of implicit feedback with the item factors fixed (Hu et al.,
+	 * ICDM 2008): {@code p_u = (Q'Q + alpha * Q_u'Q_u + regU * I)^-1 (1 + alpha) Q_u' 1}, where {@code Q_u} are the
+	 * factors of the rated items and alpha is the "-alpha" option of evaluation setup. The Gram matrix {@code Q'Q} is
+	 * computed once for all users.
+	 */
+	@Override
+	protected int foldIn(int u, SparseVector rated, int n, int[] items, double[] scores) throws Exception {
+		double[][] gram = gram();
+		int k = numFactors;
+
+		double[][] a = new double[k][k];
+		double[] b = new double[k];
+		for (int f = 0; f < k; f++) {
+			System.arraycopy(gram[f], 0, a[f], 0, k);
+			a[f][f] += regU > 0 ? regU : 1e-6;
+		}
+
+		int[] ratedItems = rated.getIndex();
+		for (int j : ratedItems) {
+			double[] qj = Q.row(j, false).getData();
+			for (int f = 0; f < k; f++) {
+				b[f] += (1 + foldInAlpha) * qj[f];
+				for (int g = 0; g <= f; g++)
+					a[f][g] += foldInAlpha * qj[f] * qj[g];
+			}
+		}
+
+		double[] pu = solve(a, b);
+
+		// rank the unrated items
+		TopK heap = new TopK(n);
+		for (int j = 0, r = 0; j < numItems; j++) {
+			while (r < ratedItems.length && ratedItems[r] < j)
+				r++;
+			if (r < ratedItems.length && ratedItems[r] == j)
+				continue;
+
+			double[] qj = Q.row(j, false).getData();
+			double score = 0;
+			for (int f = 0; f < k; f++)
+				score += pu[f] * qj[f];
+			heap.offer(j, score);
+		}
+
+		return heap.drain(items, scores);
+	}
+
+	private synchronized double[][] gram() {
+		if (gram == null) {
+			gram = new double[numFactors][numFactors];
+			for (int j = 0; j < numItems; j++) {
+				double[] qj = Q.row(j, false).getData();
+				for (int f = 0; f < numFactors; f++)
+					for (int g = 0; g < numFactors; g++)
+						gram[f][g] += qj[f] * qj[g];
+			}
+		}
+
+		return gram;
+	}
+
+	/**
+	 * @return solution of a symmetric positive definite system a * x = b by Cholesky decomposition, where only the lower
+	 *         triangle of a is used and overwritten
+	 */
+	private static double[] solve(double[][] a, double[] b) {
+		int k = b.length;
+		for (int f = 0; f < k; f++) {
+			for (int g = 0; g <= f; g++) {
+				double sum = a[f][g];
+				for (int h = 0; h < g; h++)
+					sum -= a[f][h] * a[g][h];
+				a[f][g] = f == g ? Math.sqrt(Math.max(sum, 1e-12)) : sum / a[g][g];
+			}
+		}
+
+		// forward and backward substitution
+		double[] x = new double[k];
+		for (int f = 0; f < k; f++) {
+			double sum = b[f];
+			for (int h = 0; h < f; h++)
+				sum -= a[f][h] * x[h];
+			x[f] = sum / a[f][f];
+		}
+		for (int f = k - 1; f >= 0; f--) {
+			double sum = x[f];
+			for (int h = f + 1; h < k; h++)
+				sum -= a[h][f] * x[h];
+			x[f] = sum / a[f][f];
+		}
+
+		return x;
+	}
+
+	/**
+	 * @return the user-factor matrix
+	 */
+	public DenseMatrix getUserFactors() {
+		return P;
+	}
+
+	/**
+	 * @return the item-factor matrix
+	 */
+	public DenseMatrix getItemFactors() {
+		return Q;
+	}
+
 	protected void saveModel() throws Exception {
 		// make a folder
 		String dirPath = FileIO.makeDirectory(tempDirPath, algoName);
@@ -281,9 +470,11 @@ public abstract class IterativeRecommender extends Recommender {
 		P = (DenseMatrix) FileIO.deserialize(dirPath + "userFactors" + suffix);
 		Q = (DenseMatrix) FileIO.deserialize(dirPath + "itemFactors" + suffix);
 
-		// write vectors
-		userBias = (DenseVector) FileIO.deserialize(dirPath + "userBiases" + suffix);
-		itemBias = (DenseVector) FileIO.deserialize(dirPath + "itemBiases" + suffix);
+		// read vectors, which are written only if they exist
+		if (FileIO.exist(dirPath + "userBiases" + suffix))
+			userBias = (DenseVector) FileIO.deserialize(dirPath + "userBiases" + suffix);
+		if (FileIO.exist(dirPath + "itemBiases" + suffix))
+			itemBias = (DenseVector) FileIO.deserialize(dirPath + "itemBiases" + suffix);
 	}
 
 	@Override
@@ -21,16 +21,20 @@ package librec.intf;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import com.google.common.cache.LoadingCache;
+import com.google.common.primitives.Ints;
 import librec.data.*;
 import librec.util.*;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * General recommenders
@@ -51,7 +55,7 @@ public abstract class Recommender implements Runnable {
         MAP15, MAP20, MAP25,MAP30,MAP35,MAP40,MAP5,MAP50,MPE,MRR, 
         NDCG5,NDCG10,NDCG15,NDCG20,NDCG25,NDCG30,NDCG35,NDCG40,NDCG50,NMAE, Perplexity,Pre10, Pre15,Pre20,
         Pre25,Pre30,Pre35,Pre40, Pre5, Pre50, Rec10, Rec15, Rec20, 
-        Rec25, Rec30,Rec35,Rec40,Rec5,Rec50,F5,F10,F15,F20,F25,F30,F50, rMAE, RMSE,
+        Rec25, Rec30,Rec35,Rec40,Rec5,Rec50,F5,F10,F15,F20,F25,F30,F35,F40,F50, rMAE, RMSE,
         rRMSE, TestTime,
         /* execution time */
         TrainTime
@@ -104,6 +108,8 @@ public abstract class Recommender implements Runnable {
     public static Map<String, List<Float>> params = new HashMap<>();
     // line configer for item ranking, evaluation
     protected static LineConfiger rankOptions, algoOptions;
+    // measures of item ranking, in the order of output columns
+    protected static List<Measure> rankMeasures;
 
     // rate DAO object
     public static DataDAO rateDao;
@@ -121,6 +127,10 @@ public abstract class Recommender implements Runnable {
     public static boolean resetStatics = true;
     // similarity measure
     protected static String similarityMeasure;
+    // similarity method resolved from the similarity measure
+    protected static int similarityMethod;
+    // storage of similarity matrices: table, packed or top-k
+    protected static String similarityStorage;
 
     // number of shrinkage
     protected static int similarityShrinkage;
@@ -139,33 +149,21 @@ public abstract class Recommender implements Runnable {
 
     // view of rating predictions
     public static String view;
+    // user segments by the number of training items, evaluated in the same pass as the test view
+    protected static List<String> segments;
     /**
      * @return the evaluation information of a recommend
      */
     public static String getEvalInfo(Map<Measure, Double> measures) {
         String evalInfo = null;
         if (isRankingPred) {
-            if (isDiverseUsed)
-                evalInfo = String.format("%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f",
-                        measures.get(Measure.Pre5), measures.get(Measure.Pre10), measures.get(Measure.Rec5),
-                        measures.get(Measure.Rec10), measures.get(Measure.AUC), measures.get(Measure.MAP5),
-                        measures.get(Measure.NDCG10), measures.get(Measure.MRR), measures.get(Measure.D5),
-                        measures.get(Measure.D10));
-            else
-                evalInfo = String.format("%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,"
-                		               + "%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,"
-                		               + "%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,"
-                		               + "%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,",
-                		measures.get(Measure.Pre5),measures.get(Measure.Pre10),measures.get(Measure.Pre15),
-                		measures.get(Measure.Pre20),measures.get(Measure.Pre25),measures.get(Measure.Pre30),measures.get(Measure.Pre35),measures.get(Measure.Pre40),
-                		measures.get(Measure.Pre50),measures.get(Measure.Rec5),measures.get(Measure.Rec10),
-                		measures.get(Measure.Rec15),measures.get(Measure.Rec20),measures.get(Measure.Rec25),
-                		measures.get(Measure.Rec30),measures.get(Measure.Rec35),measures.get(Measure.Rec40),measures.get(Measure.Rec50),
-                		measures.get(Measure.MAP5),measures.get(Measure.MAP10),measures.get(Measure.MAP15),
-                		measures.get(Measure.MAP20),measures.get(Measure.MAP25),measures.get(Measure.MAP30),measures.get(Measure.MAP35),measures.get(Measure.MAP40),
-                		measures.get(Measure.MAP50),measures.get(Measure.NDCG5),measures.get(Measure.NDCG10),
-                		measures.get(Measure.NDCG15),measures.get(Measure.NDCG20),measures.get(Measure.NDCG25),measures.get(Measure.NDCG35),measures.get(Measure.NDCG40),
-                		measures.get(Measure.NDCG30),measures.get(Measure.NDCG50),measures.get(Measure.MRR),measures.get(Measure.AUC));
+            StringBuilder sb = new StringBuilder();
+            for (Measure m : rankMeasures) {
+                if (sb.length() > 0)
+                    sb.append(",");
+                sb.append(String.format("%.6f", measures.get(m)));
+            }
+            evalInfo = sb.toString();
         } else {
             evalInfo = String.format("%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", measures.get(Measure.MAE),
                     measures.get(Measure.RMSE), measures.get(Measure.NMAE), measures.get(Measure.rMAE),
@@ -178,6 +176,102 @@ public abstract class Recommender implements Runnable {
 
         return evalInfo;
     }
+
+    // families of ranking measures
+    private static final List<String> rankFamilies = Arrays.asList("Pre", "Rec", "F", "MAP", "NDCG", "D", "MRR",
+            "AUC");
+
+    /**
+     * Parse the measures of item ranking, e.g., {@code -metrics ndcg@10,rec@20,auc}. A measure is given either as
+     * {@code name@cutoff} with name in {pre, rec, f1, map, ndcg, div}, or as the name of a {@code Measure}.
+     *
+     * @param names names of measures; null for the default measures
+     * @return a list of measures in the order of output columns
+     */
+    protected static List<Measure> getRankMeasures(List<String> names) {
+        List<Measure> res = new ArrayList<>();
+
+        if (names == null || names.isEmpty()) {
+            if (isDiverseUsed) {
+                Collections.addAll(res, Measure.Pre5, Measure.Pre10, Measure.Rec5, Measure.Rec10, Measure.AUC,
+                        Measure.MAP5, Measure.NDCG10, Measure.MRR, Measure.D5, Measure.D10);
+            } else {
+                int[] cutoffs = { 5, 10, 15, 20, 25, 30, 35, 40, 50 };
+                for (String name : new String[] { "Pre", "Rec", "MAP", "NDCG" }) {
+                    for (int cutoff : cutoffs)
+                        res.add(Measure.valueOf(name + cutoff));
+                }
+                Collections.addAll(res, Measure.MRR, Measure.AUC);
+            }
+            return res;
+        }
+
+        for (String name : names) {
+            String key = name.toLowerCase();
+            String cutoff = "";
+            int idx = key.indexOf('@');
+            if (idx >= 0) {
+                cutoff = key.substring(idx + 1);
+                key = key.substring(0, idx);
+            }
+
+            switch (key) {
+                case "p":
+                case "prec":
+                case "precision":
+                    key = "pre";
+                    break;
+                case "r":
+                case "recall":
+                    key = "rec";
+                    break;
+                case "f1":
+                    key = "f";
+                    break;
+                case "ap":
+                    key = "map";
+                    break;
+                case "div":
+                case "diversity":
+                    key = "d";
+                    break;
+                case "rr":
+                    key = "mrr";
+                    break;
+            }
+            key += cutoff;
+
+            Measure measure = null;
+            for (Measure m : Measure.values()) {
+                if (m.name().equalsIgnoreCase(key)) {
+                    measure = m;
+                    break;
+                }
+            }
+
+            if (measure == null || !rankFamilies.contains(measure.name().replaceAll("\\d+$", ""))) {
+                Logs.error("Unsupported ranking measure: {}", name);
+                System.exit(-1);
+            }
+            if (!res.contains(measure))
+                res.add(measure);
+        }
+
+        return res;
+    }
+
+    /**
+     * @return the cutoff of a ranking measure such as NDCG10, or -1 if the measure has no cutoff
+     */
+    protected static int cutoffOf(Measure m) {
+        String name = m.name();
+        int idx = name.length();
+        while (idx > 0 && Character.isDigit(name.charAt(idx - 1)))
+            idx--;
+
+        return idx < name.length() ? Integer.parseInt(name.substring(idx)) : -1;
+    }
+
     /************************************
      * Recommender-specific parameters
      ****************************************/
@@ -198,8 +292,14 @@ public abstract class Recommender implements Runnable {
     // is output recommendation results
     protected boolean isResultsOut = true;
 
+    // number of threads used by this recommender, e.g., a share of the cpu cores when folds run in parallel
+    protected int numThreads;
+
     // performance measures
     public Map<Measure, Double> measures;
+    // performance measures and number of test users of each user segment
+    protected List<Map<Measure, Double>> segmentMeasures;
+    protected int[] segmentSizes;
     // rating matrix for training, validation and test
     protected SparseMatrix trainMatrix, validationMatrix, testMatrix;
 
@@ -209,6 +309,11 @@ public abstract class Recommender implements Runnable {
     // user-items cache, item-users cache
     protected LoadingCache<Integer, List<Integer>> userItemsCache, itemUsersCache;
 
+    // in prequential evaluation: the time rank of each rating of the rate matrix (in the order of CRS), and the number
+    // of earliest ratings known so far
+    private int[] timeRanks;
+    private int horizon;
+
     /**
      * Constructor for Recommender
      *
@@ -254,8 +359,21 @@ public abstract class Recommender implements Runnable {
             numRecs = rankOptions.getInt("-topN", -1);
             numIgnore = rankOptions.getInt("-ignore", -1);
 
+            rankMeasures = getRankMeasures(rankOptions.getOptions("-metrics"));
+            for (Measure m : rankMeasures) {
+                if (m.name().startsWith("D"))
+                    isDiverseUsed = true;
+            }
+
             LineConfiger evalOptions = cf.getParamOptions("evaluation.setup");
             view = evalOptions.getString("--test-view", "all");
+            if (evalOptions.contains("--segments")) {
+                segments = evalOptions.getOptions("--segments");
+                if (segments.isEmpty())
+                    segments = Arrays.asList("1-5", "6-10", "1-10", "11-15", ">15", "16-20", "21-25", ">20", ">25");
+            } else {
+                segments = null;
+            }
             validationRatio = evalOptions.getFloat("-v", 0.0f);
             isSplitByDate = evalOptions.contains("--by-date");
 
@@ -281,9 +399,13 @@ public abstract class Recommender implements Runnable {
 
             knn = cf.getInt("num.neighbors", 20);
             similarityMeasure = cf.getString("similarity", "PCC");
+            similarityMethod = Sims.method(similarityMeasure);
+            similarityStorage = cf.getString("similarity.storage", "table");
             similarityShrinkage = cf.getInt("num.shrinkage", 30);
         }
 
+        numThreads = numCPUs;
+
         // training, validation, test data
         if (validationRatio > 0 && validationRatio < 1) {
             DataSplitter ds = new DataSplitter(trainMatrix);
@@ -291,13 +413,14 @@ public abstract class Recommender implements Runnable {
 
             SparseMatrix[] trainSubsets = isSplitByDate ? ds.getRatioByRatingDate(ratio, timeMatrix) : ds
                     .getRatioByRating(ratio);
-            this.trainMatrix = trainSubsets[0];
-            this.validationMatrix = trainSubsets[1];
+            this.trainMatrix = trainSubsets[0].freeze();
+            this.validationMatrix = trainSubsets[1].freeze();
         } else {
-            this.trainMatrix = trainMatrix;
+            this.trainMatrix = trainMatrix.freeze();
         }
 
-        this.testMatrix = testMatrix;
+        // immutable with cached statistics, shared by the threads of training and evaluation
+        this.testMatrix = testMatrix.freeze();
 
         // fold info
         this.fold = fold;
@@ -316,39 +439,40 @@ public abstract class Recommender implements Runnable {
         // class name as the default algorithm name
         setAlgoName(this.getClass().getSimpleName());
 
-        // compute item-item correlations
-        if (isRankingPred && isDiverseUsed)
-            corrs = new SymmMatrix(numItems);
+        // cache of item-item correlations, shared by the threads of ranking evaluation
+        if (isRankingPred && isDiverseUsed) {
+            long numPairs = numItems * (numItems - 1L) / 2;
+            corrs = new SymmMatrix(numItems, (int) Math.min(numPairs, rankOptions.getInt("-diverse-cache", 1 << 22)));
+        }
     }
 
     /**
      * build user-user or item-item correlation matrix from training data
      *
      * @param isUser whether it is user-user correlation matrix
-     * @return a upper symmetric matrix with user-user or item-item coefficients
+     * @return a upper symmetric matrix with user-user or item-item coefficients, stored as specified by configuration
+     * key "similarity.storage"
      */
-    protected SymmMatrix buildCorrs(boolean isUser) {
+    protected SymmMatrix buildCorrs(boolean isUser) throws Exception {
         Logs.debug("Build {} similarity matrix ...", isUser ? "user" : "item");
 
-        int count = isUser ? numUsers : numItems;
-        SymmMatrix corrs = new SymmMatrix(count);
-
-        for (int i = 0; i < count; i++) {
-            SparseVector iv = isUser ? trainMatrix.row(i) : trainMatrix.column(i);
-            if (iv.getCount() == 0)
-                continue;
-            // user/item itself exclusive
-            for (int j = i + 1; j < count; j++) {
-                SparseVector jv = isUser ? trainMatrix.row(j) : trainMatrix.column(j);
-
-                double sim = correlation(iv, jv);
-
-                if (!Double.isNaN(sim))
-                    corrs.set(i, j, sim);
-            }
+        // only co-rated pairs are computed: the other pairs have no (computable) similarities
+        SimilarityBuilder builder = new SimilarityBuilder(trainMatrix, isUser, similarityMeasure,
+                similarityShrinkage, numThreads);
+        builder.setMedian((minRate + maxRate) / 2.0);
+
+        switch (similarityStorage.toLowerCase()) {
+            case "packed":
+                // dense similarities of small dimensions
+                return builder.buildPacked();
+            case "top-k":
+                // the knn most similar neighbors of each user or item
+                builder.buildTopK(knn);
+                return SymmMatrix.topK(builder.getNeighbors(), builder.getNeighborSims());
+            case "table":
+            default:
+                return builder.build();
         }
-
-        return corrs;
     }
 
 
@@ -379,7 +503,7 @@ public abstract class Recommender implements Runnable {
      * @return the correlation between vectors i and j
      */
     protected double correlation(SparseVector iv, SparseVector jv) {
-        return correlation(iv, jv, similarityMeasure);
+        return iv.similarity(jv, similarityMethod, similarityShrinkage, (minRate + maxRate) / 2.0);
     }
 
     /**
@@ -391,52 +515,7 @@ public abstract class Recommender implements Runnable {
      * @return the correlation between vectors i and j; return NaN if the correlation is not computable.
      */
     protected double correlation(SparseVector iv, SparseVector jv, String method) {
-
-        // compute similarity
-        List<Double> is = new ArrayList<>();
-        List<Double> js = new ArrayList<>();
-
-        for (Integer idx : jv.getIndex()) {
-            if (iv.contains(idx)) {
-                is.add(iv.get(idx));
-                js.add(jv.get(idx));
-            }
-        }
-
-        double sim = 0;
-        switch (method.toLowerCase()) {
-            case "cos":
-                // for ratings along the overlappings
-                sim = Sims.cos(is, js);
-                break;
-            case "cos-binary":
-                // for ratings along all the vectors (including one-sided 0s)
-                sim = iv.inner(jv) / (Math.sqrt(iv.inner(iv)) * Math.sqrt(jv.inner(jv)));
-                break;
-            case "msd":
-                sim = Sims.msd(is, js);
-                break;
-            case "cpc":
-                sim = Sims.cpc(is, js, (minRate + maxRate) / 2.0);
-                break;
-            case "exjaccard":
-                sim = Sims.exJaccard(is, js);
-                break;
-            case "pcc":
-            default:
-                sim = Sims.pcc(is, js);
-                break;
-        }
-
-        // shrink to account for vector size
-        if (!Double.isNaN(sim)) {
-            int n = is.size();
-            int shrinkage = cf.getInt("num.shrinkage");
-            if (shrinkage > 0)
-                sim *= n / (n + shrinkage + 0.0);
-        }
-
-        return sim;
+        return iv.similarity(jv, Sims.method(method), similarityShrinkage, (minRate + maxRate) / 2.0);
     }
 
     /**
@@ -455,17 +534,17 @@ public abstract class Recommender implements Runnable {
 
         int num = 0;
         double sum = 0.0;
+        double median = (minRate + maxRate) / 2.0;
         for (int id = 0; id < cutoff; id++) {
             int i = rankedItems.get(id);
-            SparseVector iv = trainMatrix.column(i);
 
             for (int jd = id + 1; jd < cutoff; jd++) {
                 int j = rankedItems.get(jd);
 
                 double corr = corrs.get(i, j);
                 if (corr == 0) {
-                    // if not found
-                    corr = correlation(iv, trainMatrix.column(j));
+                    // if not found, computed in place on the columns of training data
+                    corr = trainMatrix.columnSimilarity(i, j, similarityMethod, similarityShrinkage, median);
                     if (!Double.isNaN(corr))
                         corrs.set(i, j, corr);
                 }
@@ -479,52 +558,97 @@ public abstract class Recommender implements Runnable {
 
         return 0.5 * (sum / num);
     }
-    
-    private ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * @return the cutoffs of the requested ranking measures: {cutoffs of the ranking kernel, cutoffs of diversity}
+     */
+    private static int[][] rankingCutoffs() {
+        SortedSet<Integer> cutoffSet = new TreeSet<>();
+        SortedSet<Integer> diverseSet = new TreeSet<>();
+        for (Measure m : rankMeasures) {
+            int cutoff = cutoffOf(m);
+            if (cutoff < 0)
+                continue;
+
+            if (m.name().startsWith("D"))
+                diverseSet.add(cutoff);
+            else
+                cutoffSet.add(cutoff);
+        }
+
+        return new int[][]{Ints.toArray(cutoffSet), Ints.toArray(diverseSet)};
+    }
+
+    /**
+     * @return the positions of the requested ranking measures in the results of a ranking kernel, followed by the
+     * diversities
+     */
+    private static int[] rankingSlots(Measures.RankingKernel kernel, int[] cutoffs, int[] diverseCutoffs) {
+        int[] slots = new int[rankMeasures.size()];
+        for (int i = 0; i < slots.length; i++) {
+            Measure m = rankMeasures.get(i);
+            switch (m.name().replaceAll("\\d+$", "")) {
+                case "Pre":
+                    slots[i] = kernel.index(Measures.RankingKernel.PRE, Arrays.binarySearch(cutoffs, cutoffOf(m)));
+                    break;
+                case "Rec":
+                    slots[i] = kernel.index(Measures.RankingKernel.REC, Arrays.binarySearch(cutoffs, cutoffOf(m)));
+                    break;
+                case "F":
+                    slots[i] = kernel.index(Measures.RankingKernel.F1, Arrays.binarySearch(cutoffs, cutoffOf(m)));
+                    break;
+                case "MAP":
+                    slots[i] = kernel.index(Measures.RankingKernel.AP, Arrays.binarySearch(cutoffs, cutoffOf(m)));
+                    break;
+                case "NDCG":
+                    slots[i] = kernel.index(Measures.RankingKernel.NDCG, Arrays.binarySearch(cutoffs, cutoffOf(m)));
+                    break;
+                case "D":
+                    slots[i] = kernel.size() + Arrays.binarySearch(diverseCutoffs, cutoffOf(m));
+                    break;
+                case "MRR":
+                    slots[i] = kernel.indexRR();
+                    break;
+                case "AUC":
+                    slots[i] = kernel.indexAUC();
+                    break;
+            }
+        }
+
+        return slots;
+    }
+
     /**
      * @return the evaluation results of ranking predictions
      */
     protected Map<Measure, Double> evalRankings() throws Exception {
-        int capacity = Lists.initSize(testMatrix.numRows());
-        final List<Double> precs5 = new ArrayList<>(capacity);
-        final List<Double> precs10 = new ArrayList<>(capacity);
-        final List<Double> precs15 = new ArrayList<>(capacity);
-        final List<Double> precs20 = new ArrayList<>(capacity);
-        final List<Double> precs25 = new ArrayList<>(capacity);
-        final List<Double> precs30 = new ArrayList<>(capacity);
-        final List<Double> precs35 = new ArrayList<>(capacity);
-        final List<Double> precs40 = new ArrayList<>(capacity);
-        final List<Double> precs50 = new ArrayList<>(capacity);
-        final List<Double> recalls5 = new ArrayList<>(capacity);
-        final List<Double> recalls10 = new ArrayList<>(capacity);
-        final List<Double> recalls15 = new ArrayList<>(capacity);
-        final List<Double> recalls20 = new ArrayList<>(capacity);
-        final List<Double> recalls25 = new ArrayList<>(capacity);
-        final List<Double> recalls30 = new ArrayList<>(capacity);
-        final List<Double> recalls35 = new ArrayList<>(capacity);
-        final List<Double> recalls40 = new ArrayList<>(capacity);
-        final List<Double> recalls50 = new ArrayList<>(capacity);
-        final List<Double> aps5 = new ArrayList<>(capacity);
-        final List<Double> aps10 = new ArrayList<>(capacity);
-        final List<Double> aps15 = new ArrayList<>(capacity);
-        final List<Double> aps20 = new ArrayList<>(capacity);
-        final List<Double> aps25 = new ArrayList<>(capacity);
-        final List<Double> aps30 = new ArrayList<>(capacity);
-        final List<Double> aps35 = new ArrayList<>(capacity);
-        final List<Double> aps40 = new ArrayList<>(capacity);
-        final List<Double> aps50 = new ArrayList<>(capacity);
-        final List<Double> ndcgs5 = new ArrayList<>(capacity);
-        final List<Double> ndcgs10 = new ArrayList<>(capacity);
-        final List<Double> ndcgs15 = new ArrayList<>(capacity);
-        final List<Double> ndcgs20 = new ArrayList<>(capacity);
-        final List<Double> ndcgs25 = new ArrayList<>(capacity);
-        final List<Double> ndcgs30 = new ArrayList<>(capacity);
-        final List<Double> ndcgs35 = new ArrayList<>(capacity);
-        final List<Double> ndcgs40 = new ArrayList<>(capacity);
-        final List<Double> ndcgs50 = new ArrayList<>(capacity);
-        final List<Double> rrs = new ArrayList<>(capacity);
-        final List<Double> aucs = new ArrayList<>(capacity);
-        
+        prepareRankings();
+
+        // cutoffs of the requested measures, computed in a single pass over each ranked list
+        int[][] allCutoffs = rankingCutoffs();
+        final int[] cutoffs = allCutoffs[0];
+        final int[] diverseCutoffs = allCutoffs[1];
+
+        int maxTruth = 0;
+        for (int u = 0, um = testMatrix.numRows(); u < um; u++)
+            maxTruth = Math.max(maxTruth, testMatrix.rowSize(u, false));
+        final Measures.RankingKernel kernel = new Measures.RankingKernel(cutoffs, maxTruth,
+                rankMeasures.contains(Measure.MRR), rankMeasures.contains(Measure.AUC));
+
+        // sums and counts of measures over evaluated users: measures of the kernel followed by diversities
+        final int numResults = kernel.size() + diverseCutoffs.length;
+        final double[] sums = new double[numResults];
+        final int[] counts = new int[numResults];
+
+        // positions of the requested measures in the results
+        final int[] slots = rankingSlots(kernel, cutoffs, diverseCutoffs);
+
+        // sums and counts of measures per user segment, and the number of users in each segment
+        final int numSegments = segments == null ? 0 : segments.size();
+        final double[][] segmentSums = new double[numSegments][numResults];
+        final int[][] segmentCounts = new int[numSegments][numResults];
+        final int[] segmentUsers = new int[numSegments];
+
         // candidate items for all users: here only training items
         // use HashSet instead of ArrayList to speedup removeAll() and contains() operations: HashSet: O(1); ArrayList: O(log n).
         final List<Integer> candItems = new ArrayList<Integer>(trainMatrix.allcolumns());
@@ -532,6 +656,7 @@ public abstract class Recommender implements Runnable {
 //        if (verbose)
 //            Logs.debug("{}{} has candidate items: {}", algoName, foldInfo, candItems.size());
         final CountDownLatch latch = new CountDownLatch(numUsers);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
         // for each test user
         for (int u = 0, um = testMatrix.numRows(); u < um; u++) {
         	final int user = u;
@@ -539,88 +664,81 @@ public abstract class Recommender implements Runnable {
 				@Override
 				public void run() {
 					try {
-            // number of candidate items for all users
             // get positive items from test matrix
-            Set<Integer> correctItems = testMatrix.getColumnsSet(user);
-            if (correctItems.size() == 0||!isrankingTest(user))
+            int[] correctItems = testMatrix.row(user).getIndex();
+            if (correctItems.length == 0)
                 return; // no testing data for user u
+
+            // the test view and user segments to which user u belongs
+            int activity = trainMatrix.rowSize(user);
+            boolean isView = isrankingTest(user);
+            boolean[] isSegment = new boolean[numSegments];
+            boolean isAny = isView;
+            for (int s = 0; s < numSegments; s++) {
+                isSegment[s] = inView(segments.get(s), activity);
+                isAny |= isSegment[s];
+            }
+            if (!isAny)
+                return;
             
-            // remove rated items from candidate items
-            Set<Integer> ratedItems = trainMatrix.getColumnsSet(user);
-            // predict the ranking scores (unordered) of all candidate items
-            List<Map.Entry<Integer, Double>> itemScores = new ArrayList<>(Lists.initSize(candItems));
-            int numCands =numItems;
-            for (int i=0;i<candItems.size();i++) {
-            	int j=candItems.get(i);
-                // item j is not rated
-                if (!ratedItems.contains(j)) {
-                    final double rank = ranking(user, j);
-                    if (!Double.isNaN(rank)) {
-                        itemScores.add(new SimpleImmutableEntry<Integer, Double>(j, rank));
-                    } else {
-    					numCands--;
-    				}
+            int numCands = numItems;
+
+            // retrieve the top-N items from an index over the model if available
+            int[] rankedItems = new int[numTopNRanks];
+            int numRanked = retrieve(user, numTopNRanks, rankedItems, null);
+            if (numRanked < 0) {
+                // remove rated items from candidate items
+                Set<Integer> ratedItems = trainMatrix.getColumnsSet(user);
+                // predict the ranking scores (unordered) of all candidate items
+                List<Map.Entry<Integer, Double>> itemScores = new ArrayList<>(Lists.initSize(candItems));
+                for (int i=0;i<candItems.size();i++) {
+                	int j=candItems.get(i);
+                    // item j is not rated
+                    if (!ratedItems.contains(j)) {
+                        final double rank = ranking(user, j);
+                        if (!Double.isNaN(rank)) {
+                            itemScores.add(new SimpleImmutableEntry<Integer, Double>(j, rank));
+                        } else {
+        					numCands--;
+        				}
+                    }
                 }
+
+                // order the ranking scores from highest to lowest: List to preserve orders
+                itemScores = Lists.sortListTopK(itemScores, true, numTopNRanks);
+                List<Map.Entry<Integer, Double>> recomd = (numRecs <= 0 || itemScores.size() <= numRecs) ? itemScores
+                        : itemScores.subList(0, numRecs);
+                if (recomd.size() > rankedItems.length)
+                    rankedItems = new int[recomd.size()];
+                numRanked = 0;
+                for (Map.Entry<Integer, Double> kv : recomd)
+                    rankedItems[numRanked++] = kv.getKey();
             }
 
-            if (itemScores.size() == 0)
+            if (numRanked == 0)
                 return; // no recommendations available for user u
 
-            // order the ranking scores from highest to lowest: List to preserve orders
-            itemScores = Lists.sortListTopK(itemScores, true, numTopNRanks);
-            List<Map.Entry<Integer, Double>> recomd = (numRecs <= 0 || itemScores.size() <= numRecs) ? itemScores
-                    : itemScores.subList(0, numRecs);
-            List<Integer> rankedItems = new ArrayList<Integer>();
-            for (Map.Entry<Integer, Double> kv : recomd) {
-                Integer item = kv.getKey();
-                rankedItems.add(item);
+            double[] results = new double[numResults];
+            kernel.evaluate(rankedItems, numRanked, correctItems, numCands - numRanked, results);
+
+            if (diverseCutoffs.length > 0) {
+                List<Integer> recomd = Ints.asList(rankedItems).subList(0, numRanked);
+                // correlations are cached in a shared, thread-safe matrix
+                for (int d = 0; d < diverseCutoffs.length; d++)
+                    results[kernel.size() + d] = diverseAt(recomd, Math.min(diverseCutoffs[d], numRanked));
+            }
+
+            synchronized (sums) {
+                if (isView)
+                    accumulate(results, sums, counts);
+
+                for (int s = 0; s < numSegments; s++) {
+                    if (isSegment[s]) {
+                        accumulate(results, segmentSums[s], segmentCounts[s]);
+                        segmentUsers[s]++;
+                    }
+                }
             }
-            int numDropped = numCands - rankedItems.size();
-            double auc= Measures.AUC(rankedItems, correctItems, numDropped);
-            double RR = Measures.RR(rankedItems, correctItems);
-
-            List<Integer> cutoffs = Arrays.asList(5,10,15,20,25,30,35,40,50);
-            Map<Integer, Double> precs = Measures.PrecAt(rankedItems, correctItems, cutoffs);
-            Map<Integer, Double> recalls = Measures.RecallAt(rankedItems, correctItems, cutoffs);
-            synchronized (precs5) {precs5.add(precs.get(5));}
-            synchronized (precs10) {precs10.add(precs.get(10));}
-            synchronized (precs15) {precs15.add(precs.get(15));}
-            synchronized (precs20) {precs20.add(precs.get(20));}
-            synchronized (precs25) {precs25.add(precs.get(25));}
-            synchronized (precs30) {precs30.add(precs.get(30));}
-            synchronized (precs35) {precs35.add(precs.get(35));}
-            synchronized (precs40) {precs40.add(precs.get(40));}
-            synchronized (precs50) {precs50.add(precs.get(50));}
-            synchronized (recalls5) {recalls5.add(recalls.get(5));}
-            synchronized (recalls10) {recalls10.add(recalls.get(10));}
-            synchronized (recalls15) {recalls15.add(recalls.get(15));}
-            synchronized (recalls20) {recalls20.add(recalls.get(20));}
-            synchronized (recalls25) {recalls25.add(recalls.get(25));}
-            synchronized (recalls30) {recalls30.add(recalls.get(30));}
-            synchronized (recalls35) {recalls35.add(recalls.get(35));}
-            synchronized (recalls40) {recalls40.add(recalls.get(40));}
-            synchronized (recalls50) {recalls50.add(recalls.get(50));}
-            synchronized (aps5) {aps5.add(Measures.AP(rankedItems.subList(0, 5),correctItems));}
-            synchronized (aps10) {aps10.add(Measures.AP(rankedItems.subList(0, 10),correctItems));}
-            synchronized (aps15) {aps15.add(Measures.AP(rankedItems.subList(0, 15),correctItems));}
-            synchronized (aps20) {aps20.add(Measures.AP(rankedItems.subList(0, 20),correctItems));}
-            synchronized (aps25) {aps25.add(Measures.AP(rankedItems.subList(0, 25),correctItems));}
-            synchronized (aps30) {aps30.add(Measures.AP(rankedItems.subList(0, 30),correctItems));}
-            synchronized (aps35) {aps35.add(Measures.AP(rankedItems.subList(0, 35),correctItems));}
-            synchronized (aps40) {aps40.add(Measures.AP(rankedItems.subList(0, 40),correctItems));}
-            synchronized (aps50) {aps50.add(Measures.AP(rankedItems.subList(0, 50),correctItems));}
-            synchronized (rrs) {rrs.add(RR);};
-            synchronized (aucs) {aucs.add(auc);};
-            synchronized (ndcgs5){ndcgs5.add(Measures.nDCG(rankedItems.subList(0, 5), correctItems));};
-            synchronized (ndcgs10){ndcgs10.add(Measures.nDCG(rankedItems.subList(0, 10), correctItems));};
-            synchronized (ndcgs15){ndcgs15.add(Measures.nDCG(rankedItems.subList(0, 15), correctItems));};
-            synchronized (ndcgs20){ndcgs20.add(Measures.nDCG(rankedItems.subList(0, 20), correctItems));};
-            synchronized (ndcgs25){ndcgs25.add(Measures.nDCG(rankedItems.subList(0, 25), correctItems));};
-            synchronized (ndcgs30){ndcgs30.add(Measures.nDCG(rankedItems.subList(0, 30), correctItems));};
-            synchronized (ndcgs30){ndcgs30.add(Measures.nDCG(rankedItems.subList(0, 30), correctItems));};
-            synchronized (ndcgs35){ndcgs35.add(Measures.nDCG(rankedItems.subList(0, 35), correctItems));};
-            synchronized (ndcgs40){ndcgs40.add(Measures.nDCG(rankedItems.subList(0, 40), correctItems));};
-            synchronized (ndcgs50){ndcgs50.add(Measures.nDCG(rankedItems.subList(0, 50), correctItems));};
 					} catch (Exception e) {
 						Logs.error("evalRankings쳣", e);
 					} finally {
@@ -630,51 +748,18 @@ public abstract class Recommender implements Runnable {
 			});
 		}
 
-		while (latch.getCount() > 0) {
-			Thread.sleep(1000);
-		}
 		latch.await();
+		executor.shutdown();
         // measure the performance
-        Map<Measure, Double> measures = new HashMap<>();
-        measures.put(Measure.Pre5, Stats.mean(precs5));
-        measures.put(Measure.Pre10, Stats.mean(precs10));
-        measures.put(Measure.Pre15, Stats.mean(precs15));
-        measures.put(Measure.Pre20, Stats.mean(precs20));
-        measures.put(Measure.Pre25, Stats.mean(precs25));
-        measures.put(Measure.Pre30, Stats.mean(precs30));
-        measures.put(Measure.Pre35, Stats.mean(precs35));
-        measures.put(Measure.Pre40, Stats.mean(precs40));
-        measures.put(Measure.Pre50, Stats.mean(precs50));
-        measures.put(Measure.Rec5, Stats.mean(recalls5));
-        measures.put(Measure.Rec10, Stats.mean(recalls10));
-        measures.put(Measure.Rec15, Stats.mean(recalls15));
-        measures.put(Measure.Rec20, Stats.mean(recalls20));
-        measures.put(Measure.Rec25, Stats.mean(recalls25));
-        measures.put(Measure.Rec30, Stats.mean(recalls30));
-        measures.put(Measure.Rec35, Stats.mean(recalls35));
-        measures.put(Measure.Rec40, Stats.mean(recalls40));
-        measures.put(Measure.Rec50, Stats.mean(recalls50));
-        measures.put(Measure.MAP5, Stats.mean(aps5));
-        measures.put(Measure.MAP10, Stats.mean(aps10));
-        measures.put(Measure.MAP15, Stats.mean(aps15));
-        measures.put(Measure.MAP20, Stats.mean(aps20));
-        measures.put(Measure.MAP25, Stats.mean(aps25));
-        measures.put(Measure.MAP30, Stats.mean(aps30));
-        measures.put(Measure.MAP35, Stats.mean(aps35));
-        measures.put(Measure.MAP40, Stats.mean(aps40));
-        measures.put(Measure.MAP50, Stats.mean(aps50));
-        measures.put(Measure.NDCG5, Stats.mean(ndcgs5));
-        measures.put(Measure.NDCG10, Stats.mean(ndcgs10));
-        measures.put(Measure.NDCG15, Stats.mean(ndcgs15));
-        measures.put(Measure.NDCG20, Stats.mean(ndcgs20));
-        measures.put(Measure.NDCG25, Stats.mean(ndcgs25));
-        measures.put(Measure.NDCG30, Stats.mean(ndcgs30));
-        measures.put(Measure.NDCG35, Stats.mean(ndcgs35));
-        measures.put(Measure.NDCG40, Stats.mean(ndcgs40));
-        measures.put(Measure.NDCG50, Stats.mean(ndcgs50));
-        measures.put(Measure.MRR, Stats.mean(rrs));
-        measures.put(Measure.AUC, Stats.mean(aucs));
-     //   executor.shutdownNow();
+        Map<Measure, Double> measures = toMeasures(slots, sums, counts);
+
+        // performance of user segments
+        if (segments != null) {
+            segmentMeasures = new ArrayList<>(numSegments);
+            for (int s = 0; s < numSegments; s++)
+                segmentMeasures.add(toMeasures(slots, segmentSums[s], segmentCounts[s]));
+            segmentSizes = segmentUsers;
+        }
         return measures;
     }
 
@@ -772,30 +857,157 @@ public abstract class Recommender implements Runnable {
     }
 
     /**
-     * execution method of a recommender
+     * learn a recommender model, or load a learned model
+     *
+     * @param isLoad whether to load a learned model saved by {@code saveModel()}
      */
-    public void execute() throws Exception {
+    public void trainModel(boolean isLoad) throws Exception {
+        if (isLoad) {
+            loadModel();
+            return;
+        }
 
-        Stopwatch sw = Stopwatch.createStarted();
-        if (Debug.ON) {
-            // learn a recommender model
-            initModel();
+        // learn a recommender model
+        initModel();
 
-            // show algorithm's configuration
-            printAlgoConfig();
+        // show algorithm's configuration
+        printAlgoConfig();
 
-            // build the model
-            buildModel();
+        // build the model
+        buildModel();
 
-            // post-processing after building a model, e.g., release intermediate memory to avoid memory leak
-            postModel();
-        } else {
-            /**
-             * load a learned model: this code will not be executed unless "Debug.OFF" mainly for the purpose of
-             * exemplifying how to use the saved models
-             */
-            loadModel();
+        // post-processing after building a model, e.g., release intermediate memory to avoid memory leak
+        postModel();
+    }
+
+    /**
+     * Recommend the top-N unrated items to all users in parallel, and write them to sharded binary files (see
+     * {@code RecommendationWriter}) with an optional tsv file of raw user and item ids per shard
+     *
+     * @param topN      number of recommended items per user
+     * @param dirPath   output directory
+     * @param numShards number of output files, each of which contains a block of users
+     * @param isTSV     whether to write tsv files as well
+     * @return the number of users
+     */
+    public int recommendAll(final int topN, String dirPath, int numShards, final boolean isTSV) throws Exception {
+        prepareRankings();
+
+        final int numRows = trainMatrix.numRows();
+        numShards = Math.max(1, Math.min(numShards, numRows));
+        final int shardSize = (numRows + numShards - 1) / numShards;
+        final String prefix = dirPath + algoName + "-top" + topN + "-part-";
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numShards)));
+        final CountDownLatch latch = new CountDownLatch(numShards);
+        final Exception[] error = new Exception[1];
+
+        for (int s = 0; s < numShards; s++) {
+            final int shard = s;
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    String file = prefix + String.format("%05d", shard);
+                    RecommendationWriter writer = null;
+                    BufferedWriter tsv = null;
+                    Exception failure = null;
+                    try {
+                        writer = new RecommendationWriter(file + ".bin");
+                        tsv = isTSV ? FileIO.getWriter(file + ".tsv") : null;
+
+                        int[] items = new int[topN];
+                        double[] scores = new double[topN];
+                        TopK heap = new TopK(topN);
+
+                        for (int u = shard * shardSize, um = Math.min(numRows, u + shardSize); u < um; u++) {
+                            int n = recommend(u, topN, items, scores, heap);
+                            writer.write(u, n, items, scores);
+
+                            if (tsv != null) {
+                                String user = rateDao.getUserId(u);
+                                for (int i = 0; i < n; i++) {
+                                    tsv.write(user + "\t" + rateDao.getItemId(items[i]) + "\t" + (float) scores[i]);
+                                    tsv.newLine();
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        try {
+                            if (writer != null)
+                                writer.close();
+                        } catch (Exception e) {
+                            if (failure == null)
+                                failure = e;
+                        }
+                        try {
+                            if (tsv != null)
+                                tsv.close();
+                        } catch (Exception e) {
+                            if (failure == null)
+                                failure = e;
+                        }
+
+                        // no half-written shards are left behind
+                        if (failure != null) {
+                            new File(file + ".bin").delete();
+                            new File(file + ".tsv").delete();
+                            error[0] = failure;
+                        }
+                        latch.countDown();
+                    }
+                }
+            });
         }
+
+        latch.await();
+        pool.shutdown();
+
+        if (error[0] != null)
+            throw error[0];
+
+        return numRows;
+    }
+
+    /**
+     * recommend the top-N unrated items to user u, by retrieval if supported or by scoring all items otherwise
+     *
+     * @return the number of recommended items
+     */
+    private int recommend(int u, int n, int[] items, double[] scores, TopK heap) throws Exception {
+        int num = retrieve(u, n, items, scores);
+        if (num >= 0)
+            return num;
+
+        // rated items are sorted
+        int[] ratedItems = trainMatrix.row(u).getIndex();
+
+        heap.clear();
+        for (int j = 0, k = 0; j < numItems; j++) {
+            while (k < ratedItems.length && ratedItems[k] < j)
+                k++;
+            if (k < ratedItems.length && ratedItems[k] == j)
+                continue;
+
+            double rank = ranking(u, j);
+            if (!Double.isNaN(rank))
+                heap.offer(j, rank);
+        }
+
+        return heap.drain(items, scores);
+    }
+
+    /**
+     * execution method of a recommender
+     */
+    public void execute() throws Exception {
+
+        Stopwatch sw = Stopwatch.createStarted();
+        /**
+         * load a learned model if "Debug.OFF", mainly for the purpose of exemplifying how to use the saved models
+         */
+        trainModel(!Debug.ON);
         long trainTime = sw.elapsed(TimeUnit.MILLISECONDS);
 
         // validation
@@ -827,10 +1039,42 @@ public abstract class Recommender implements Runnable {
         if (fold > 0)
             Logs.debug(evalInfo);
 
+        if (segmentMeasures != null)
+            reportSegments();
+
         if (isSaveModel)
             saveModel();
     }
 
+    /**
+     * print out the performance of user segments as a table, and write it to a csv file
+     */
+    protected void reportSegments() throws Exception {
+        StringBuilder table = new StringBuilder(String.format("%-8s%8s", "segment", "users"));
+        StringBuilder csv = new StringBuilder("segment,users");
+        for (Measure m : rankMeasures) {
+            table.append(String.format("%12s", m));
+            csv.append(",").append(m);
+        }
+
+        for (int s = 0; s < segments.size(); s++) {
+            Map<Measure, Double> ms = segmentMeasures.get(s);
+            table.append(String.format("%n%-8s%8d", segments.get(s), segmentSizes[s]));
+            csv.append("\n").append(segments.get(s)).append(",").append(segmentSizes[s]);
+            for (Measure m : rankMeasures) {
+                table.append(String.format("%12.6f", ms.get(m)));
+                csv.append(String.format(",%.6f", ms.get(m)));
+            }
+        }
+        csv.append("\n");
+
+        Logs.info("{}{} performance of user segments:\n{}", algoName, foldInfo, table);
+
+        String toFile = tempDirPath + algoName + "-segments" + foldInfo + ".csv";
+        FileIO.writeString(toFile, csv.toString());
+        Logs.debug("{}{} has written the performance of user segments to {}", algoName, foldInfo, toFile);
+    }
+
     /**
      * logistic function g(x)
      */
@@ -894,69 +1138,433 @@ public abstract class Recommender implements Runnable {
                 return true;
         }
     }
+    /**
+     * determine whether user u is used to evaluate item ranking, according to the test view
+     */
     protected boolean isrankingTest(int u) {
-   	 int items=trainMatrix.rowSize(u);
-   	switch (view) {
-           case "1-5":
-           	if(items>=1&items<=5){
-           		return true;
-           	}else{
-           		return false;
-           	}
-           case "6-10":
-           	if(items>=6&items<=10){
-           		return true;
-           	}else{
-           		return false;
-           	}
-           case "1-10":
-              	if(items>=1&items<=10){
-              		return true;
-              	}else{
-               		return false;
-               	}
-           case "11-15":
-           	if(items>=11&items<=15){
-           		return true;
-           	}else{
-           		return false;
-           	}
-           	
-           case ">15":
-           	if(items>15){
-           		return true;
-           	}else{
-           		return false;
-           	}
-           	case "16-20":
-               	if(items>=16&items<=20){
-               		return true;
-               	}else{
-               		return false;
-               	}
-           	case "21-25":
-               	if(items>=21&items<=25){
-               		return true;
-               	}else{
-               		return false;
-               	}
-            case ">20":
-               	if(items>20){
-               		return true;
-               	}else{
-               		return false;
-               	}
-            case ">25":
-               	if(items>25){
-               		return true;
-               	}else{
-               		return false;
-               	}
-           case "all":
-           default:
-               return true;
-       }
-   }
+        return inView(view, trainMatrix.rowSize(u));
+    }
+
+    /**
+     * determine whether a user with a number of training items belongs to a view (or segment) of users: "a-b" for
+     * [a, b], ">a" for more than a, and others such as "all" for all users
+     */
+    protected static boolean inView(String view, int size) {
+        if (view.matches("\\d+-\\d+")) {
+            int idx = view.indexOf('-');
+            return size >= Integer.parseInt(view.substring(0, idx)) && size <= Integer.parseInt(view.substring(idx + 1));
+        } else if (view.matches(">\\d+")) {
+            return size > Integer.parseInt(view.substring(1));
+        }
+
+        return true;
+    }
+
+    /**
+     * add the (non-NaN) measures of a user to the sums and counts of measures
+     */
+    private static void accumulate(double[] results, double[] sums, int[] counts) {
+        for (int k = 0; k < results.length; k++) {
+            if (!Double.isNaN(results[k])) {
+                sums[k] += results[k];
+                counts[k]++;
+            }
+        }
+    }
+
+    /**
+     * @return the averages of the requested ranking measures, located by their positions in the results
+     */
+    private static Map<Measure, Double> toMeasures(int[] slots, double[] sums, int[] counts) {
+        Map<Measure, Double> measures = new HashMap<>();
+        for (int i = 0; i < slots.length; i++)
+            measures.put(rankMeasures.get(i), sums[slots[i]] / counts[slots[i]]);
+
+        return measures;
+    }
+
+    /**
+     * Prepare for ranking evaluation, e.g., build a retrieval index over the current model
+     */
+    protected void prepareRankings() throws Exception {
+    }
+
+    /**
+     * Retrieve the top-N unrated items of user u without scoring all items, e.g., from an index over the model
+     *
+     * @param u      user id
+     * @param n      number of items to retrieve
+     * @param items  output item ids, sorted from the highest score to the lowest
+     * @param scores output ranking scores of items; can be null
+     * @return the number of retrieved items, or -1 if retrieval is not supported and all items should be scored
+     */
+    protected int retrieve(int u, int n, int[] items, double[] scores) throws Exception {
+        return -1;
+    }
+
+    /**
+     * @return whether this recommender folds in users for leave-one-out rather than re-training for each held-out
+     *         rating, see {@code foldIn}; disabled by default
+     */
+    public boolean isFoldInSupported() {
+        return false;
+    }
+
+    /**
+     * Rank the top-N items of user u as if user u had only rated the given items, by folding the user into the learned
+     * model without re-training it, e.g., for leave-one-out evaluation
+     *
+     * @param u      user id
+     * @param rated  the items rated by user u, which are excluded from the ranking
+     * @param n      number of items to rank
+     * @param items  output item ids, sorted from the highest score to the lowest
+     * @param scores output ranking scores of items; can be null
+     * @return the number of ranked items, or -1 if fold-in is not supported
+     */
+    protected int foldIn(int u, SparseVector rated, int n, int[] items, double[] scores) throws Exception {
+        return -1;
+    }
+
+    /**
+     * Train the model with all training ratings once, and evaluate it by leave-one-out with fold-in, see
+     * {@code evalLeaveOneOut}
+     */
+    public void executeLeaveOneOut() throws Exception {
+        Stopwatch sw = Stopwatch.createStarted();
+        trainModel(!Debug.ON);
+        long trainTime = sw.elapsed(TimeUnit.MILLISECONDS);
+
+        if (verbose)
+            Logs.debug("{}{} evaluate leave-one-out ratings ... ", algoName, foldInfo);
+        measures = evalLeaveOneOut();
+        long testTime = sw.elapsed(TimeUnit.MILLISECONDS) - trainTime;
+
+        measures.put(Measure.TrainTime, (double) trainTime);
+        measures.put(Measure.TestTime, (double) testTime);
+    }
+
+    /**
+     * Leave-one-out evaluation over a model learned from all training ratings: each rating (u, i) is held out in turn,
+     * user u is folded in with the other items of u, and item i is the only test item of the ranked list. Diversities
+     * are not evaluated.
+     *
+     * @return the ranking measures averaged over all training ratings
+     */
+    protected Map<Measure, Double> evalLeaveOneOut() throws Exception {
+        int[][] allCutoffs = rankingCutoffs();
+        final int[] diverseCutoffs = allCutoffs[1];
+        final Measures.RankingKernel kernel = new Measures.RankingKernel(allCutoffs[0], 1,
+                rankMeasures.contains(Measure.MRR), rankMeasures.contains(Measure.AUC));
+        final int numResults = kernel.size() + diverseCutoffs.length;
+        final int[] slots = rankingSlots(kernel, allCutoffs[0], diverseCutoffs);
+
+        final double[] sums = new double[numResults];
+        final int[] counts = new int[numResults];
+        final int numTopNRanks = numRecs < 0 ? 10 : numRecs;
+        final int numRows = trainMatrix.numRows();
+
+        final AtomicInteger next = new AtomicInteger(0);
+        final Exception[] error = new Exception[1];
+
+        int threads = Math.max(1, Math.min(numThreads, numRows));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final CountDownLatch latch = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            pool.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        // buffers of a worker, reused for all held-out ratings
+                        int[] items = new int[numTopNRanks];
+                        double[] results = new double[numResults];
+                        double[] partSums = new double[numResults];
+                        int[] partCounts = new int[numResults];
+                        int[] truth = new int[1];
+
+                        int u;
+                        while ((u = next.getAndIncrement()) < numRows) {
+                            SparseVector pu = trainMatrix.row(u);
+                            for (int i : pu.getIndex()) {
+                                SparseVector rated = trainMatrix.row(u, i);
+                                int n = foldIn(u, rated, numTopNRanks, items, null);
+                                if (n <= 0)
+                                    continue;
+
+                                truth[0] = i;
+                                kernel.evaluate(items, n, truth, numItems - rated.size() - n, results);
+                                Arrays.fill(results, kernel.size(), numResults, Double.NaN);
+                                accumulate(results, partSums, partCounts);
+                            }
+                        }
+
+                        synchronized (sums) {
+                            for (int k = 0; k < numResults; k++) {
+                                sums[k] += partSums[k];
+                                counts[k] += partCounts[k];
+                            }
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+        pool.shutdown();
+
+        if (error[0] != null)
+            throw error[0];
+
+        return toMeasures(slots, sums, counts);
+    }
+
+    /**
+     * @return whether this recommender can be updated with new ratings incrementally, see {@code updateModel}
+     */
+    public boolean isUpdateSupported() {
+        return false;
+    }
+
+    /**
+     * Update the learned model with new ratings by a bounded number of passes over them, which only touch the users and
+     * items involved rather than re-training the model, e.g., for prequential evaluation. The new ratings are already
+     * known by {@code isRated}.
+     *
+     * @param users     users of the new ratings
+     * @param items     items of the new ratings
+     * @param numPasses number of passes over the new ratings
+     */
+    protected void updateModel(int[] users, int[] items, int numPasses) throws Exception {
+    }
+
+    /**
+     * @return whether user u has rated item j so far: the training ratings, or in prequential evaluation, all the ratings
+     * earlier than the current window
+     */
+    protected boolean isRated(int u, int j) {
+        if (timeRanks == null)
+            return trainMatrix.get(u, j) != 0;
+
+        int[] rowPtr = rateMatrix.getRowPointers();
+        int idx = Arrays.binarySearch(rateMatrix.getColumnIndices(), rowPtr[u], rowPtr[u + 1], j);
+
+        return idx >= 0 && timeRanks[idx] < horizon && rateMatrix.getData()[idx] != 0;
+    }
+
+    /**
+     * Prequential (replay) evaluation: train the model with the earliest ratings once, and replay the rest of ratings
+     * of the rate matrix in time order by windows. Each window is first tested with the current model, i.e., the top-N
+     * items of each user of the window are evaluated against the items of the user in the window, excluding the
+     * items rated earlier; the model is then updated with the ratings of the window, see {@code updateModel}. The measures and
+     * update time of each window are logged and written to a csv file. Diversities are not evaluated.
+     *
+     * @param order      positions (in the order of CRS) of the ratings of the rate matrix in time order
+     * @param start      number of the earliest ratings in the order used for training
+     * @param windowSize number of ratings of a window
+     * @param numPasses  number of passes over the ratings of a window to update the model
+     */
+    public void executePrequential(int[] order, int start, int windowSize, int numPasses) throws Exception {
+        Stopwatch sw = Stopwatch.createStarted();
+        trainModel(!Debug.ON);
+        long trainTime = sw.elapsed(TimeUnit.MILLISECONDS);
+
+        timeRanks = new int[order.length];
+        for (int k = 0; k < order.length; k++)
+            timeRanks[order[k]] = k;
+
+        int[][] allCutoffs = rankingCutoffs();
+        Measures.RankingKernel kernel = new Measures.RankingKernel(allCutoffs[0], Math.min(windowSize, numItems),
+                rankMeasures.contains(Measure.MRR), rankMeasures.contains(Measure.AUC));
+        int numResults = kernel.size() + allCutoffs[1].length;
+        int[] slots = rankingSlots(kernel, allCutoffs[0], allCutoffs[1]);
+
+        double[] sums = new double[numResults];
+        int[] counts = new int[numResults];
+
+        StringBuilder csv = new StringBuilder("window,ratings,users");
+        for (Measure m : rankMeasures)
+            csv.append(",").append(m);
+        csv.append(",update(ms)");
+
+        int[] rowPtr = rateMatrix.getRowPointers();
+        double[] data = rateMatrix.getData();
+        int[] rowOf = new int[data.length];
+        for (int u = 0, um = rateMatrix.numRows(); u < um; u++)
+            Arrays.fill(rowOf, rowPtr[u], rowPtr[u + 1], u);
+        int[] colInd = rateMatrix.getColumnIndices();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            for (int w = 1, from = start; from < order.length; w++, from += windowSize) {
+                int to = (int) Math.min((long) from + windowSize, order.length);
+
+                // ratings of the window, sorted by users and items
+                int size = 0;
+                long[] keys = new long[to - from];
+                for (int k = from; k < to; k++) {
+                    int idx = order[k];
+                    if (data[idx] != 0)
+                        keys[size++] = (long) rowOf[idx] << 32 | colInd[idx];
+                }
+                Arrays.sort(keys, 0, size);
+
+                int[] users = new int[size], items = new int[size];
+                for (int k = 0; k < size; k++) {
+                    users[k] = (int) (keys[k] >>> 32);
+                    items[k] = (int) keys[k];
+                }
+
+                // test, and then update with the ratings of the window
+                horizon = from;
+                double[] winSums = new double[numResults];
+                int[] winCounts = new int[numResults];
+                int numUsers = evalWindow(pool, kernel, users, items, winSums, winCounts);
+
+                horizon = to;
+                long updateStart = System.nanoTime();
+                updateModel(users, items, numPasses);
+                long updateTime = (System.nanoTime() - updateStart) / 1000000L;
+
+                for (int k = 0; k < numResults; k++) {
+                    sums[k] += winSums[k];
+                    counts[k] += winCounts[k];
+                }
+
+                Map<Measure, Double> winMeasures = toMeasures(slots, winSums, winCounts);
+                if (verbose)
+                    Logs.debug("{}{} window {}: ratings = {}, users = {}, {}, update = {} ms", new Object[]{algoName,
+                            foldInfo, w, size, numUsers, getEvalInfo(winMeasures), updateTime});
+
+                csv.append("\n").append(w).append(",").append(size).append(",").append(numUsers);
+                for (Measure m : rankMeasures)
+                    csv.append(String.format(",%.6f", winMeasures.get(m)));
+                csv.append(",").append(updateTime);
+            }
+        } finally {
+            pool.shutdown();
+            timeRanks = null;
+        }
+        csv.append("\n");
+
+        measures = toMeasures(slots, sums, counts);
+        long testTime = sw.elapsed(TimeUnit.MILLISECONDS) - trainTime;
+
+        measures.put(Measure.TrainTime, (double) trainTime);
+        measures.put(Measure.TestTime, (double) testTime);
+
+        String toFile = tempDirPath + algoName + "-prequential" + foldInfo + ".csv";
+        FileIO.writeString(toFile, csv.toString());
+        Logs.debug("{}{} has written the performance of prequential windows to {}", algoName, foldInfo, toFile);
+    }
+
+    /**
+     * Evaluate the top-N items of the users of a window, in parallel over users
+     *
+     * @param users  users of the ratings of the window, sorted
+     * @param items  items of the ratings of the window, sorted for each user
+     * @param sums   output sums of measures
+     * @param counts output counts of measures
+     * @return the number of evaluated users
+     */
+    private int evalWindow(ExecutorService pool, final Measures.RankingKernel kernel, final int[] users,
+                           final int[] items, final double[] sums, final int[] counts) throws Exception {
+        // the first rating of each user
+        int numUsers = 0;
+        final int[] firsts = new int[users.length + 1];
+        for (int k = 0; k < users.length; k++) {
+            if (k == 0 || users[k] != users[k - 1])
+                firsts[numUsers++] = k;
+        }
+        firsts[numUsers] = users.length;
+
+        final int numResults = sums.length;
+        final int numTopNRanks = numRecs < 0 ? 10 : numRecs;
+        final int numWindowUsers = numUsers;
+        final AtomicInteger next = new AtomicInteger(0);
+        final int[] evaluated = new int[1];
+        final Exception[] error = new Exception[1];
+
+        int threads = Math.max(1, Math.min(numThreads, numUsers));
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final int[] rowPtr = rateMatrix.getRowPointers(), colInd = rateMatrix.getColumnIndices();
+        final double[] data = rateMatrix.getData();
+
+        for (int t = 0; t < threads; t++) {
+            pool.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        // buffers of a worker, reused for all users
+                        TopK heap = new TopK(numTopNRanks);
+                        int[] ranked = new int[numTopNRanks];
+                        double[] results = new double[numResults];
+                        double[] partSums = new double[numResults];
+                        int[] partCounts = new int[numResults];
+                        int partUsers = 0;
+
+                        int k;
+                        while ((k = next.getAndIncrement()) < numWindowUsers && error[0] == null) {
+                            int u = users[firsts[k]];
+                            int[] truth = Arrays.copyOfRange(items, firsts[k], firsts[k + 1]);
+
+                            // rank the items not rated earlier than the window
+                            heap.clear();
+                            int numCands = numItems;
+                            for (int j = 0, idx = rowPtr[u], end = rowPtr[u + 1]; j < numItems; j++) {
+                                while (idx < end && colInd[idx] < j)
+                                    idx++;
+                                if (idx < end && colInd[idx] == j && timeRanks[idx] < horizon && data[idx] != 0) {
+                                    numCands--;
+                                    continue;
+                                }
+
+                                double rank = ranking(u, j);
+                                if (Double.isNaN(rank))
+                                    numCands--;
+                                else
+                                    heap.offer(j, rank);
+                            }
+
+                            int n = heap.drain(ranked, null);
+                            if (n == 0)
+                                continue;
+
+                            kernel.evaluate(ranked, n, truth, numCands - n, results);
+                            Arrays.fill(results, kernel.size(), numResults, Double.NaN);
+                            accumulate(results, partSums, partCounts);
+                            partUsers++;
+                        }
+
+                        synchronized (sums) {
+                            for (int r = 0; r < numResults; r++) {
+                                sums[r] += partSums[r];
+                                counts[r] += partCounts[r];
+                            }
+                            evaluated[0] += partUsers;
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+
+        if (error[0] != null)
+            throw error[0];
+
+        return evaluated[0];
+    }
+
     /**
      * Deserializing a learned model (i.e., variable data) from files.
      */
@@ -1059,6 +1667,28 @@ public abstract class Recommender implements Runnable {
         return predict(u, j, false);
     }
 
+    /**
+     * set the number of threads used by this recommender, e.g., for ranking evaluation
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * @return a rough estimate of the heap bytes taken by this recommender, used to decide how many folds can be run in
+     * parallel
+     */
+    public long estimateMemory() {
+        // compressed row and column storages of training and test data: int indices, double values and pointers
+        long entries = trainMatrix.size() + testMatrix.size();
+        long bytes = entries * 2 * (4 + 8) + 4 * 4L * (numUsers + numItems);
+
+        // ranked items and scores of evaluation threads
+        bytes += numThreads * 16L * numItems;
+
+        return bytes;
+    }
+
     public void run() {
         try {
             execute();
@@ -0,0 +1,152 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import librec.intf.Recommender;
+import librec.intf.Recommender.Measure;
+import librec.util.Logs;
+
+/**
+ * Run the folds of an evaluation (e.g., k-fold cross validation) with bounded parallelism. <br>
+ *
+ * The recommender of the first fold is used to estimate the heap taken by a fold, from which the number of concurrent
+ * folds is bounded by the memory budget. The cpu cores are then split between the concurrent folds, each of which
+ * uses its share of cores for intra-fold parallelism. The recommender of a fold is only created once the fold is
+ * admitted, and released after its evaluation.
+ *
+ * @author wubin
+ */
+public class FoldScheduler {
+
+    /**
+     * A factory of the recommender of a fold
+     */
+    public interface FoldFactory {
+        Recommender create(int fold) throws Exception;
+    }
+
+    // maximum number of concurrent folds, number of cpu cores
+    private int maxFolds, numCPUs;
+    // memory budget in bytes
+    private long memoryBudget;
+
+    /**
+     * @param maxFolds     maximum number of folds to run concurrently
+     * @param numCPUs      number of cpu cores shared by concurrent folds
+     * @param memoryBudget heap bytes available to concurrent folds; the free heap if non-positive
+     */
+    public FoldScheduler(int maxFolds, int numCPUs, long memoryBudget) {
+        this.maxFolds = Math.max(1, maxFolds);
+        this.numCPUs = Math.max(1, numCPUs);
+        this.memoryBudget = memoryBudget > 0 ? memoryBudget : freeMemory();
+    }
+
+    /**
+     * @return the heap that can still be allocated
+     */
+    public static long freeMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    /**
+     * Run folds 1 to k
+     *
+     * @param numFolds number of folds
+     * @param factory  factory of the recommenders of folds
+     * @return the performance measures of each fold
+     */
+    public List<Map<Measure, Double>> run(int numFolds, final FoldFactory factory) throws Exception {
+        final List<Map<Measure, Double>> results = new ArrayList<>(Collections.nCopies(numFolds,
+                (Map<Measure, Double>) null));
+
+        Recommender algo = factory.create(1);
+
+        // admission by the memory of a fold
+        long foldMemory = algo.estimateMemory();
+        int numConcurrent = Math.min(maxFolds, numFolds);
+        if (foldMemory > 0)
+            numConcurrent = (int) Math.max(1, Math.min(numConcurrent, memoryBudget / foldMemory));
+        int numThreads = Math.max(1, numCPUs / numConcurrent);
+
+        Logs.debug("Run {} folds: {} concurrent folds with {} threads each, {} MB estimated per fold", new Object[]{
+                numFolds, numConcurrent, numThreads, foldMemory >> 20});
+
+        ExecutorService pool = Executors.newFixedThreadPool(numConcurrent);
+        final Semaphore slots = new Semaphore(numConcurrent);
+        // errors as well, e.g., OutOfMemoryError of a misjudged admission, which a submitted task would swallow
+        final Throwable[] error = new Throwable[1];
+
+        try {
+            for (int fold = 1; fold <= numFolds; fold++) {
+                slots.acquire();
+                if (error[0] != null)
+                    break;
+
+                if (algo == null)
+                    algo = factory.create(fold);
+                algo.setNumThreads(numThreads);
+
+                final Recommender foldAlgo = algo;
+                final int index = fold - 1;
+                algo = null;
+
+                pool.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            foldAlgo.execute();
+                            synchronized (results) {
+                                results.set(index, foldAlgo.measures);
+                            }
+                        } catch (Throwable e) {
+                            error[0] = e;
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            // wait for the running folds; no more folds are submitted after an error
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        Throwable cause = error[0];
+        if (cause instanceof Error)
+            throw (Error) cause;
+        if (cause instanceof Exception)
+            throw (Exception) cause;
+        if (cause != null)
+            throw new Exception(cause);
+
+        return results;
+    }
+}
@@ -1,6 +1,7 @@
 package librec.main;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,8 +9,10 @@ import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 import librec.data.DataDAO;
 import librec.data.DataSplitter;
+import librec.data.MaskedSparseMatrix;
 import librec.data.MatrixEntry;
 import librec.data.SparseMatrix;
+import librec.data.VectorEntry;
 import librec.intf.IterativeRecommender;
 import librec.intf.Recommender;
 import librec.intf.Recommender.Measure;
@@ -21,6 +24,7 @@ import librec.util.LineConfiger;
 import librec.util.Logs;
 import librec.util.Randoms;
 import librec.util.Strings;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
@@ -47,6 +51,12 @@ public class LibRec{
     protected DataDAO rateDao;
     // line configer for rating data, LibRec outputs
     protected LineConfiger ratingOptions, outputOptions;
+    // command line options of recommending items to all users, null if not used
+    protected LineConfiger recommendOptions;
+    // command line options of hyperparameter search, null if not used
+    protected LineConfiger tuneOptions;
+    // command line options of serving recommendations, null if not used
+    protected LineConfiger serveOptions;
 
     // rating, timestamp matrix
     protected SparseMatrix rateMatrix, timeMatrix;
@@ -96,6 +106,9 @@ public class LibRec{
         // is first line: headline
         rateDao.setHeadline(ratingOptions.contains("-headline"));
 
+        // cache the parsed data as a binary snapshot, unless disabled
+        rateDao.setSnapshot(!ratingOptions.contains("--no-snapshot"));
+
         // rating threshold
         binThold = ratingOptions.getFloat("-threshold");
 
@@ -105,7 +118,8 @@ public class LibRec{
 
         SparseMatrix[] data = ratingOptions.contains("--as-tensor") ? rateDao.readTensor(columns, binThold) : rateDao
                 .readData(columns, binThold);
-        rateMatrix = data[0];
+        // frozen as it is only read by data splitters and recommenders since then
+        rateMatrix = data[0].freeze();
         timeMatrix = data[1];
         Recommender.rateMatrix = rateMatrix;
         Recommender.timeMatrix = timeMatrix;
@@ -184,6 +198,21 @@ public class LibRec{
             System.exit(0);
         }
 
+        if (paramOptions.contains("--recommend-all")) {
+            // recommend items to all users instead of evaluation
+            recommendOptions = paramOptions;
+        }
+
+        if (paramOptions.contains("--tune")) {
+            // search hyperparameters instead of evaluation
+            tuneOptions = paramOptions;
+        }
+
+        if (paramOptions.contains("--serve")) {
+            // serve top-N recommendations over local http instead of evaluation
+            serveOptions = paramOptions;
+        }
+
         if (paramOptions.contains("--dataset-spec")) {
             for (String configFile : configFiles) {
                 // print out data set specification
@@ -299,6 +328,21 @@ public class LibRec{
      */
     protected void run() throws Exception {
 
+        if (recommendOptions != null) {
+            runRecommendAll(recommendOptions);
+            return;
+        }
+
+        if (tuneOptions != null) {
+            runTune(tuneOptions);
+            return;
+        }
+
+        if (serveOptions != null) {
+            runServe(serveOptions);
+            return;
+        }
+
         // evaluation setup
         String setup = cf.getString("evaluation.setup");
         LineConfiger evalOptions = new LineConfiger(setup);
@@ -343,6 +387,9 @@ public class LibRec{
                         return; //
                 }
                 break;
+            case "prequential":
+                runPrequential(evalOptions);
+                return;
             case "test-set":
                 DataDAO testDao = new DataDAO(evalOptions.getString("-f"), rateDao.getUserIds(), rateDao.getItemIds());
                 testDao.setTimeUnit(timeUnit);
@@ -398,126 +445,306 @@ public class LibRec{
         printEvalInfo(algo, algo.measures);
     }
 
-    private void runCrossValidation(LineConfiger params) throws Exception {
+    /**
+     * train a recommender with all the ratings (or load a learned model), and write out the top-N recommendations of
+     * all users, e.g., {@code --recommend-all -topN 50 -shards 8 --tsv --load-model}
+     */
+    private void runRecommendAll(LineConfiger params) throws Exception {
 
-        int kFold = params.getInt("-k", 5);
-        boolean isParallelFold = params.isOn("-p", true);
+        int topN = params.getInt("-topN", 50);
+        int numShards = params.getInt("-shards", Runtime.getRuntime().availableProcessors());
+        boolean isTSV = params.contains("--tsv");
+        boolean isLoad = params.contains("--load-model");
+
+        // all ratings are used for training
+        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
+        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        SparseMatrix testMatrix = new SparseMatrix(rateMatrix.numRows(), rateMatrix.numColumns(), dataTable, colMap);
+
+        Recommender algo = getRecommender(new SparseMatrix[]{rateMatrix, testMatrix}, -1);
 
-        DataSplitter ds = new DataSplitter(rateMatrix, kFold);
+        Stopwatch sw = Stopwatch.createStarted();
+        algo.trainModel(isLoad);
+        Logs.info("{} has {} the model in {}", algo.algoName, isLoad ? "loaded" : "trained",
+                Dates.parse(sw.elapsed(TimeUnit.MILLISECONDS)));
 
-        Thread[] ts = new Thread[kFold];
-        Recommender[] algos = new Recommender[kFold];
+        String dirPath = FileIO.makeDirectory(Recommender.tempDirPath, "recommendations");
+        sw.reset().start();
+        int numUsers = algo.recommendAll(topN, dirPath, numShards, isTSV);
+        long time = Math.max(1, sw.elapsed(TimeUnit.MILLISECONDS));
 
-        for (int i = 0; i < kFold; i++) {
-            Recommender algo = getRecommender(ds.getKthFold(i + 1), i + 1);
+        Logs.info("{} has recommended top-{} items to {} users in {}: {} users/sec, written to {}", new Object[]{
+                algo.algoName, topN, numUsers, Dates.parse(time), (int) (numUsers * 1000.0 / time), dirPath});
+    }
 
-            algos[i] = algo;
-            ts[i] = new Thread(algo);
-            ts[i].start();
+    /**
+     * serve the top-N recommendations of a factorization model trained with all the ratings (or loaded), e.g.,
+     * {@code --serve -port 8080 -topN 10 -batch 32 -wait 2 -t 4 -reload 10 --load-model}: the model is reloaded within
+     * "-reload" seconds after its files (see {@code --save-model}) are changed
+     */
+    private void runServe(LineConfiger params) throws Exception {
+
+        int port = params.getInt("-port", 8080);
+        int topN = params.getInt("-topN", 10);
+        int batchSize = params.getInt("-batch", 32);
+        int maxWait = params.getInt("-wait", 2);
+        int numThreads = params.getInt("-t", Runtime.getRuntime().availableProcessors());
+        int reloadSeconds = params.getInt("-reload", 10);
+        boolean isLoad = params.contains("--load-model");
+
+        // all ratings are used for training
+        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
+        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        SparseMatrix testMatrix = new SparseMatrix(rateMatrix.numRows(), rateMatrix.numColumns(), dataTable, colMap);
+
+        Recommender algo = getRecommender(new SparseMatrix[]{rateMatrix, testMatrix}, -1);
+        if (!(algo instanceof IterativeRecommender)) {
+            Logs.error("{} cannot be served: only factorization models are supported", algo.algoName);
+            System.exit(-1);
+        }
 
-            if (!isParallelFold)
-                ts[i].join();
+        // a saved model is read once, by the loader of the server
+        Stopwatch sw = Stopwatch.createStarted();
+        String modelDir = FileIO.makeDirectory(Recommender.tempDirPath, algo.algoName);
+        RecommendServer.Model served;
+        if (isLoad) {
+            served = RecommendServer.Model.load(modelDir);
+        } else {
+            algo.trainModel(false);
+            IterativeRecommender model = (IterativeRecommender) algo;
+            served = new RecommendServer.Model(model.getUserFactors(), model.getItemFactors(), rateMatrix);
         }
+        Logs.info("{} has {} the model in {}", algo.algoName, isLoad ? "loaded" : "trained",
+                Dates.parse(sw.elapsed(TimeUnit.MILLISECONDS)));
+
+        RecommendServer server = new RecommendServer(rateDao, served, modelDir, topN, batchSize, maxWait, numThreads);
+        server.start(port, reloadSeconds);
+    }
 
-        if (isParallelFold)
-            for (Thread t : ts)
-                t.join();
+    /**
+     * search the hyperparameters given by "tune.*" keys by successive halving, e.g., {@code --tune -n 27 -eta 3
+     * -min-iter 2 -metric NDCG10 -valid 0.2 -sample 2000 -p 4}: the ratings are split once into training and validation
+     * data (of at most "-sample" users), shared by all the trials, of which at most "-p" run concurrently
+     */
+    private void runTune(LineConfiger params) throws Exception {
+
+        int numConfigs = params.getInt("-n", 27);
+        int eta = params.getInt("-eta", 3);
+        int minIters = params.getInt("-min-iter", 1);
+        int maxIters = cf.getInt("num.max.iter", 100);
+        double validRatio = params.getDouble("-valid", 0.2);
+        int numSamples = params.getInt("-sample", -1);
+        int numCPUs = Runtime.getRuntime().availableProcessors();
+        int maxTrials = params.getInt("-p", numCPUs);
+        long memoryBudget = params.getLong("-mem", -1L) << 20;
+
+        String name = params.getString("-metric", "NDCG10");
+        Measure metric = null;
+        for (Measure m : Measure.values()) {
+            if (m.name().equalsIgnoreCase(name)) {
+                metric = m;
+                break;
+            }
+        }
+        if (metric == null) {
+            Logs.error("Unknown tuning metric: {}", name);
+            System.exit(-1);
+        }
+
+        // split once, and sample the users of validation
+        SparseMatrix[] data = new DataSplitter(rateMatrix).getRatioByUser(1 - validRatio);
+        final SparseMatrix trainMatrix = data[0];
+        final SparseMatrix validMatrix = numSamples > 0 ? sampleUsers(data[1], numSamples) : data[1];
+
+        Tuner tuner = new Tuner(cf, metric, numConfigs, eta, minIters, maxIters, new FoldScheduler(maxTrials,
+                numCPUs, memoryBudget));
+        algorithm = cf.getString("recommender");
+        String filePath = tempDirPath + algorithm + "-tune@" + Dates.now() + ".csv";
+        tuner.run(new Tuner.TrialFactory() {
+
+            @Override
+            public Recommender create(int trial) throws Exception {
+                return getRecommender(new SparseMatrix[]{trainMatrix, validMatrix}, trial);
+            }
+        }, filePath);
+    }
+
+    /**
+     * @return a matrix with the ratings of at most n randomly sampled (non-empty) users of a matrix
+     */
+    private SparseMatrix sampleUsers(SparseMatrix data, int n) {
+        List<Integer> users = new ArrayList<>();
+        for (int u = 0, um = data.numRows(); u < um; u++) {
+            if (data.rowSize(u) > 0)
+                users.add(u);
+        }
+
+        // partial Fisher-Yates shuffle
+        int num = Math.min(n, users.size());
+        for (int k = 0; k < num; k++)
+            Collections.swap(users, k, k + Randoms.uniform(users.size() - k));
+
+        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
+        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        for (int u : users.subList(0, num)) {
+            for (VectorEntry ve : data.row(u)) {
+                dataTable.put(u, ve.index(), ve.get());
+                colMap.put(ve.index(), u);
+            }
+        }
+
+        return new SparseMatrix(data.numRows(), data.numColumns(), dataTable, colMap);
+    }
+
+    /**
+     * run k-fold cross validation, e.g., {@code cv -k 5 -p on -folds 2 -mem 4096}: at most "-folds" folds (default:
+     * all folds if "-p" is on, otherwise 1) run in parallel, as admitted by the memory budget "-mem" in MB (default: the
+     * free heap), and share the "-cpu" cores
+     */
+    private void runCrossValidation(LineConfiger params) throws Exception {
+
+        int kFold = params.getInt("-k", 5);
+        boolean isParallelFold = params.isOn("-p", true);
+        int maxFolds = isParallelFold ? params.getInt("-folds", kFold) : 1;
+        long memoryBudget = params.getLong("-mem", -1L) << 20;
+        int numCPUs = params.getInt("-cpu", Runtime.getRuntime().availableProcessors());
+
+        final DataSplitter ds = new DataSplitter(rateMatrix, kFold);
+        final Recommender[] first = new Recommender[1];
+
+        FoldScheduler scheduler = new FoldScheduler(maxFolds, numCPUs, memoryBudget);
+        List<Map<Measure, Double>> foldMeasures = scheduler.run(kFold, new FoldScheduler.FoldFactory() {
+
+            @Override
+            public Recommender create(int fold) throws Exception {
+                Recommender algo = getRecommender(ds.getKthFold(fold), fold);
+                if (fold == 1)
+                    first[0] = algo;
+                return algo;
+            }
+        });
 
         // average performance of k-fold
         Map<Measure, Double> avgMeasure = new HashMap<>();
-        for (Recommender algo : algos) {
-            for (Entry<Measure, Double> en : algo.measures.entrySet()) {
+        for (Map<Measure, Double> measures : foldMeasures) {
+            for (Entry<Measure, Double> en : measures.entrySet()) {
                 Measure m = en.getKey();
                 double val = avgMeasure.containsKey(m) ? avgMeasure.get(m) : 0.0;
                 avgMeasure.put(m, val + en.getValue() / kFold);
             }
         }
 
-        printEvalInfo(algos[0], avgMeasure);
+        printEvalInfo(first[0], avgMeasure);
     }
 
     /**
-     * interface to run Leave-one-out approach
+     * interface to run prequential evaluation, e.g., {@code prequential -r 0.5 -w 10000 -passes 1}: a recommender is
+     * trained with the earliest "-r" ratio of ratings, and the rest are replayed in time order by windows of "-w"
+     * ratings, each of which is tested with the current model and then used to update the model by "-passes" passes
+     */
+    private void runPrequential(LineConfiger params) throws Exception {
+
+        if (timeMatrix == null) {
+            Logs.error("Prequential evaluation requires the timestamps of ratings");
+            System.exit(-1);
+        }
+
+        double ratio = params.getDouble("-r", 0.5);
+        int windowSize = params.getInt("-w", 10000);
+        int numPasses = params.getInt("-passes", 1);
+
+        // the earliest ratings for training, as split by date
+        DataSplitter ds = new DataSplitter(rateMatrix);
+        int[] order = ds.getTimeIndex(timeMatrix).order();
+        int trainSize = (int) (order.length * ratio);
+
+        Recommender algo = getRecommender(ds.getRatioByRatingDate(ratio, timeMatrix), -1);
+        if (!algo.isUpdateSupported()) {
+            Logs.error("Recommender {} does not support incremental updates for prequential evaluation", algorithm);
+            System.exit(-1);
+        }
+
+        algo.executePrequential(order, trainSize, Math.max(1, windowSize), numPasses);
+
+        printEvalInfo(algo, algo.measures);
+    }
+
+    /**
+     * interface to run Leave-one-out approach: by default, a recommender is trained for each held-out rating on a
+     * masked view of the rating matrix, with at most "-t" recommenders in parallel. With option "--fold-in", a
+     * recommender supporting fold-in is trained once with all the ratings instead, and each held-out rating is evaluated
+     * by folding in its user, which is faster but optimistically biased as the model has seen the held-out ratings
      */
     private void runLeaveOneOut(LineConfiger params) throws Exception {
 
         int numThreads = params.getInt("-t", Runtime.getRuntime().availableProcessors()); // default by number of processors
 
-        Thread[] ts = new Thread[numThreads];
-        Recommender[] algos = new Recommender[numThreads];
+        final int rows = rateMatrix.numRows();
+        final int cols = rateMatrix.numColumns();
 
-        // average performance of k-fold
-        Map<Measure, Double> avgMeasure = new HashMap<>();
+        Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
+        Multimap<Integer, Integer> colMap = HashMultimap.create();
+        Recommender algo = getRecommender(new SparseMatrix[]{rateMatrix, new SparseMatrix(rows, cols, dataTable,
+                colMap)}, -1);
 
-        int rows = rateMatrix.numRows();
-        int cols = rateMatrix.numColumns();
+        if (algo.isFoldInSupported()) {
+            Logs.warn("Leave-one-out by fold-in: {} is trained with the held-out ratings, so results are optimistic",
+                    algorithm);
+            algo.setNumThreads(numThreads);
+            algo.executeLeaveOneOut();
 
+            printEvalInfo(algo, algo.measures);
+            return;
+        }
+        if (params.contains("--fold-in"))
+            Logs.warn("Recommender {} does not support fold-in; it is re-trained for each held-out rating", algorithm);
+
+        // ratings to be left out
+        final int size = rateMatrix.size();
+        final int[] us = new int[size], is = new int[size];
+        final double[] rs = new double[size];
         int count = 0;
         for (MatrixEntry me : rateMatrix) {
             double rui = me.get();
             if (rui <= 0)
                 continue;
 
-            int u = me.row();
-            int i = me.column();
-
-            // leave the current rating out
-            SparseMatrix trainMatrix = new SparseMatrix(rateMatrix);
-            trainMatrix.set(u, i, 0);
-            SparseMatrix.reshape(trainMatrix);
-
-            // build test matrix
-            Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-            Multimap<Integer, Integer> colMap = HashMultimap.create();
-            dataTable.put(u, i, rui);
-            colMap.put(i, u);
-            SparseMatrix testMatrix = new SparseMatrix(rows, cols, dataTable, colMap);
-
-            // get a recommender
-            Recommender algo = getRecommender(new SparseMatrix[]{trainMatrix, testMatrix}, count + 1);
-
-            algos[count] = algo;
-            ts[count] = new Thread(algo);
-            ts[count].start();
-
-            if (numThreads == 1) {
-                ts[count].join(); // fold by fold
-
-                for (Entry<Measure, Double> en : algo.measures.entrySet()) {
-                    Measure m = en.getKey();
-                    double val = avgMeasure.containsKey(m) ? avgMeasure.get(m) : 0.0;
-                    avgMeasure.put(m, val + en.getValue());
-                }
-            } else if (count < numThreads) {
-                count++;
-            }
+            us[count] = me.row();
+            is[count] = me.column();
+            rs[count++] = rui;
+        }
 
-            if (count == numThreads) {
-                // parallel fold
-                for (Thread t : ts)
-                    t.join();
-                count = 0;
-
-                // record performance
-                for (Recommender algo2 : algos) {
-                    for (Entry<Measure, Double> en : algo2.measures.entrySet()) {
-                        Measure m = en.getKey();
-                        double val = avgMeasure.containsKey(m) ? avgMeasure.get(m) : 0.0;
-                        avgMeasure.put(m, val + en.getValue());
-                    }
-                }
+        // one recommender per rating, trained on a view of the rating matrix without the rating
+        FoldScheduler scheduler = new FoldScheduler(numThreads, numThreads, -1);
+        List<Map<Measure, Double>> foldMeasures = scheduler.run(count, new FoldScheduler.FoldFactory() {
+
+            @Override
+            public Recommender create(int fold) throws Exception {
+                int u = us[fold - 1], i = is[fold - 1];
+                SparseMatrix trainMatrix = new MaskedSparseMatrix(rateMatrix, u, i);
+
+                // build test matrix
+                Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
+                Multimap<Integer, Integer> colMap = HashMultimap.create();
+                dataTable.put(u, i, rs[fold - 1]);
+                colMap.put(i, u);
+                SparseMatrix testMatrix = new SparseMatrix(rows, cols, dataTable, colMap);
+
+                return getRecommender(new SparseMatrix[]{trainMatrix, testMatrix}, fold);
             }
-        }
+        });
 
-        // normalization
-        int size = rateMatrix.size();
-        for (Entry<Measure, Double> en : avgMeasure.entrySet()) {
-            Measure m = en.getKey();
-            double val = en.getValue();
-            avgMeasure.put(m, val / size);
+        // average performance of all ratings
+        Map<Measure, Double> avgMeasure = new HashMap<>();
+        for (Map<Measure, Double> measures : foldMeasures) {
+            for (Entry<Measure, Double> en : measures.entrySet()) {
+                Measure m = en.getKey();
+                double val = avgMeasure.containsKey(m) ? avgMeasure.get(m) : 0.0;
+                avgMeasure.put(m, val + en.getValue() / count);
+            }
         }
 
-        printEvalInfo(algos[0], avgMeasure);
+        printEvalInfo(algo, avgMeasure);
     }
 
     /**
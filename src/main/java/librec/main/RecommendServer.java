@@ -0,0 +1,541 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import librec.data.DataDAO;
+import librec.data.DenseMatrix;
+import librec.data.SparseMatrix;
+import librec.util.FileIO;
+import librec.util.Logs;
+import librec.util.TopK;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server of the top-N recommendations of a factorization model, e.g.,
+ * {@code GET /recommend?user=A2XYZ&n=10}, which returns lines of "item \t score" of the raw item ids. <br>
+ *
+ * Concurrent requests are coalesced into micro-batches: each scoring thread takes up to "batch" waiting requests (or
+ * those arriving within "wait" milliseconds), and scores the users of a batch against blocks of item factors, so that
+ * each block is reused by all users while it is in cache. Training items of users are excluded. <br>
+ *
+ * The model is replaced without downtime when the model files in its directory (as written by
+ * {@code --save-model}) change: the new model is loaded aside, and swapped in for the next batches. As the id mappings
+ * of users and items are loaded once at startup, a model of other numbers of users or items is rejected. Statistics of
+ * requests, i.e., counts, QPS and p50/p99 latencies, are returned by {@code GET /stats}.
+ *
+ * @author wubin
+ */
+public class RecommendServer {
+
+    // number of items per block of scoring
+    private static final int BLOCK = 256;
+    // number of latency samples kept for percentiles
+    private static final int SAMPLES = 8192;
+
+    /**
+     * A model to serve: factors of users and items, and training items of users
+     */
+    public static class Model {
+        final double[][] userFactors, itemFactors;
+        final SparseMatrix trainMatrix;
+
+        public Model(DenseMatrix P, DenseMatrix Q, SparseMatrix trainMatrix) {
+            userFactors = new double[P.numRows()][];
+            for (int u = 0; u < userFactors.length; u++)
+                userFactors[u] = P.row(u, false).getData();
+
+            itemFactors = new double[Q.numRows()][];
+            for (int j = 0; j < itemFactors.length; j++)
+                itemFactors[j] = Q.row(j, false).getData();
+
+            this.trainMatrix = trainMatrix;
+        }
+
+        /**
+         * load a model from the files written by {@code IterativeRecommender.saveModel}
+         */
+        public static Model load(String dirPath) throws Exception {
+            DenseMatrix P = (DenseMatrix) FileIO.deserialize(dirPath + "userFactors.bin");
+            DenseMatrix Q = (DenseMatrix) FileIO.deserialize(dirPath + "itemFactors.bin");
+            SparseMatrix trainMatrix = (SparseMatrix) FileIO.deserialize(dirPath + "trainMatrix.bin");
+
+            return new Model(P, Q, trainMatrix);
+        }
+    }
+
+    /**
+     * A waiting request
+     */
+    private static class Request {
+        final int user, n;
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        int[] items;
+        double[] scores;
+        int size;
+        Exception error;
+
+        Request(int user, int n) {
+            this.user = user;
+            this.n = n;
+        }
+    }
+
+    // id mappings
+    private DataDAO rateDao;
+    // current model
+    private volatile Model model;
+    // directory of model files, and their last modification time
+    private String modelDir;
+    private long modelTime;
+    // lock of reloading the model
+    private final Object reloadLock = new Object();
+
+    // default and maximum number of recommended items
+    private int topN, maxN;
+    // maximum requests and waiting milliseconds of a batch, number of scoring threads
+    private int batchSize, maxWait, numThreads;
+
+    private BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private HttpServer server;
+    private ExecutorService scorers, handlers;
+    private volatile boolean isRunning;
+
+    // statistics: requests, batches, start time and latency samples (nanoseconds)
+    private AtomicLong numRequests = new AtomicLong(), numBatches = new AtomicLong();
+    private long startTime;
+    private long[] latencies = new long[SAMPLES];
+    private long[] finishTimes = new long[SAMPLES];
+    private int numSamples;
+
+    /**
+     * @param rateDao    id mappings of users and items
+     * @param model      model to serve
+     * @param modelDir   directory of model files to be watched for changes, or null if not watched
+     * @param topN       default number of recommended items
+     * @param batchSize  maximum number of requests per batch
+     * @param maxWait    maximum milliseconds to wait for more requests of a batch
+     * @param numThreads number of scoring threads
+     */
+    public RecommendServer(DataDAO rateDao, Model model, String modelDir, int topN, int batchSize, int maxWait,
+                           int numThreads) {
+        this.rateDao = rateDao;
+        this.model = model;
+        this.modelDir = modelDir;
+        this.topN = topN;
+        this.maxN = Math.max(topN, 1000);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWait = Math.max(0, maxWait);
+        this.numThreads = Math.max(1, numThreads);
+        check(model);
+
+        if (modelDir != null)
+            modelTime = lastModified(modelDir);
+
+        // initialize the inverse mappings before concurrent lookups
+        rateDao.getUserId(0);
+        rateDao.getItemId(0);
+    }
+
+    /**
+     * start serving on a loopback port
+     *
+     * @param port          port of the server
+     * @param reloadSeconds interval of checking model files, disabled if non-positive
+     */
+    public void start(int port, int reloadSeconds) throws IOException {
+        isRunning = true;
+        startTime = System.nanoTime();
+
+        scorers = Executors.newFixedThreadPool(numThreads + (reloadSeconds > 0 && modelDir != null ? 1 : 0));
+        for (int t = 0; t < numThreads; t++) {
+            scorers.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    score();
+                }
+            });
+        }
+
+        if (reloadSeconds > 0 && modelDir != null) {
+            final long interval = reloadSeconds * 1000L;
+            scorers.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (isRunning) {
+                            Thread.sleep(interval);
+                            reloadIfChanged();
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            });
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/recommend", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRecommend(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, stats());
+            }
+        });
+        server.createContext("/reload", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean isReloaded = modelDir != null && reload();
+                respond(exchange, isReloaded ? 200 : 500, isReloaded ? "reloaded\n" : "failed to reload\n");
+            }
+        });
+
+        // requests wait for their batches in the handler threads
+        handlers = Executors.newFixedThreadPool(Math.max(4, 2 * numThreads * batchSize));
+        server.setExecutor(handlers);
+        server.start();
+
+        Logs.info("Server is listening on {}, model: {} users, {} items", new Object[]{server.getAddress(),
+                model.userFactors.length, model.itemFactors.length});
+    }
+
+    /**
+     * stop serving
+     */
+    public void stop() {
+        isRunning = false;
+        server.stop(0);
+        handlers.shutdown();
+        scorers.shutdownNow();
+    }
+
+    private void handleRecommend(HttpExchange exchange) throws IOException {
+        Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+
+        String rawUser = params.get("user");
+        Integer u = rawUser == null ? null : rateDao.getUserIds().get(rawUser);
+        if (u == null) {
+            respond(exchange, 404, "unknown user: " + rawUser + "\n");
+            return;
+        }
+
+        int n = topN;
+        if (params.containsKey("n")) {
+            try {
+                n = Integer.parseInt(params.get("n"));
+            } catch (NumberFormatException e) {
+                n = -1;
+            }
+        }
+        if (n < 1 || n > maxN) {
+            respond(exchange, 400, "n should be in [1, " + maxN + "]\n");
+            return;
+        }
+
+        Request req = new Request(u, n);
+        queue.add(req);
+        try {
+            req.done.await();
+        } catch (InterruptedException e) {
+            respond(exchange, 503, "interrupted\n");
+            return;
+        }
+
+        if (req.error != null) {
+            respond(exchange, 500, req.error.getMessage() + "\n");
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < req.size; k++)
+            sb.append(rateDao.getItemId(req.items[k])).append('\t').append((float) req.scores[k]).append('\n');
+
+        record(System.nanoTime() - req.start);
+        respond(exchange, 200, sb.toString());
+    }
+
+    /**
+     * loop of a scoring thread: take a batch of waiting requests, and score them together
+     */
+    private void score() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        while (isRunning) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+
+                // wait shortly for more requests, unless the batch is full
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+                queue.drainTo(batch, batchSize - batch.size());
+                while (batch.size() < batchSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    Request req = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (req == null)
+                        break;
+                    batch.add(req);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+
+                score(batch);
+                numBatches.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                for (Request req : batch) {
+                    req.error = e;
+                    req.done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * score the users of a batch against blocks of items
+     */
+    private void score(List<Request> batch) {
+        // the model of a batch, even if another model is swapped in meanwhile
+        Model m = model;
+        double[][] P = m.userFactors, Q = m.itemFactors;
+        int numItems = Q.length, size = batch.size();
+
+        double[][] us = new double[size][];
+        int[][] rated = new int[size][];
+        int[] next = new int[size];
+        TopK[] heaps = new TopK[size];
+        for (int b = 0; b < size; b++) {
+            Request req = batch.get(b);
+            if (req.user >= P.length) {
+                req.error = new IllegalArgumentException("user " + rateDao.getUserId(req.user) + " is not in the model");
+                continue;
+            }
+            us[b] = P[req.user];
+            rated[b] = m.trainMatrix.row(req.user).getIndex();
+            heaps[b] = new TopK(req.n);
+        }
+
+        for (int from = 0; from < numItems; from += BLOCK) {
+            int to = Math.min(numItems, from + BLOCK);
+            for (int b = 0; b < size; b++) {
+                if (us[b] == null)
+                    continue;
+
+                double[] pu = us[b];
+                int[] ratedItems = rated[b];
+                int k = next[b];
+                TopK heap = heaps[b];
+                for (int j = from; j < to; j++) {
+                    // rated items are sorted
+                    while (k < ratedItems.length && ratedItems[k] < j)
+                        k++;
+                    if (k < ratedItems.length && ratedItems[k] == j)
+                        continue;
+
+                    double[] qj = Q[j];
+                    double s = 0;
+                    for (int f = 0; f < pu.length; f++)
+                        s += pu[f] * qj[f];
+                    heap.offer(j, s);
+                }
+                next[b] = k;
+            }
+        }
+
+        for (int b = 0; b < size; b++) {
+            Request req = batch.get(b);
+            if (heaps[b] != null) {
+                req.items = new int[req.n];
+                req.scores = new double[req.n];
+                req.size = heaps[b].drain(req.items, req.scores);
+            }
+            req.done.countDown();
+        }
+    }
+
+    /**
+     * reload the model if its files have been changed since the last load
+     */
+    private void reloadIfChanged() {
+        long time = lastModified(modelDir);
+        if (time > modelTime)
+            reload();
+    }
+
+    /**
+     * load the model files and swap them in; the current model is kept if loading fails, e.g., files are being written
+     */
+    private boolean reload() {
+        synchronized (reloadLock) {
+            long time = lastModified(modelDir);
+            try {
+                Model m = Model.load(modelDir);
+                check(m);
+
+                model = m;
+                modelTime = time;
+                Logs.info("Model is reloaded from {}: {} users, {} items", new Object[]{modelDir,
+                        m.userFactors.length, m.itemFactors.length});
+                return true;
+            } catch (Exception e) {
+                Logs.error("Failed to reload model from {}: {}", modelDir, e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * check a model against the id mappings of the server, which are not reloaded with the model: a model trained on
+     * other data would map inner ids to wrong raw ids
+     */
+    private void check(Model m) {
+        if (m.userFactors.length != rateDao.numUsers() || m.itemFactors.length != rateDao.numItems()
+                || m.trainMatrix.numRows() != rateDao.numUsers() || m.trainMatrix.numColumns() != rateDao.numItems())
+            throw new IllegalArgumentException("model of " + m.userFactors.length + " users and "
+                    + m.itemFactors.length + " items does not match the id mappings of " + rateDao.numUsers()
+                    + " users and " + rateDao.numItems() + " items");
+
+        if (m.userFactors.length > 0 && m.itemFactors.length > 0
+                && m.userFactors[0].length != m.itemFactors[0].length)
+            throw new IllegalArgumentException("user and item factors have different dimensions");
+    }
+
+    private static long lastModified(String dirPath) {
+        long time = 0;
+        for (String file : new String[]{"userFactors.bin", "itemFactors.bin", "trainMatrix.bin"})
+            time = Math.max(time, new File(dirPath + file).lastModified());
+
+        return time;
+    }
+
+    /**
+     * record the latency of a request
+     */
+    private synchronized void record(long latency) {
+        int k = (int) (numRequests.getAndIncrement() % SAMPLES);
+        latencies[k] = latency;
+        finishTimes[k] = System.nanoTime();
+        numSamples = Math.min(numSamples + 1, SAMPLES);
+    }
+
+    /**
+     * @return statistics of requests, one "key \t value" per line
+     */
+    public String stats() {
+        long[] lats, times;
+        long count;
+        synchronized (this) {
+            lats = Arrays.copyOf(latencies, numSamples);
+            times = Arrays.copyOf(finishTimes, numSamples);
+            count = numRequests.get();
+        }
+
+        long now = System.nanoTime();
+        double uptime = Math.max(1e-9, (now - startTime) / 1e9);
+
+        // QPS of the last 10 seconds within the samples
+        long window = TimeUnit.SECONDS.toNanos(10);
+        int recent = 0;
+        long oldest = now;
+        for (long t : times) {
+            if (now - t <= window) {
+                recent++;
+                oldest = Math.min(oldest, t);
+            }
+        }
+        double recentQPS = recent > 1 ? recent / Math.max(1e-9, (now - oldest) / 1e9) : recent;
+
+        Arrays.sort(lats);
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests\t").append(count).append('\n');
+        sb.append("batches\t").append(numBatches.get()).append('\n');
+        sb.append("qps\t").append((float) (count / uptime)).append('\n');
+        sb.append("qps.recent\t").append((float) recentQPS).append('\n');
+        sb.append("latency.p50.ms\t").append((float) (percentile(lats, 0.50) / 1e6)).append('\n');
+        sb.append("latency.p99.ms\t").append((float) (percentile(lats, 0.99) / 1e6)).append('\n');
+        sb.append("queue\t").append(queue.size()).append('\n');
+
+        return sb.toString();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+
+        int k = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, k))];
+    }
+
+    private static Map<String, String> query(String rawQuery) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+
+        for (String pair : rawQuery.split("&")) {
+            int pos = pair.indexOf('=');
+            if (pos > 0)
+                params.put(URLDecoder.decode(pair.substring(0, pos), "UTF-8"), URLDecoder.decode(pair
+                        .substring(pos + 1), "UTF-8"));
+        }
+
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+}
@@ -0,0 +1,305 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import librec.intf.Recommender;
+import librec.intf.Recommender.Measure;
+import librec.util.FileConfiger;
+import librec.util.FileIO;
+import librec.util.Logs;
+import librec.util.Randoms;
+
+/**
+ * Search the hyperparameters of a recommender by successive halving, in one process. <br>
+ *
+ * The search space is given by configuration keys prefixed with "tune.", each of which lists the candidate values of a
+ * key, e.g., {@code tune.num.factors=10,50,100} or {@code tune.reg.lambda=0.01,0.1}, or of an option in the line of a
+ * key, e.g., {@code tune.BSPR.-beta=1.0,3.0}. Configurations are sampled from the grid of candidates; all of them are
+ * trained with a small number of iterations in the first rung, and only the best 1/eta of them are trained again with
+ * eta times more iterations in the next rung, until one configuration is left or the maximum iterations are reached.
+ * Trials of a rung run concurrently by a {@code FoldScheduler}, and share the (read-only) data of the recommenders.
+ *
+ * @author wubin
+ */
+public class Tuner {
+
+    /**
+     * A factory of the recommender of a trial, created with the trial configuration as {@code Recommender.cf}
+     */
+    public interface TrialFactory {
+        Recommender create(int trial) throws Exception;
+    }
+
+    /**
+     * A configuration of the search space and its latest result
+     */
+    private static class Trial {
+        int id;
+        FileConfiger cf;
+        String params;
+
+        int rung = -1, iters;
+        double metric = Double.NaN;
+        long time;
+    }
+
+    // prefix of keys of the search space
+    private static final String PREFIX = "tune.";
+
+    // base configuration
+    private FileConfiger cf;
+    // metric to be optimized
+    private Measure metric;
+    // number of configurations, reduction factor, iterations of the first and last rungs
+    private int numConfigs, eta, minIters, maxIters;
+    // trials are run by the scheduler
+    private FoldScheduler scheduler;
+
+    public Tuner(FileConfiger cf, Measure metric, int numConfigs, int eta, int minIters, int maxIters,
+                 FoldScheduler scheduler) {
+        this.cf = cf;
+        this.metric = metric;
+        this.numConfigs = Math.max(1, numConfigs);
+        this.eta = Math.max(2, eta);
+        this.minIters = Math.max(1, minIters);
+        this.maxIters = Math.max(this.minIters, maxIters);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return whether a smaller value of a measure is better, e.g., errors and losses
+     */
+    public static boolean isLowerBetter(Measure m) {
+        switch (m) {
+            case MAE:
+            case NMAE:
+            case rMAE:
+            case RMSE:
+            case rRMSE:
+            case MPE:
+            case Loss:
+            case Perplexity:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Run the search, and write a leaderboard of all configurations to a csv file
+     *
+     * @param factory  factory of the recommender of a trial
+     * @param filePath path of the leaderboard file
+     * @return the configuration of the best trial
+     */
+    public FileConfiger run(final TrialFactory factory, String filePath) throws Exception {
+
+        List<Trial> trials = sample();
+        if (trials.isEmpty())
+            throw new Exception("No search space is specified by keys with the prefix '" + PREFIX + "'");
+
+        final Comparator<Trial> byMetric = new Comparator<Trial>() {
+
+            @Override
+            public int compare(Trial a, Trial b) {
+                // later rungs first, then better metrics; failed trials (NaN) last
+                if (a.rung != b.rung)
+                    return b.rung - a.rung;
+                if (Double.isNaN(a.metric) || Double.isNaN(b.metric))
+                    return Double.isNaN(a.metric) ? (Double.isNaN(b.metric) ? 0 : 1) : -1;
+                return isLowerBetter(metric) ? Double.compare(a.metric, b.metric) : Double.compare(b.metric, a.metric);
+            }
+        };
+
+        List<Trial> alive = new ArrayList<>(trials);
+        for (int rung = 0; ; rung++) {
+            long iters = minIters;
+            for (int k = 0; k < rung && iters < maxIters; k++)
+                iters *= eta;
+            iters = Math.min(iters, maxIters);
+
+            Logs.info("Rung {}: {} configurations with {} iterations", new Object[]{rung, alive.size(), iters});
+            runRung(alive, rung, (int) iters, factory);
+
+            Collections.sort(alive, byMetric);
+            Trial best = alive.get(0);
+            Logs.info("Rung {}: best {} = {} by trial {} [{}]", new Object[]{rung, metric, (float) best.metric,
+                    best.id, best.params});
+
+            if (alive.size() <= 1 || iters >= maxIters)
+                break;
+
+            alive = new ArrayList<>(alive.subList(0, Math.max(1, alive.size() / eta)));
+        }
+
+        // leaderboard
+        Collections.sort(trials, byMetric);
+        List<String> lines = new ArrayList<>(trials.size() + 1);
+        lines.add("rank,trial,rung,iterations," + metric + ",time,params");
+        for (int r = 0; r < trials.size(); r++) {
+            Trial t = trials.get(r);
+            lines.add((r + 1) + "," + t.id + "," + t.rung + "," + t.iters + "," + (float) t.metric + "," + t.time
+                    + ",\"" + t.params + "\"");
+        }
+        FileIO.deleteFile(filePath);
+        FileIO.writeList(filePath, lines);
+        Logs.info("Leaderboard of {} configurations is written to: {}", trials.size(), filePath);
+
+        Trial best = trials.get(0);
+        Logs.info("Best configuration: trial {} [{}] with {} = {}", new Object[]{best.id, best.params, metric,
+                (float) best.metric});
+
+        return best.cf;
+    }
+
+    /**
+     * train and evaluate the trials of a rung concurrently
+     */
+    private void runRung(final List<Trial> trials, int rung, int iters, final TrialFactory factory) throws Exception {
+
+        for (Trial t : trials)
+            t.cf.setString("num.max.iter", String.valueOf(iters));
+
+        List<Map<Measure, Double>> results = scheduler.run(trials.size(), new FoldScheduler.FoldFactory() {
+
+            @Override
+            public Recommender create(int fold) throws Exception {
+                Trial t = trials.get(fold - 1);
+
+                // recommenders read their parameters from the static configer when constructed
+                FileConfiger base = Recommender.cf;
+                Recommender.cf = t.cf;
+                try {
+                    return factory.create(t.id);
+                } finally {
+                    Recommender.cf = base;
+                }
+            }
+        });
+
+        for (int k = 0; k < trials.size(); k++) {
+            Trial t = trials.get(k);
+            Map<Measure, Double> ms = results.get(k);
+
+            t.rung = rung;
+            t.iters = iters;
+            t.metric = ms != null && ms.containsKey(metric) ? ms.get(metric) : Double.NaN;
+            t.time = ms != null && ms.containsKey(Measure.TrainTime) ? ms.get(Measure.TrainTime).longValue() : 0;
+
+            Logs.debug("Trial {} [{}]: {} = {}", new Object[]{t.id, t.params, metric, (float) t.metric});
+        }
+    }
+
+    /**
+     * @return at most numConfigs configurations sampled from the grid of the search space
+     */
+    private List<Trial> sample() {
+        // candidate values of each tuned key, sorted by keys for reproducible sampling
+        Map<String, String[]> space = new TreeMap<>();
+        for (String key : cf.keys()) {
+            if (key.startsWith(PREFIX))
+                space.put(key.substring(PREFIX.length()), cf.getString(key).split("[,\t ]+"));
+        }
+
+        List<Trial> trials = new ArrayList<>();
+        if (space.isEmpty())
+            return trials;
+
+        List<String> keys = new ArrayList<>(space.keySet());
+        long size = 1;
+        for (String[] vals : space.values())
+            size = Math.min(size * vals.length, Integer.MAX_VALUE);
+
+        // grid indices, of which numConfigs are drawn without replacement by a partial Fisher-Yates shuffle
+        int numGrid = (int) size;
+        int num = Math.min(numConfigs, numGrid);
+        Map<Integer, Integer> swaps = new HashMap<>();
+        for (int k = 0; k < num; k++) {
+            int r = k + Randoms.uniform(numGrid - k);
+            Integer gk = swaps.containsKey(k) ? swaps.get(k) : k;
+            Integer gr = swaps.containsKey(r) ? swaps.get(r) : r;
+            swaps.put(r, gk);
+            swaps.put(k, gr);
+
+            int index = gr;
+            Trial t = new Trial();
+            t.id = k + 1;
+            t.cf = new FileConfiger(cf);
+
+            StringBuilder sb = new StringBuilder();
+            for (String key : keys) {
+                String[] vals = space.get(key);
+                String val = vals[index % vals.length];
+                index /= vals.length;
+
+                set(t.cf, key, val);
+                if (sb.length() > 0)
+                    sb.append("; ");
+                sb.append(key).append("=").append(val);
+            }
+            t.params = sb.toString();
+            trials.add(t);
+        }
+
+        return trials;
+    }
+
+    /**
+     * set the value of a key, or of an option in the line of a key, e.g., "BSPR.-beta"
+     */
+    private static void set(FileConfiger cf, String key, String val) {
+        int pos = key.indexOf(".-");
+        if (pos < 0) {
+            cf.setString(key, val);
+            return;
+        }
+
+        String lineKey = key.substring(0, pos), option = key.substring(pos + 1);
+        String line = cf.getString(lineKey);
+        List<String> tokens = new ArrayList<>();
+        if (line != null && !line.isEmpty())
+            Collections.addAll(tokens, line.split("[\t ]+"));
+
+        int k = tokens.indexOf(option);
+        if (k < 0) {
+            tokens.add(option);
+            tokens.add(val);
+        } else if (k + 1 < tokens.size() && !tokens.get(k + 1).startsWith("-")) {
+            tokens.set(k + 1, val);
+        } else {
+            tokens.add(k + 1, val);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0)
+                sb.append(" ");
+            sb.append(token);
+        }
+        cf.setString(lineKey, sb.toString());
+    }
+}
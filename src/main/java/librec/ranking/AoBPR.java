@@ -57,6 +57,7 @@ public class AoBPR extends IterativeRecommender {
 
 		isRankingPred = true;
 		initByNorm = false;
+		lambda = algoOptions.getDouble("-lambda");
 	}
 
 	@Override
@@ -64,7 +65,6 @@ public class AoBPR extends IterativeRecommender {
 		super.initModel();
         P.init(0,0.01);
         Q.init(0,0.000000000001);
-        lambda=algoOptions.getDouble("-lambda");
 		//set for this alg
 		lamda_Item = (int) (lambda * numItems);
 		//lamda_Item=(int)lambda;
@@ -33,6 +33,9 @@ import librec.util.Strings;
  */
 public class BPR extends IterativeRecommender {
 
+	// maximum trials of drawing a negative item at random for incremental updates
+	private static final int MAX_TRIALS = 100;
+
 	public BPR(SparseMatrix trainMatrix, SparseMatrix testMatrix, int fold) {
 		super(trainMatrix, testMatrix, fold);
 
@@ -76,25 +79,7 @@ public class BPR extends IterativeRecommender {
 				}
 
 				// update parameters
-				double xui = predict(u, i);
-				double xuj = predict(u, j);
-				double xuij=xui-xuj;
-				double vals = -Math.log(g(xuij));
-				loss += vals;
-
-				double cmg = g(-xuij);
-
-				for (int f = 0; f < numFactors; f++) {
-					double puf = P.get(u, f);
-					double qif = Q.get(i, f);
-					double qjf = Q.get(j, f);
-
-					P.add(u, f, lRate * (cmg * (qif - qjf) - regU * puf));
-					Q.add(i, f, lRate * (cmg * puf - regI * qif));
-					Q.add(j, f, lRate * (cmg * (-puf) - regI * qjf));
-
-					loss += regU * puf * puf + regI * qif * qif + regI * qjf * qjf;
-				}
+				loss += update(u, i, j);
 			}
 //			if(iter>=1){	
 //			System.out.println(iter+":  "+this.getEvalInfo(evalRankings()) + " " + new Date());
@@ -102,6 +87,80 @@ public class BPR extends IterativeRecommender {
 			System.out.println(iter+":  " + " " + new Date());
 		}
 	}
+
+	/**
+	 * update parameters by the triple (u, i, j), where user u prefers item i to item j
+	 * 
+	 * @return the loss of the triple
+	 */
+	private double update(int u, int i, int j) throws Exception {
+		double xui = predict(u, i);
+		double xuj = predict(u, j);
+		double xuij = xui - xuj;
+		double loss = -Math.log(g(xuij));
+
+		double cmg = g(-xuij);
+
+		for (int f = 0; f < numFactors; f++) {
+			double puf = P.get(u, f);
+			double qif = Q.get(i, f);
+			double qjf = Q.get(j, f);
+
+			P.add(u, f, lRate * (cmg * (qif - qjf) - regU * puf));
+			Q.add(i, f, lRate * (cmg * puf - regI * qif));
+			Q.add(j, f, lRate * (cmg * (-puf) - regI * qjf));
+
+			loss += regU * puf * puf + regI * qif * qif + regI * qjf * qjf;
+		}
+
+		return loss;
+	}
+
+	@Override
+	public boolean isUpdateSupported() {
+		return true;
+	}
+
+	/**
+	 * SGD over the new ratings, each of which is drawn with replacement and paired with an item not rated so far
+	 */
+	@Override
+	protected void updateModel(int[] users, int[] items, int numPasses) throws Exception {
+		for (int pass = 0; pass < numPasses; pass++) {
+			for (int s = 0; s < users.length; s++) {
+				int r = Randoms.uniform(users.length);
+				int u = users[r], i = items[r];
+
+				int j = sampleNegative(u);
+				if (j >= 0)
+					update(u, i, j);
+			}
+		}
+	}
+
+	/**
+	 * draw an item not rated by user u so far, by rejection sampling with a bounded number of trials and then by a scan
+	 * from a random item, as a user early in a stream may have rated all the items seen so far
+	 *
+	 * @return an item not rated by user u, or -1 if user u has rated all items
+	 */
+	private int sampleNegative(int u) {
+		for (int t = 0; t < MAX_TRIALS; t++) {
+			int j = Randoms.uniform(numItems);
+			if (!isRated(u, j))
+				return j;
+		}
+
+		int from = Randoms.uniform(numItems);
+		for (int k = 0; k < numItems; k++) {
+			int j = (from + k) % numItems;
+			if (!isRated(u, j))
+				return j;
+		}
+
+		return -1;
+	}
+
 	@Override
 	public String toString() {
 		return Strings.toString(new Object[] {numFactors, initLRate,regU, regI, numIters }, ",");
@@ -10,6 +10,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
 
 import librec.data.Configuration;
+import librec.data.DataDAO;
 import librec.data.DenseMatrix;
 import librec.data.DenseVector;
 import librec.data.SparseMatrix;
@@ -27,13 +28,17 @@ public class BSPR extends IterativeRecommender {
     DenseMatrix Z;
     double beta;
     private float epsilon1,epsilon2;
+    // related matrix shared by recommenders of the same data, e.g., folds and tuning trials
+    private static String cachedRelatedfile;
+    private static DataDAO cachedRateDao;
+    private static SparseMatrix cachedRelatedmatrix;
 	public BSPR(SparseMatrix trainMatrix, SparseMatrix testMatrix, int fold) throws IOException {
 		super(trainMatrix, testMatrix, fold);
 		isRankingPred = true;
 		initByNorm = false;
 		 beta = algoOptions.getDouble("-beta");
 		 relatedfile = cf.getPath("dataset.related");
-		 relatedmatrix = this.getboughttogether();
+		 relatedmatrix = this.getSharedboughttogether();
 		 epsilon1=algoOptions.getFloat("-epsilon1");
 		 epsilon2=algoOptions.getFloat("-epsilon2");
 		 
@@ -180,6 +185,20 @@ public class BSPR extends IterativeRecommender {
 		}
 	}
 	
+	/**
+	 * @return the bought-together matrix, read only once for the same file and rating data
+	 */
+	private SparseMatrix getSharedboughttogether() throws IOException {
+		synchronized (BSPR.class) {
+			if (cachedRelatedmatrix == null || cachedRateDao != rateDao || !relatedfile.equals(cachedRelatedfile)) {
+				cachedRelatedmatrix = getboughttogether();
+				cachedRelatedfile = relatedfile;
+				cachedRateDao = rateDao;
+			}
+			return cachedRelatedmatrix;
+		}
+	}
+
 	public SparseMatrix getboughttogether() throws IOException {
 		Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
 		Multimap<Integer, Integer> colMap = HashMultimap.create();
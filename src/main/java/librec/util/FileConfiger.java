@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
 
 /**
@@ -38,6 +39,21 @@ public class FileConfiger extends StringMap {
 		p.load(new FileInputStream(FileIO.getResource(conf)));
 	}
 
+	/**
+	 * Construct a configer with a copy of the properties of a given configer, e.g., to change some of them
+	 */
+	public FileConfiger(FileConfiger cf) {
+		p = new Properties();
+		p.putAll(cf.p);
+	}
+
+	/**
+	 * @return all the property keys
+	 */
+	public Set<String> keys() {
+		return p.stringPropertyNames();
+	}
+
 	public LineConfiger getParamOptions(String key) {
 		String lineOptions = getString(key);
 		return lineOptions == null ? null : new LineConfiger(lineOptions);
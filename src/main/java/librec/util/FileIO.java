@@ -27,12 +27,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URL;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -163,11 +165,17 @@ public class FileIO {
 		return null;
 	}
 
-	public static BufferedReader getReader(String path) throws FileNotFoundException {
+	public static BufferedReader getReader(String path) throws IOException {
 		return getReader(new File(getResource(path)));
 	}
 
-	public static BufferedReader getReader(File file) throws FileNotFoundException {
+	/**
+	 * @return a reader of a file, which is decompressed if it is gzip-compressed
+	 */
+	public static BufferedReader getReader(File file) throws IOException {
+		if (Gzips.isGzip(file))
+			return new BufferedReader(new InputStreamReader(Gzips.open(file), Charset.defaultCharset()));
+
 		return new BufferedReader(new FileReader(file));
 	}
 
@@ -0,0 +1,301 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Input of gzip-compressed files, recognized by their magic bytes rather than file names. <br>
+ *
+ * A file of blocked members, i.e., members with a "BC" extra subfield giving the member size as by BGZF (bgzip), is
+ * decompressed in parallel: groups of members are inflated by a thread pool, and read in order from a bounded window
+ * of pending groups. Other files, including plain multi-member files, are decompressed sequentially as the member
+ * boundaries are unknown before inflating.
+ *
+ * @author wubin
+ */
+public class Gzips {
+
+	// magic bytes of gzip
+	private static final int ID1 = 0x1f, ID2 = 0x8b;
+	// flag of an extra field
+	private static final int FEXTRA = 4;
+	// compressed bytes per group of parallel decompression
+	private static final int GROUP = 1 << 20;
+
+	/**
+	 * @return whether a file is gzip-compressed
+	 */
+	public static boolean isGzip(File file) throws IOException {
+		if (!file.isFile() || file.length() < 2)
+			return false;
+
+		InputStream is = new FileInputStream(file);
+		try {
+			return is.read() == ID1 && is.read() == ID2;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @return whether the first member of a gzip file is a blocked member with its size
+	 */
+	public static boolean isBlocked(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return memberSize(raf.getChannel(), 0) > 0;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * open a gzip file, decompressed by all processors if it is blocked
+	 */
+	public static InputStream open(File file) throws IOException {
+		return open(file, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * open a gzip file, decompressed by a number of threads if it is blocked
+	 */
+	public static InputStream open(File file, int numThreads) throws IOException {
+		if (numThreads > 1 && isBlocked(file))
+			return new BlockedInputStream(file, numThreads);
+
+		return new GZIPInputStream(new FileInputStream(file), 1 << 16);
+	}
+
+	/**
+	 * @return the size of a blocked member at a position, or -1 if it is not blocked
+	 */
+	private static int memberSize(FileChannel ch, long pos) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(12);
+		if (read(ch, head, pos) < 12)
+			return -1;
+
+		// only an extra field is allowed in the header
+		if ((head.get(0) & 0xff) != ID1 || (head.get(1) & 0xff) != ID2 || head.get(2) != 8
+				|| head.get(3) != FEXTRA)
+			return -1;
+
+		int xlen = u16(head.array(), 10);
+		ByteBuffer extra = ByteBuffer.allocate(xlen);
+		if (read(ch, extra, pos + 12) < xlen)
+			return -1;
+
+		byte[] x = extra.array();
+		for (int p = 0; p + 4 <= xlen;) {
+			int slen = u16(x, p + 2);
+			if (x[p] == 'B' && x[p + 1] == 'C' && slen == 2 && p + 6 <= xlen)
+				return u16(x, p + 4) + 1;
+			p += 4 + slen;
+		}
+
+		return -1;
+	}
+
+	private static int read(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) < 0)
+				break;
+		}
+		return buf.position();
+	}
+
+	private static int u16(byte[] b, int p) {
+		return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8;
+	}
+
+	private static int u32(byte[] b, int p) {
+		return u16(b, p) | u16(b, p + 2) << 16;
+	}
+
+	/**
+	 * inflate the blocked members of bytes
+	 */
+	private static byte[] inflate(byte[] in, int[] sizes) throws IOException {
+		int total = 0;
+		for (int k = 0, p = 0; k < sizes.length; p += sizes[k++])
+			total += u32(in, p + sizes[k] - 4);
+
+		byte[] out = new byte[total];
+		Inflater inflater = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try {
+			for (int k = 0, p = 0, q = 0; k < sizes.length; p += sizes[k++]) {
+				int xlen = u16(in, p + 10);
+				int from = p + 12 + xlen, end = p + sizes[k] - 8;
+				int isize = u32(in, end + 4);
+
+				inflater.reset();
+				inflater.setInput(in, from, end - from);
+				int n = 0;
+				while (n < isize && !inflater.finished()) {
+					int m = inflater.inflate(out, q + n, isize - n);
+					if (m == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += m;
+				}
+				if (n != isize)
+					throw new IOException("Corrupt gzip member: " + n + " of " + isize + " bytes");
+
+				crc.reset();
+				crc.update(out, q, isize);
+				if ((int) crc.getValue() != u32(in, end))
+					throw new IOException("Corrupt gzip member: CRC mismatch");
+
+				q += isize;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		return out;
+	}
+
+	/**
+	 * A stream of blocked gzip members inflated in parallel
+	 */
+	private static class BlockedInputStream extends InputStream {
+
+		private RandomAccessFile raf;
+		private FileChannel ch;
+		private long pos, size;
+
+		private ExecutorService executor;
+		// pending groups in the order of the file
+		private ArrayDeque<Future<byte[]>> window = new ArrayDeque<>();
+		private int maxWindow;
+
+		// current group
+		private byte[] cur = new byte[0];
+		private int cursor;
+
+		BlockedInputStream(File file, int numThreads) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			ch = raf.getChannel();
+			size = ch.size();
+
+			maxWindow = 2 * numThreads;
+			// daemon threads, in case of a stream not closed
+			executor = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder().setDaemon(true).build());
+			fill();
+		}
+
+		/**
+		 * submit groups until the window is full
+		 */
+		private void fill() throws IOException {
+			while (window.size() < maxWindow && pos < size) {
+				// sizes of members of the next group
+				List<Integer> sizes = new ArrayList<>();
+				long from = pos;
+				while (pos < size && pos - from < GROUP) {
+					int s = memberSize(ch, pos);
+					if (s < 0)
+						throw new IOException("Unsupported gzip member at byte " + pos);
+					sizes.add(s);
+					pos += s;
+				}
+
+				final byte[] in = new byte[(int) (pos - from)];
+				if (Gzips.read(ch, ByteBuffer.wrap(in), from) < in.length)
+					throw new IOException("Unexpected end of gzip file");
+
+				final int[] ss = new int[sizes.size()];
+				for (int k = 0; k < ss.length; k++)
+					ss[k] = sizes.get(k);
+
+				window.add(executor.submit(new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws Exception {
+						return inflate(in, ss);
+					}
+				}));
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			while (cursor == cur.length) {
+				if (window.isEmpty()) {
+					executor.shutdown();
+					return -1;
+				}
+
+				try {
+					cur = window.poll().get();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				}
+				cursor = 0;
+				fill();
+			}
+
+			int n = Math.min(len, cur.length - cursor);
+			System.arraycopy(cur, cursor, b, off, n);
+			cursor += n;
+
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			executor.shutdownNow();
+			raf.close();
+		}
+	}
+}
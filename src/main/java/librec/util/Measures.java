@@ -18,6 +18,7 @@
 
 package librec.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -355,4 +356,172 @@ public class Measures {
 		return loss;
 	}
 
+	/**
+	 * A single-pass kernel of ranking measures over primitive arrays. For a ranked list, it computes precision, recall,
+	 * F1, AP and NDCG at all cutoffs as well as RR and AUC by walking the list once, with discounts and ideal DCGs
+	 * precomputed. The kernel is immutable and can be shared by threads.
+	 * 
+	 * <p>
+	 * The measures agree with their list-based counterparts: AP@N is {@code AP(rankedList.subList(0, N), groundTruth)},
+	 * and NDCG@N is {@code nDCG(rankedList.subList(0, N), groundTruth)}, i.e., normalized by the ideal DCG of all
+	 * positive items.
+	 * </p>
+	 */
+	public static class RankingKernel {
+
+		// measure offsets of the results: measure * #cutoffs + index of cutoff
+		public static final int PRE = 0, REC = 1, F1 = 2, AP = 3, NDCG = 4;
+
+		// ascending cutoffs
+		private final int[] cutoffs;
+		// discounts[i] = 1 / log2(i + 2)
+		private final double[] discounts;
+		// idcgs[n] = IDCG(n)
+		private final double[] idcgs;
+		// whether to compute RR, AUC
+		private final boolean isRR, isAUC;
+
+		/**
+		 * @param cutoffs
+		 *            ascending cutoff positions
+		 * @param maxTruth
+		 *            the maximum number of positive items of a user; ideal DCGs of more items are computed on demand
+		 */
+		public RankingKernel(int[] cutoffs, int maxTruth) {
+			this(cutoffs, maxTruth, true, true);
+		}
+
+		/**
+		 * @param cutoffs
+		 *            ascending cutoff positions
+		 * @param maxTruth
+		 *            the maximum number of positive items of a user; ideal DCGs of more items are computed on demand
+		 * @param isRR
+		 *            whether to compute RR
+		 * @param isAUC
+		 *            whether to compute AUC, which requires to walk the whole list
+		 */
+		public RankingKernel(int[] cutoffs, int maxTruth, boolean isRR, boolean isAUC) {
+			this.cutoffs = cutoffs;
+			this.isRR = isRR;
+			this.isAUC = isAUC;
+
+			int maxCutoff = cutoffs.length > 0 ? cutoffs[cutoffs.length - 1] : 0;
+			discounts = new double[maxCutoff];
+			for (int i = 0; i < maxCutoff; i++)
+				discounts[i] = 1 / Maths.log(i + 2, 2);
+
+			idcgs = new double[maxTruth + 1];
+			for (int n = 1; n <= maxTruth; n++)
+				idcgs[n] = idcgs[n - 1] + 1 / Maths.log(n + 1, 2);
+		}
+
+		/**
+		 * @return the number of result entries: five measures per cutoff, RR and AUC
+		 */
+		public int size() {
+			return 5 * cutoffs.length + 2;
+		}
+
+		/**
+		 * @return the result index of a measure at the i-th cutoff
+		 */
+		public int index(int measure, int i) {
+			return measure * cutoffs.length + i;
+		}
+
+		/**
+		 * @return the result index of the reciprocal rank
+		 */
+		public int indexRR() {
+			return 5 * cutoffs.length;
+		}
+
+		/**
+		 * @return the result index of the AUC
+		 */
+		public int indexAUC() {
+			return 5 * cutoffs.length + 1;
+		}
+
+		/**
+		 * Evaluate a ranked list against the positive items
+		 * 
+		 * @param rankedList
+		 *            ranked item IDs, the highest-ranking item first
+		 * @param numRanked
+		 *            the number of ranked items in {@code rankedList}
+		 * @param groundTruth
+		 *            sorted positive item IDs
+		 * @param numDropped
+		 *            the number of candidate items that were not ranked, used by AUC
+		 * @param results
+		 *            output measures of length {@code size()}
+		 */
+		public void evaluate(int[] rankedList, int numRanked, int[] groundTruth, int numDropped, double[] results) {
+			int numTruth = groundTruth.length;
+			int numCutoffs = cutoffs.length;
+			double idcg = numTruth < idcgs.length ? idcgs[numTruth] : IDCG(numTruth);
+
+			int hits = 0, c = 0;
+			long correctPairs = 0;
+			double sumPrecs = 0, dcg = 0, rr = 0;
+
+			for (int i = 0; i < numRanked; i++) {
+				// cutoffs ending before position i
+				for (; c < numCutoffs && cutoffs[c] <= i; c++)
+					put(results, c, hits, numTruth, sumPrecs, dcg, idcg, i);
+
+				// the rest of the list is not needed
+				if (c == numCutoffs && !isAUC && (!isRR || hits > 0))
+					break;
+
+				if (Arrays.binarySearch(groundTruth, rankedList[i]) >= 0) {
+					hits++;
+					if (c < numCutoffs) {
+						sumPrecs += hits / (i + 1.0);
+						dcg += discounts[i];
+					}
+					if (hits == 1)
+						rr = 1 / (i + 1.0);
+				} else {
+					correctPairs += hits;
+				}
+			}
+
+			// cutoffs beyond the ranked list
+			for (; c < numCutoffs; c++)
+				put(results, c, hits, numTruth, sumPrecs, dcg, idcg, numRanked);
+
+			results[indexRR()] = rr;
+			if (!isAUC)
+				return;
+
+			// AUC: relevant items missing from the list are ranked below all items
+			long evalPairs = (long) (numRanked + numDropped - hits) * hits;
+			if (evalPairs < 0) {
+				Logs.error("num_eval_pairs cannot be less than 0");
+				System.exit(-1);
+			}
+			correctPairs += (long) hits * (numDropped - (numTruth - hits));
+			results[indexAUC()] = evalPairs == 0 ? 0.5 : (correctPairs + 0.0) / evalPairs;
+		}
+
+		/**
+		 * fill in the measures of the c-th cutoff, given the statistics of the first {@code length} ranked items
+		 */
+		private void put(double[] results, int c, int hits, int numTruth, double sumPrecs, double dcg, double idcg,
+				int length) {
+			int numCutoffs = cutoffs.length;
+
+			double prec = hits / (cutoffs[c] + 0.0);
+			double recall = hits / (numTruth + 0.0);
+
+			results[PRE * numCutoffs + c] = prec;
+			results[REC * numCutoffs + c] = recall;
+			results[F1 * numCutoffs + c] = prec + recall > 0 ? 2 * prec * recall / (prec + recall) : 0;
+			results[AP * numCutoffs + c] = hits > 0 ? sumPrecs / Math.min(length, numTruth) : 0;
+			results[NDCG * numCutoffs + c] = dcg / idcg;
+		}
+	}
 }
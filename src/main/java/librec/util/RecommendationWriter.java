@@ -0,0 +1,121 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write top-N recommendations of users to a binary file through a large direct buffer. Each user is a record of
+ * {@code int user, int n}, followed by n pairs of {@code int item, float score}, all in big-endian order so that the
+ * file can be read back by {@code DataInputStream}. A writer is not thread-safe: use one writer per file (shard).
+ *
+ * @author wubin
+ */
+public class RecommendationWriter {
+
+	// default buffer size: 4MB
+	public static final int BUFFER_SIZE = 4 * (int) FileIO.ONE_MB;
+
+	private FileOutputStream out;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+
+	// number of written bytes
+	private long numBytes;
+
+	public RecommendationWriter(String filePath) throws IOException {
+		this(filePath, BUFFER_SIZE);
+	}
+
+	public RecommendationWriter(String filePath, int bufferSize) throws IOException {
+		out = new FileOutputStream(filePath);
+		channel = out.getChannel();
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Write the top-N recommendations of a user
+	 *
+	 * @param user
+	 *            inner user id
+	 * @param n
+	 *            number of recommended items
+	 * @param items
+	 *            inner ids of recommended items
+	 * @param scores
+	 *            ranking scores of recommended items
+	 */
+	public void write(int user, int n, int[] items, double[] scores) throws IOException {
+		int size = 8 + 8 * n;
+		if (buffer.remaining() < size)
+			flush();
+
+		if (buffer.remaining() < size) {
+			// a record larger than the buffer
+			ByteBuffer record = ByteBuffer.allocate(size);
+			put(record, user, n, items, scores);
+			record.flip();
+			write(record);
+		} else {
+			put(buffer, user, n, items, scores);
+		}
+	}
+
+	private static void put(ByteBuffer buf, int user, int n, int[] items, double[] scores) {
+		buf.putInt(user);
+		buf.putInt(n);
+		for (int i = 0; i < n; i++) {
+			buf.putInt(items[i]);
+			buf.putFloat((float) scores[i]);
+		}
+	}
+
+	private void write(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			numBytes += channel.write(buf);
+	}
+
+	/**
+	 * write out the buffered records
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @return the number of bytes written to file so far
+	 */
+	public long size() {
+		return numBytes;
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+			out.close();
+		}
+	}
+}
@@ -31,6 +31,204 @@ import java.util.Set;
  */
 public class Sims {
 
+	// similarity methods computed from the moments of co-rated values
+	public static final int PCC = 0, COS = 1, COS_BINARY = 2, MSD = 3, CPC = 4, EXJACCARD = 5, JACCARD = 6;
+
+	/**
+	 * @return the similarity method of a name, e.g., "pcc", "cos", "cos-binary", "msd", "cpc", "exjaccard" or
+	 *         "jaccard"; PCC by default
+	 */
+	public static int method(String name) {
+		switch (name.toLowerCase()) {
+		case "cos":
+			return COS;
+		case "cos-binary":
+			return COS_BINARY;
+		case "msd":
+			return MSD;
+		case "cpc":
+			return CPC;
+		case "exjaccard":
+			return EXJACCARD;
+		case "jaccard":
+			return JACCARD;
+		case "pcc":
+		default:
+			return PCC;
+		}
+	}
+
+	/**
+	 * Compute the similarity between two sparse vectors in a single merge-join pass over their sorted spans, without
+	 * allocation. The co-rated values are those with the same index and non-zero values in both vectors.
+	 * 
+	 * @param method
+	 *            similarity method
+	 * @param shrinkage
+	 *            shrink the similarity by n / (n + shrinkage) with n co-rated entries; disabled if non-positive
+	 * @param median
+	 *            median rating, used by CPC
+	 * @param xIdx
+	 *            sorted indices of vector x
+	 * @param xVal
+	 *            values of vector x
+	 * @param xFrom
+	 *            start of the span of vector x, inclusive
+	 * @param xTo
+	 *            end of the span of vector x, exclusive; the span of vector y is given likewise
+	 * @return the similarity, or NaN if not computable
+	 */
+	public static double similarity(int method, int shrinkage, double median, int[] xIdx, double[] xVal, int xFrom,
+			int xTo, int[] yIdx, double[] yVal, int yFrom, int yTo) {
+		int n = 0, sizeX = 0, sizeY = 0;
+		double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0, sdd = 0, normX = 0, normY = 0;
+
+		int a = xFrom, b = yFrom;
+		while (a < xTo || b < yTo) {
+			int ia = a < xTo ? xIdx[a] : Integer.MAX_VALUE;
+			int ib = b < yTo ? yIdx[b] : Integer.MAX_VALUE;
+
+			if (ia <= ib) {
+				double x = xVal[a++];
+				if (x != 0) {
+					normX += x * x;
+					sizeX++;
+				}
+			}
+			if (ib <= ia) {
+				double y = yVal[b++];
+				if (y != 0) {
+					normY += y * y;
+					sizeY++;
+				}
+			}
+			if (ia == ib) {
+				double x = xVal[a - 1], y = yVal[b - 1];
+				if (x != 0 && y != 0) {
+					n++;
+					sx += x;
+					sy += y;
+					sxx += x * x;
+					syy += y * y;
+					sxy += x * y;
+					sdd += (x - y) * (x - y);
+				}
+			}
+		}
+
+		double sim;
+		if (method == PCC) {
+			// centered in a second pass, as computed by pcc(a, b)
+			sim = n < 2 ? Double.NaN : pcc(sx / n, sy / n, xIdx, xVal, xFrom, xTo, yIdx, yVal, yFrom, yTo);
+		} else {
+			sim = similarity(method, n, sx, sy, sxx, syy, sxy, sdd, normX, normY, sizeX, sizeY, median);
+		}
+
+		if (shrinkage > 0 && !Double.isNaN(sim))
+			sim *= n / (n + shrinkage + 0.0);
+
+		return sim;
+	}
+
+	/**
+	 * @return PCC of two sparse vectors given the means of their co-rated values
+	 */
+	private static double pcc(double muX, double muY, int[] xIdx, double[] xVal, int xFrom, int xTo, int[] yIdx,
+			double[] yVal, int yFrom, int yTo) {
+		double num = 0.0, denX = 0.0, denY = 0.0;
+
+		for (int a = xFrom, b = yFrom; a < xTo && b < yTo;) {
+			if (xIdx[a] < yIdx[b]) {
+				a++;
+			} else if (xIdx[a] > yIdx[b]) {
+				b++;
+			} else {
+				double x = xVal[a++], y = yVal[b++];
+				if (x != 0 && y != 0) {
+					double dx = x - muX, dy = y - muY;
+					num += dx * dy;
+					denX += dx * dx;
+					denY += dy * dy;
+				}
+			}
+		}
+
+		return num / (Math.sqrt(denX) * Math.sqrt(denY));
+	}
+
+	/**
+	 * Compute a similarity from the moments of the co-rated values {x_k, y_k} of two vectors, without shrinkage. PCC
+	 * from raw moments may differ from the two-pass PCC of sparse vectors by rounding errors.
+	 * 
+	 * @param method
+	 *            similarity method
+	 * @param n
+	 *            number of co-rated entries
+	 * @param sx
+	 *            sum of x_k
+	 * @param sy
+	 *            sum of y_k
+	 * @param sxx
+	 *            sum of x_k^2
+	 * @param syy
+	 *            sum of y_k^2
+	 * @param sxy
+	 *            sum of x_k * y_k
+	 * @param sdd
+	 *            sum of (x_k - y_k)^2, used by MSD
+	 * @param normX
+	 *            squared norm of the whole vector x, used by COS_BINARY
+	 * @param normY
+	 *            squared norm of the whole vector y, used by COS_BINARY
+	 * @param sizeX
+	 *            number of non-zero entries of vector x, used by JACCARD
+	 * @param sizeY
+	 *            number of non-zero entries of vector y, used by JACCARD
+	 * @param median
+	 *            median rating, used by CPC
+	 * @return the similarity, or NaN if not computable
+	 */
+	public static double similarity(int method, int n, double sx, double sy, double sxx, double syy, double sxy,
+			double sdd, double normX, double normY, int sizeX, int sizeY, double median) {
+		switch (method) {
+		case COS:
+			if (n == 0)
+				return Double.NaN;
+			return sxy / (Math.sqrt(sxx) * Math.sqrt(syy));
+		case COS_BINARY:
+			return sxy / (Math.sqrt(normX) * Math.sqrt(normY));
+		case MSD:
+			double sim = n / sdd;
+			return Double.isInfinite(sim) ? 1.0 : sim;
+		case CPC:
+			if (n == 0)
+				return Double.NaN;
+			double m2 = n * median * median;
+			double num = sxy - median * (sx + sy) + m2;
+			double den1 = sxx - 2 * median * sx + m2;
+			double den2 = syy - 2 * median * sy + m2;
+			// values equal to the median up to rounding errors
+			if (den1 <= 1e-12 * (sxx + m2) || den2 <= 1e-12 * (syy + m2))
+				return Double.NaN;
+			return num / (Math.sqrt(den1) * Math.sqrt(den2));
+		case EXJACCARD:
+			return sxy / (sxx + syy - sxy);
+		case JACCARD:
+			return (n + 0.0) / (sizeX + sizeY - n);
+		case PCC:
+		default:
+			if (n < 2)
+				return Double.NaN;
+			double cov = sxy - sx * sy / n;
+			double varX = sxx - sx * sx / n;
+			double varY = syy - sy * sy / n;
+			// constant values up to rounding errors
+			if (varX <= 1e-12 * sxx || varY <= 1e-12 * syy)
+				return Double.NaN;
+			return cov / (Math.sqrt(varX) * Math.sqrt(varY));
+		}
+	}
+
 	/**
 	 * @return cosine similarity
 	 */
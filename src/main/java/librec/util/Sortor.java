@@ -19,7 +19,11 @@
 package librec.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Implementations for sorting algorithms, although a ready-to-use method is
@@ -750,4 +754,106 @@ public class Sortor {
 
 		return lastS1;
 	}
+
+	/**
+	 * Sort an array of primitive values in increasing order by a number of threads: chunks of the array are sorted in
+	 * parallel, and then merged pairwise in rounds, each of which merges its pairs in parallel.
+	 * 
+	 * @param data
+	 *            array to be sorted
+	 * @param numThreads
+	 *            number of threads
+	 */
+	public static void parallelSort(final long[] data, int numThreads) {
+		int n = data.length;
+		int threads = Math.max(1, Math.min(numThreads, n >> 16));
+		if (threads == 1) {
+			Arrays.sort(data);
+			return;
+		}
+
+		// boundaries of sorted runs
+		final int[] bounds = new int[threads + 1];
+		for (int t = 0; t <= threads; t++)
+			bounds[t] = (int) ((long) n * t / threads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final RuntimeException[] error = new RuntimeException[1];
+
+			CountDownLatch latch = new CountDownLatch(threads);
+			for (int t = 0; t < threads; t++)
+				executor.submit(sortTask(data, bounds[t], bounds[t + 1], latch, error));
+			latch.await();
+
+			long[] src = data, dst = new long[n];
+			for (int width = 1; width < threads; width <<= 1) {
+				int pairs = (threads + 2 * width - 1) / (2 * width);
+				latch = new CountDownLatch(pairs);
+				for (int t = 0; t < threads; t += 2 * width) {
+					int from = bounds[t], mid = bounds[Math.min(t + width, threads)];
+					int to = bounds[Math.min(t + 2 * width, threads)];
+					executor.submit(mergeTask(src, dst, from, mid, to, latch, error));
+				}
+				latch.await();
+
+				long[] tmp = src;
+				src = dst;
+				dst = tmp;
+			}
+
+			if (error[0] != null)
+				throw error[0];
+
+			if (src != data)
+				System.arraycopy(src, 0, data, 0, n);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static Runnable sortTask(final long[] data, final int from, final int to, final CountDownLatch latch,
+			final RuntimeException[] error) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Arrays.sort(data, from, to);
+				} catch (RuntimeException e) {
+					error[0] = e;
+				} finally {
+					latch.countDown();
+				}
+			}
+		};
+	}
+
+	/**
+	 * merge the sorted runs src[from, mid) and src[mid, to) into dst[from, to)
+	 */
+	private static Runnable mergeTask(final long[] src, final long[] dst, final int from, final int mid,
+			final int to, final CountDownLatch latch, final RuntimeException[] error) {
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					int i = from, j = mid, k = from;
+					while (i < mid && j < to)
+						dst[k++] = src[j] < src[i] ? src[j++] : src[i++];
+					while (i < mid)
+						dst[k++] = src[i++];
+					while (j < to)
+						dst[k++] = src[j++];
+				} catch (RuntimeException e) {
+					error[0] = e;
+				} finally {
+					latch.countDown();
+				}
+			}
+		};
+	}
 }
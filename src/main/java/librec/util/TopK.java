@@ -0,0 +1,153 @@
+// Copyright (C) 2014 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.util;
+
+/**
+ * A bounded min-heap of primitive {id, score} pairs keeping the k highest scores, without boxing. An instance can be
+ * reused by calling {@code clear()}, and is not thread-safe.
+ *
+ * @author wubin
+ *
+ */
+public class TopK {
+
+	// heap capacity
+	private int k;
+	// number of elements in the heap
+	private int size;
+	// heap data: the lowest score at position 0
+	private int[] ids;
+	private double[] scores;
+
+	public TopK(int k) {
+		this.k = k;
+		ids = new int[k];
+		scores = new double[k];
+	}
+
+	/**
+	 * @return the capacity of this heap
+	 */
+	public int capacity() {
+		return k;
+	}
+
+	/**
+	 * @return the number of elements in this heap
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return whether the heap already keeps k elements
+	 */
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * @return the lowest kept score, i.e., the k-th highest score if full; negative infinity otherwise
+	 */
+	public double threshold() {
+		return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/**
+	 * remove all elements
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Offer an {id, score} pair to the heap
+	 *
+	 * @return true if the pair is kept
+	 */
+	public boolean offer(int id, double score) {
+		if (size < k) {
+			// sift up
+			int pos = size++;
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				if (scores[parent] <= score)
+					break;
+				ids[pos] = ids[parent];
+				scores[pos] = scores[parent];
+				pos = parent;
+			}
+			ids[pos] = id;
+			scores[pos] = score;
+			return true;
+		}
+
+		if (k == 0 || score <= scores[0])
+			return false;
+
+		siftDown(0, id, score, size);
+		return true;
+	}
+
+	/**
+	 * place {id, score} at position pos and sift it down within the first n elements
+	 */
+	private void siftDown(int pos, int id, double score, int n) {
+		int half = n >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			int right = child + 1;
+			if (right < n && scores[right] < scores[child])
+				child = right;
+			if (score <= scores[child])
+				break;
+			ids[pos] = ids[child];
+			scores[pos] = scores[child];
+			pos = child;
+		}
+		ids[pos] = id;
+		scores[pos] = score;
+	}
+
+	/**
+	 * Drain the heap into arrays sorted by descending scores. The heap is empty afterwards.
+	 *
+	 * @param outIds
+	 *            output ids, of length at least {@code size()}
+	 * @param outScores
+	 *            output scores, of length at least {@code size()}; can be null
+	 * @return the number of drained elements
+	 */
+	public int drain(int[] outIds, double[] outScores) {
+		int n = size;
+		for (int i = n - 1; i >= 0; i--) {
+			outIds[i] = ids[0];
+			if (outScores != null)
+				outScores[i] = scores[0];
+
+			// move the last element to the root
+			size--;
+			if (size > 0)
+				siftDown(0, ids[size], scores[size], size);
+		}
+		size = 0;
+
+		return n;
+	}
+}